@@ -0,0 +1,90 @@
+package com.sampullara.db;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Getting the class of a Groovy migration the way scriptMigrator does: compiled from scratch, loaded from
+ * the on disk cache by a new Migrate, and found in the memory cache of the same Migrate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GroovyScriptBenchmark {
+
+    private static final String SCRIPT =
+            "import com.sampullara.db.Migrate\n" +
+            "import java.util.logging.Level\n" +
+            "\n" +
+            "Migrate.logger.log(Level.FINE, \"Migrating \" + tablename + \" from \" + version)\n" +
+            "if (database == \"h2\") {\n" +
+            "    def st = connection.createStatement()\n" +
+            "    try {\n" +
+            "        st.execute(\"CREATE TABLE groovy_benchmark (id integer not null)\")\n" +
+            "    } finally {\n" +
+            "        st.close()\n" +
+            "    }\n" +
+            "}\n";
+
+    private byte[] source;
+    private File directory;
+    private GroovyScriptCache warm;
+
+    @Setup
+    public void setup() throws IOException, MigrationException {
+        source = SCRIPT.getBytes("UTF-8");
+        directory = File.createTempFile("groovycache", "");
+        directory.delete();
+        directory.mkdirs();
+        // Populate the disk cache and the memory cache
+        warm = new GroovyScriptCache(directory, Migrate.class.getClassLoader());
+        warm.getScriptClass(new ByteArrayInputStream(source), "migratefrom1.groovy");
+    }
+
+    @Benchmark
+    public Class compile() throws MigrationException {
+        GroovyScriptCache cache = new GroovyScriptCache(null, Migrate.class.getClassLoader());
+        return cache.getScriptClass(new ByteArrayInputStream(source), "migratefrom1.groovy");
+    }
+
+    @Benchmark
+    public Class diskCache() throws MigrationException {
+        GroovyScriptCache cache = new GroovyScriptCache(directory, Migrate.class.getClassLoader());
+        return cache.getScriptClass(new ByteArrayInputStream(source), "migratefrom1.groovy");
+    }
+
+    @Benchmark
+    public Class memoryCache() throws MigrationException {
+        return warm.getScriptClass(new ByteArrayInputStream(source), "migratefrom1.groovy");
+    }
+
+    @TearDown
+    public void tearDown() {
+        delete(directory);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) delete(child);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,127 @@
+package com.sampullara.db;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per version loop in migrate(): finding the migration for each version, running it and advancing the
+ * version.  The migrations are trivial so that the cost of the loop itself shows, and plan() measures the
+ * lookup alone.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MigrateBenchmark {
+
+    private static final String URL = "jdbc:h2:mem:migrate_benchmark;DB_CLOSE_DELAY=-1";
+
+    @Param({"10", "100"})
+    public int versions;
+
+    @Param({"false", "true"})
+    public boolean fast;
+
+    private File directory;
+    private Properties properties;
+
+    @Setup
+    public void setup() throws IOException, MigrationException {
+        directory = File.createTempFile("migrations", "");
+        directory.delete();
+        directory.mkdirs();
+        write(new File(directory, "migratefrom0.sql"),
+                "CREATE TABLE db_version (version integer not null);\n" +
+                "INSERT INTO db_version VALUES (1);\n" +
+                "CREATE TABLE migrate_benchmark (n integer not null);\n" +
+                "INSERT INTO migrate_benchmark VALUES (0);\n");
+        for (int i = 1; i < versions; i++) {
+            write(new File(directory, "migratefrom" + i + ".sql"), "UPDATE migrate_benchmark SET n = n + 1;\n");
+        }
+        properties = new Properties();
+        properties.put("user", "sa");
+        properties.put("password", "");
+        newMigrate().migrate();
+    }
+
+    /**
+     * Put the database back to version 1 so every invocation runs the whole chain.
+     */
+    @Setup(Level.Invocation)
+    public void reset() throws MigrationException, SQLException {
+        Connection conn = ConnectionPool.getDriver("org.h2.Driver").connect(URL, properties);
+        try {
+            Statement st = conn.createStatement();
+            st.executeUpdate("UPDATE db_version SET version = 1");
+            st.close();
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Benchmark
+    public boolean migrate() throws MigrationException {
+        return newMigrate().migrate();
+    }
+
+    @Benchmark
+    public List<MigrationStep> plan() throws MigrationException {
+        return newMigrate().plan();
+    }
+
+    @TearDown
+    public void tearDown() throws MigrationException, SQLException {
+        Connection conn = ConnectionPool.getDriver("org.h2.Driver").connect(URL, properties);
+        try {
+            Statement st = conn.createStatement();
+            st.execute("DROP ALL OBJECTS");
+            st.close();
+        } finally {
+            conn.close();
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        directory.delete();
+    }
+
+    private Migrate newMigrate() {
+        Migrate migrate = new Migrate(directory.getPath(), URL, "org.h2.Driver", versions, properties);
+        migrate.setFast(fast);
+        return migrate;
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(contents);
+        } finally {
+            writer.close();
+        }
+    }
+}
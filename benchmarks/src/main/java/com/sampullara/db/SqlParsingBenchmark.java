@@ -0,0 +1,90 @@
+package com.sampullara.db;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splitting scripts into statements, with the old SqlStatementParser and the SqlStatementTokenizer that
+ * replaced it.
+ * <ul>
+ * <li>small - a typical hand written migration of a dozen statements</li>
+ * <li>huge - a data load of 50,000 inserts</li>
+ * <li>pathological - a single 1MB statement over many lines, full of quoted semi-colons, which the parser
+ * rescans from the start for every line appended</li>
+ * </ul>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SqlParsingBenchmark {
+
+    @Param({"small", "huge", "pathological"})
+    public String input;
+
+    private String sql;
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder();
+        if (input.equals("small")) {
+            sb.append("CREATE TABLE account (id integer not null, name varchar(64), primary key (id));\n");
+            sb.append("CREATE INDEX account_name ON account (name);\n");
+            for (int i = 0; i < 10; i++) {
+                sb.append("INSERT INTO account VALUES (").append(i).append(", 'account ''").append(i).append("''');\n");
+            }
+        } else if (input.equals("huge")) {
+            for (int i = 0; i < 50000; i++) {
+                sb.append("INSERT INTO account VALUES (").append(i).append(", 'name; ").append(i).append("');\n");
+            }
+        } else {
+            sb.append("INSERT INTO blob_test VALUES (");
+            while (sb.length() < 1024 * 1024) {
+                sb.append("'a;b\\'c;d',\n");
+            }
+            sb.append("'end');\n");
+        }
+        sql = sb.toString();
+    }
+
+    /**
+     * Feeds the script to the parser a line at a time the way Migrate used to.
+     */
+    @Benchmark
+    public void parser(Blackhole bh) {
+        StringBuilder buffer = new StringBuilder();
+        SqlStatementParser parser = new SqlStatementParser(buffer);
+        int start = 0;
+        int end;
+        while ((end = sql.indexOf('\n', start)) != -1) {
+            buffer.append(sql, start, end + 1);
+            for (String statement : parser.pullStatements()) {
+                bh.consume(statement);
+            }
+            start = end + 1;
+        }
+    }
+
+    @Benchmark
+    public void tokenizer(Blackhole bh) {
+        SqlStatementTokenizer tokenizer = new SqlStatementTokenizer(new StringReader(sql));
+        while (tokenizer.hasNext()) {
+            bh.consume(tokenizer.next());
+        }
+    }
+}
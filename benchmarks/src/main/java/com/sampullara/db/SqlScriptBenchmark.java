@@ -0,0 +1,79 @@
+package com.sampullara.db;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * sqlScriptMigrator end to end, reading the script from a file and running it against an in-memory H2
+ * database, with and without batching.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SqlScriptBenchmark {
+
+    @Param({"100", "10000"})
+    public int rows;
+
+    @Param({"0", "100"})
+    public int batch;
+
+    private File script;
+    private Connection conn;
+
+    @Setup
+    public void setup() throws IOException, MigrationException, SQLException {
+        script = File.createTempFile("benchmark", ".sql");
+        Writer writer = new FileWriter(script);
+        try {
+            writer.write("DROP TABLE IF EXISTS script_benchmark;\n");
+            writer.write("CREATE TABLE script_benchmark (id integer not null, name varchar(64));\n");
+            for (int i = 0; i < rows; i++) {
+                writer.write("INSERT INTO script_benchmark VALUES (" + i + ", 'row " + i + "');\n");
+            }
+            writer.write("UPDATE script_benchmark SET name = 'even' WHERE MOD(id, 2) = 0;\n");
+        } finally {
+            writer.close();
+        }
+        Properties properties = new Properties();
+        properties.put("user", "sa");
+        properties.put("password", "");
+        conn = ConnectionPool.getDriver("org.h2.Driver").connect("jdbc:h2:mem:script_benchmark", properties);
+        conn.setAutoCommit(false);
+    }
+
+    @Benchmark
+    public boolean sqlScriptMigrator() throws MigrationException, SQLException {
+        boolean found = Migrate.sqlScriptMigrator(conn, script.getPath(), batch);
+        conn.commit();
+        return found;
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        conn.close();
+        script.delete();
+    }
+}
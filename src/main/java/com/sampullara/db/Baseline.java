@@ -0,0 +1,249 @@
+package com.sampullara.db;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Writes the schema of a database as a script that recreates it, so that new databases can start from a
+ * baseline instead of replaying every migration from version 0.  See Migrate.snapshot().
+ * <p/>
+ * H2 dumps its own schema with SCRIPT NODATA and MySQL with SHOW CREATE TABLE.  Everywhere else the
+ * tables, columns, primary keys, indexes and foreign keys are read from the JDBC metadata, which leaves out
+ * anything it doesn't describe, sequences and views for example.  Where the database has a better dump of
+ * its own, e.g. pg_dump --schema-only, its output can be used as the baseline instead: any script that
+ * leaves the database at the version in its name will do.
+ * <p/>
+ * Only the schema is dumped.  Rows loaded by migrations, reference data for example, have to be added to
+ * the baseline by hand.  The version table is included, with the version, and the lock, checkpoint and
+ * history tables are left out.
+ */
+class Baseline {
+
+    /** H2 statements that are about the database rather than the schema */
+    private static final Pattern H2_SKIP =
+            Pattern.compile("^\\s*(SET|CREATE\\s+USER|CREATE\\s+ROLE|GRANT|--).*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private Baseline() {
+    }
+
+    /**
+     * @param conn      a connection to the database
+     * @param dialect   its dialect
+     * @param tablename the version table
+     * @param version   the version of the database
+     * @return the statements that recreate the schema at the version, each ending with a semi-colon
+     * @throws SQLException if the schema can't be read
+     */
+    static List<String> dump(Connection conn, Dialect dialect, String tablename, int version) throws SQLException {
+        List<String> statements;
+        if (dialect.getName().equals("h2")) {
+            statements = h2(conn);
+        } else if (dialect.getName().equals("mysql")) {
+            statements = mysql(conn);
+        } else {
+            statements = metadata(conn);
+        }
+        Pattern internal = Pattern.compile(".*\\b(" + Pattern.quote(tablename + "_lock") + "|" +
+                Pattern.quote(tablename + "_checkpoint") + "|" + Pattern.quote(tablename + "_history") + ")\\b.*",
+                Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+        List<String> baseline = new ArrayList<String>();
+        for (String statement : statements) {
+            if (internal.matcher(statement).matches()) continue;
+            baseline.add(statement.trim().endsWith(";") ? statement.trim() : statement.trim() + ";");
+        }
+        baseline.add("INSERT INTO " + tablename + " (version) VALUES (" + version + ");");
+        return baseline;
+    }
+
+    private static List<String> h2(Connection conn) throws SQLException {
+        List<String> statements = new ArrayList<String>();
+        Statement st = conn.createStatement();
+        try {
+            ResultSet rs = st.executeQuery("SCRIPT NODATA");
+            while (rs.next()) {
+                String statement = rs.getString(1);
+                if (!H2_SKIP.matcher(statement).matches()) statements.add(statement);
+            }
+        } finally {
+            st.close();
+        }
+        return statements;
+    }
+
+    private static List<String> mysql(Connection conn) throws SQLException {
+        List<String> statements = new ArrayList<String>();
+        // The tables are created in name order, so foreign keys may refer to tables that don't exist yet
+        statements.add("SET FOREIGN_KEY_CHECKS = 0");
+        Statement st = conn.createStatement();
+        try {
+            for (String table : tables(conn.getMetaData(), conn.getCatalog()).keySet()) {
+                ResultSet rs = st.executeQuery("SHOW CREATE TABLE `" + table + "`");
+                try {
+                    if (rs.next()) statements.add(rs.getString(2));
+                } finally {
+                    rs.close();
+                }
+            }
+        } finally {
+            st.close();
+        }
+        statements.add("SET FOREIGN_KEY_CHECKS = 1");
+        return statements;
+    }
+
+    private static List<String> metadata(Connection conn) throws SQLException {
+        DatabaseMetaData metaData = conn.getMetaData();
+        List<String> statements = new ArrayList<String>();
+        List<String> foreignKeys = new ArrayList<String>();
+        for (Map.Entry<String, String> entry : tables(metaData, conn.getCatalog()).entrySet()) {
+            String table = entry.getKey();
+            String schema = entry.getValue();
+            StringBuilder create = new StringBuilder("CREATE TABLE ").append(table).append(" (");
+            ResultSet rs = metaData.getColumns(conn.getCatalog(), schema, table, null);
+            try {
+                boolean first = true;
+                while (rs.next()) {
+                    create.append(first ? "\n    " : ",\n    ").append(rs.getString("COLUMN_NAME")).append(" ")
+                            .append(type(rs.getString("TYPE_NAME"), rs.getInt("DATA_TYPE"), rs.getInt("COLUMN_SIZE"),
+                                    rs.getInt("DECIMAL_DIGITS")));
+                    String def = rs.getString("COLUMN_DEF");
+                    if (def != null) create.append(" DEFAULT ").append(def);
+                    if (rs.getInt("NULLABLE") == DatabaseMetaData.columnNoNulls) create.append(" NOT NULL");
+                    first = false;
+                }
+            } finally {
+                rs.close();
+            }
+            String primaryKeyName = null;
+            List<String> primaryKey = new ArrayList<String>();
+            rs = metaData.getPrimaryKeys(conn.getCatalog(), schema, table);
+            try {
+                Map<Integer, String> columns = new TreeMap<Integer, String>();
+                while (rs.next()) {
+                    columns.put(rs.getInt("KEY_SEQ"), rs.getString("COLUMN_NAME"));
+                    primaryKeyName = rs.getString("PK_NAME");
+                }
+                primaryKey.addAll(columns.values());
+            } finally {
+                rs.close();
+            }
+            if (!primaryKey.isEmpty()) {
+                create.append(",\n    PRIMARY KEY (").append(join(primaryKey)).append(")");
+            }
+            statements.add(create.append("\n)").toString());
+            statements.addAll(indexes(metaData, conn.getCatalog(), schema, table, primaryKeyName));
+            foreignKeys.addAll(foreignKeys(metaData, conn.getCatalog(), schema, table));
+        }
+        // Once every table they refer to exists
+        statements.addAll(foreignKeys);
+        return statements;
+    }
+
+    /**
+     * @return the tables of the database, in name order, and their schemas
+     */
+    private static Map<String, String> tables(DatabaseMetaData metaData, String catalog) throws SQLException {
+        Map<String, String> tables = new LinkedHashMap<String, String>();
+        ResultSet rs = metaData.getTables(catalog, null, null, new String[]{"TABLE"});
+        try {
+            while (rs.next()) {
+                String schema = rs.getString("TABLE_SCHEM");
+                if (schema != null && (schema.equalsIgnoreCase("information_schema") || schema.startsWith("pg_"))) continue;
+                tables.put(rs.getString("TABLE_NAME"), schema);
+            }
+        } finally {
+            rs.close();
+        }
+        return tables;
+    }
+
+    private static String type(String typeName, int dataType, int size, int digits) {
+        switch (dataType) {
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.BINARY:
+            case Types.VARBINARY:
+                return size > 0 && size < Integer.MAX_VALUE ? typeName + "(" + size + ")" : typeName;
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return size > 0 ? typeName + "(" + size + ", " + digits + ")" : typeName;
+            default:
+                return typeName;
+        }
+    }
+
+    private static List<String> indexes(DatabaseMetaData metaData, String catalog, String schema, String table,
+                                        String primaryKeyName) throws SQLException {
+        Map<String, List<String>> columns = new LinkedHashMap<String, List<String>>();
+        Map<String, Boolean> unique = new LinkedHashMap<String, Boolean>();
+        ResultSet rs = metaData.getIndexInfo(catalog, schema, table, false, true);
+        try {
+            while (rs.next()) {
+                String name = rs.getString("INDEX_NAME");
+                if (name == null || rs.getShort("TYPE") == DatabaseMetaData.tableIndexStatistic) continue;
+                if (name.equals(primaryKeyName)) continue;
+                if (!columns.containsKey(name)) {
+                    columns.put(name, new ArrayList<String>());
+                    unique.put(name, !rs.getBoolean("NON_UNIQUE"));
+                }
+                columns.get(name).add(rs.getString("COLUMN_NAME"));
+            }
+        } finally {
+            rs.close();
+        }
+        List<String> statements = new ArrayList<String>();
+        for (Map.Entry<String, List<String>> index : columns.entrySet()) {
+            statements.add("CREATE " + (unique.get(index.getKey()) ? "UNIQUE " : "") + "INDEX " + index.getKey() +
+                    " ON " + table + " (" + join(index.getValue()) + ")");
+        }
+        return statements;
+    }
+
+    private static List<String> foreignKeys(DatabaseMetaData metaData, String catalog, String schema, String table)
+            throws SQLException {
+        Map<String, List<String[]>> keys = new LinkedHashMap<String, List<String[]>>();
+        ResultSet rs = metaData.getImportedKeys(catalog, schema, table);
+        try {
+            while (rs.next()) {
+                String name = rs.getString("FK_NAME");
+                if (name == null) name = table + "_fk_" + rs.getString("PKTABLE_NAME");
+                if (!keys.containsKey(name)) keys.put(name, new ArrayList<String[]>());
+                keys.get(name).add(new String[]{rs.getString("FKCOLUMN_NAME"), rs.getString("PKTABLE_NAME"),
+                        rs.getString("PKCOLUMN_NAME")});
+            }
+        } finally {
+            rs.close();
+        }
+        List<String> statements = new ArrayList<String>();
+        for (Map.Entry<String, List<String[]>> key : keys.entrySet()) {
+            List<String> from = new ArrayList<String>();
+            List<String> to = new ArrayList<String>();
+            for (String[] column : key.getValue()) {
+                from.add(column[0]);
+                to.add(column[2]);
+            }
+            statements.add("ALTER TABLE " + table + " ADD CONSTRAINT " + key.getKey() + " FOREIGN KEY (" +
+                    join(from) + ") REFERENCES " + key.getValue().get(0)[1] + " (" + join(to) + ")");
+        }
+        return statements;
+    }
+
+    private static String join(List<String> values) {
+        StringBuilder sb = new StringBuilder();
+        for (String value : values) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+}
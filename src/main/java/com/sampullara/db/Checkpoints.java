@@ -0,0 +1,84 @@
+package com.sampullara.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * How far long running work has got, kept in a table next to the version table so that a migration that
+ * is run again after a failure can carry on from where it stopped.  Checkpoints are written on the
+ * connection doing the work, so they are committed or rolled back along with it.
+ */
+class Checkpoints {
+
+    private final Connection conn;
+    private final String table;
+
+    /**
+     * Create the checkpoint table if it doesn't exist yet.
+     *
+     * @param conn  the connection doing the work
+     * @param table the checkpoint table
+     * @throws SQLException if the table can't be created
+     */
+    Checkpoints(Connection conn, String table) throws SQLException {
+        this.conn = conn;
+        this.table = table;
+        if (!Tables.exists(conn, table)) {
+            Statement st = conn.createStatement();
+            try {
+                st.execute("CREATE TABLE " + table + " (name varchar(255) not null primary key, position bigint not null)");
+            } finally {
+                st.close();
+            }
+        }
+    }
+
+    /**
+     * @return the position of the checkpoint or null if there is none
+     */
+    Long read(String name) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement("SELECT position FROM " + table + " WHERE name = ?");
+        try {
+            ps.setString(1, name);
+            ResultSet rs = ps.executeQuery();
+            return rs.next() ? rs.getLong(1) : null;
+        } finally {
+            ps.close();
+        }
+    }
+
+    void write(String name, long position) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement("UPDATE " + table + " SET position = ? WHERE name = ?");
+        try {
+            ps.setLong(1, position);
+            ps.setString(2, name);
+            if (ps.executeUpdate() == 1) return;
+        } finally {
+            ps.close();
+        }
+        ps = conn.prepareStatement("INSERT INTO " + table + " (name, position) VALUES (?, ?)");
+        try {
+            ps.setString(1, name);
+            ps.setLong(2, position);
+            ps.executeUpdate();
+        } finally {
+            ps.close();
+        }
+    }
+
+    /**
+     * Remove every checkpoint whose name starts with the prefix.
+     */
+    void delete(String prefix) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement("DELETE FROM " + table + " WHERE name LIKE ?");
+        try {
+            ps.setString(1, prefix.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%");
+            ps.executeUpdate();
+        } finally {
+            ps.close();
+        }
+    }
+}
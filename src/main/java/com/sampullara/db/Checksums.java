@@ -0,0 +1,78 @@
+package com.sampullara.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content hashes used to recognize scripts that haven't changed.
+ */
+class Checksums {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private Checksums() {
+    }
+
+    /**
+     * @return a new SHA-1 digest
+     */
+    static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is required by every JVM", e);
+        }
+    }
+
+    /**
+     * @param prefix  a string to include in the hash ahead of the content, e.g. a version
+     * @param content the content to hash
+     * @return the SHA-1 of the prefix and the content as a hex string
+     */
+    static String sha1(String prefix, byte[] content) {
+        MessageDigest digest = sha1();
+        try {
+            digest.update(prefix.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is required by every JVM", e);
+        }
+        digest.update((byte) 0);
+        digest.update(content);
+        return hex(digest.digest());
+    }
+
+    /**
+     * @param is the content to hash, read to the end and closed
+     * @return the SHA-1 of the content as a hex string
+     * @throws IOException if the content can't be read
+     */
+    static String sha1(InputStream is) throws IOException {
+        MessageDigest digest = sha1();
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            is.close();
+        }
+        return hex(digest.digest());
+    }
+
+    /**
+     * @param bytes a digest
+     * @return the digest as a lower case hex string
+     */
+    static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
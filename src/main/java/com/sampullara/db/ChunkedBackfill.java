@@ -0,0 +1,281 @@
+package com.sampullara.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.logging.Level;
+
+/**
+ * Runs a data migration over a large table in chunks of its key, e.g.
+ * <pre>
+ * ChunkedBackfill backfill = new ChunkedBackfill("migratefrom7.accounts", "accounts", "id",
+ *         "UPDATE accounts SET status = 'active' WHERE status IS NULL AND id >= ? AND id < ?");
+ * backfill.setChunkSize(10000);
+ * backfill.setMaxRowsPerSecond(50000);
+ * backfill.run(conn);
+ * </pre>
+ * The statement is executed once per chunk with the start (inclusive) and end (exclusive) of the chunk as
+ * its two parameters.  With commit enabled, as in Migrate's online mode, each chunk is committed along with
+ * a checkpoint in the checkpoint table next to the version table, so writers are only blocked for a chunk
+ * at a time and a backfill that is interrupted carries on from where it stopped when the migration is run
+ * again.  The statement should therefore be safe to run twice on the same rows.
+ * <p/>
+ * The backfill can be throttled by rows per second and by replication lag, measured with a query that
+ * returns the lag in seconds.  db.properties has such a query for some databases, see
+ * Dialect.getLagSQL().
+ * <p/>
+ * In SQL scripts, a statement preceded by a directive like
+ * <pre>
+ * -- @backfill table=accounts key=id chunk=10000 rows=50000 lag=5
+ * </pre>
+ * is run as a backfill named after the script and line.
+ */
+public class ChunkedBackfill {
+
+    /** the longest pause while waiting for replicas to catch up */
+    private static final long MAX_LAG_PAUSE = 10000;
+
+    private final String name;
+    private final String table;
+    private final String key;
+    private final String sql;
+    private String checkpointTable = "db_version_checkpoint";
+    private long chunkSize = 10000;
+    private int maxRowsPerSecond;
+    private String lagSQL;
+    private double maxLag;
+    private boolean commit = true;
+    private String script;
+    private int lineNumber;
+
+    /**
+     * @param name  identifies the backfill's checkpoint, it must be unique across migrations
+     * @param table the table whose key range is backfilled
+     * @param key   an integer key column of the table, ideally its primary key
+     * @param sql   the statement to run for each chunk, with ? for the start and the end of the chunk
+     */
+    public ChunkedBackfill(String name, String table, String key, String sql) {
+        this.name = name;
+        this.table = table;
+        this.key = key;
+        this.sql = sql;
+    }
+
+    /**
+     * Create a backfill from the options of a backfill directive in a SQL script.
+     *
+     * @param name    the name of the backfill
+     * @param options e.g. "table=accounts key=id chunk=10000 rows=50000 lag=5"
+     * @param sql     the statement of the directive
+     * @param dialect the dialect of the database, for the lag query, or null if unknown
+     * @return the backfill
+     * @throws MigrationException if an option is missing or invalid
+     */
+    static ChunkedBackfill parse(String name, String options, String sql, Dialect dialect) throws MigrationException {
+        String table = null;
+        String key = null;
+        Long chunk = null;
+        Integer rows = null;
+        Double lag = null;
+        try {
+            for (String option : options.trim().split("\\s+")) {
+                if (option.length() == 0) continue;
+                int equals = option.indexOf('=');
+                if (equals == -1) throw new MigrationException("Backfill option is not name=value: " + option);
+                String optionName = option.substring(0, equals);
+                String value = option.substring(equals + 1);
+                if (optionName.equals("table")) {
+                    table = value;
+                } else if (optionName.equals("key")) {
+                    key = value;
+                } else if (optionName.equals("chunk")) {
+                    chunk = Long.parseLong(value);
+                } else if (optionName.equals("rows")) {
+                    rows = Integer.parseInt(value);
+                } else if (optionName.equals("lag")) {
+                    lag = Double.parseDouble(value);
+                } else {
+                    throw new MigrationException("Unknown backfill option: " + option);
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new MigrationException("Invalid backfill option: " + options, e);
+        }
+        if (table == null || key == null) {
+            throw new MigrationException("A backfill needs a table and a key: " + options);
+        }
+        ChunkedBackfill backfill = new ChunkedBackfill(name, table, key, sql);
+        if (chunk != null) backfill.setChunkSize(chunk);
+        if (rows != null) backfill.setMaxRowsPerSecond(rows);
+        if (lag != null) {
+            if (dialect == null || dialect.getLagSQL() == null) {
+                Migrate.logger.warning("No replication lag query for " + dialect + ", ignoring lag=" + lag);
+            } else {
+                backfill.setMaxLag(dialect.getLagSQL(), lag);
+            }
+        }
+        return backfill;
+    }
+
+    /**
+     * Run the backfill from its checkpoint to the current end of the key range.
+     *
+     * @param conn the connection to run it on, with auto commit off
+     * @return the number of rows affected
+     * @throws MigrationException if a chunk fails
+     */
+    public long run(Connection conn) throws MigrationException {
+        MigrationListener listener = MigrationListeners.current();
+        long total = 0;
+        try {
+            Checkpoints checkpoints = new Checkpoints(conn, checkpointTable);
+            long[] range = range(conn);
+            if (range == null) return 0;
+            Long checkpoint = checkpoints.read(name);
+            long start = checkpoint == null ? range[0] : Math.max(checkpoint, range[0]);
+            if (start > range[0]) {
+                Migrate.logger.info("Resuming backfill " + name + " at " + key + " " + start);
+            }
+            long began = System.nanoTime();
+            PreparedStatement ps = conn.prepareStatement(sql);
+            try {
+                while (start <= range[1]) {
+                    throttleLag(conn);
+                    long end = start + chunkSize;
+                    listener.statementStarted(source(), lineNumber, sql);
+                    long chunkStart = System.nanoTime();
+                    int rows;
+                    try {
+                        ps.setLong(1, start);
+                        ps.setLong(2, end);
+                        rows = ps.executeUpdate();
+                    } catch (SQLException e) {
+                        listener.statementFinished(source(), lineNumber, sql, System.nanoTime() - chunkStart, -1, e);
+                        throw new MigrationException("Backfill " + name + " failed at " + key + " " + start + ": " + sql, e);
+                    }
+                    checkpoints.write(name, end);
+                    if (commit) conn.commit();
+                    listener.statementFinished(source(), lineNumber, sql, System.nanoTime() - chunkStart, rows, null);
+                    total += rows;
+                    start = end;
+                    throttleRate(total, began);
+                }
+            } finally {
+                ps.close();
+            }
+        } catch (SQLException e) {
+            throw new MigrationException("Backfill " + name + " failed", e);
+        }
+        Migrate.logger.info("Backfill " + name + " updated " + total + " rows");
+        return total;
+    }
+
+    private String source() {
+        return script == null ? name : script;
+    }
+
+    /**
+     * @return the lowest and highest key, or null if the table is empty
+     */
+    private long[] range(Connection conn) throws SQLException {
+        Statement st = conn.createStatement();
+        try {
+            ResultSet rs = st.executeQuery("SELECT MIN(" + key + "), MAX(" + key + ") FROM " + table);
+            rs.next();
+            long min = rs.getLong(1);
+            if (rs.wasNull()) return null;
+            return new long[]{min, rs.getLong(2)};
+        } finally {
+            st.close();
+        }
+    }
+
+    /**
+     * Sleep long enough that the rows so far haven't been done faster than the limit.
+     */
+    private void throttleRate(long rows, long began) throws MigrationException {
+        if (maxRowsPerSecond <= 0) return;
+        long elapsed = (System.nanoTime() - began) / 1000000;
+        long due = rows * 1000 / maxRowsPerSecond;
+        if (due > elapsed) sleep(due - elapsed);
+    }
+
+    /**
+     * Wait, backing off, until the replicas are no further behind than the limit.
+     */
+    private void throttleLag(Connection conn) throws MigrationException, SQLException {
+        if (lagSQL == null) return;
+        long pause = 100;
+        while (true) {
+            Statement st = conn.createStatement();
+            double lag;
+            try {
+                ResultSet rs = st.executeQuery(lagSQL);
+                lag = rs.next() ? rs.getDouble(1) : 0;
+            } finally {
+                st.close();
+            }
+            if (lag <= maxLag) return;
+            Migrate.logger.log(Level.INFO, "Backfill " + name + " waiting for replication lag of " + lag + "s");
+            sleep(pause);
+            pause = Math.min(pause * 2, MAX_LAG_PAUSE);
+        }
+    }
+
+    private static void sleep(long millis) throws MigrationException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MigrationException("Interrupted during backfill");
+        }
+    }
+
+    /**
+     * @param checkpointTable the table in which to keep checkpoints, db_version_checkpoint by default
+     */
+    public void setCheckpointTable(String checkpointTable) {
+        this.checkpointTable = checkpointTable;
+    }
+
+    /**
+     * @param chunkSize how many keys each chunk covers, 10,000 by default
+     */
+    public void setChunkSize(long chunkSize) {
+        if (chunkSize < 1) throw new IllegalArgumentException("Chunk size must be at least 1");
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @param maxRowsPerSecond the most rows to change per second, 0 for no limit
+     */
+    public void setMaxRowsPerSecond(int maxRowsPerSecond) {
+        this.maxRowsPerSecond = maxRowsPerSecond;
+    }
+
+    /**
+     * @param lagSQL a query returning the replication lag in seconds
+     * @param maxLag the most lag to allow before pausing, in seconds
+     */
+    public void setMaxLag(String lagSQL, double maxLag) {
+        this.lagSQL = lagSQL;
+        this.maxLag = maxLag;
+    }
+
+    /**
+     * @param commit true to commit each chunk, the default, false to leave it to the caller
+     */
+    public void setCommit(boolean commit) {
+        this.commit = commit;
+    }
+
+    /**
+     * Where the backfill came from, for the listeners.
+     */
+    void setSource(String script, int lineNumber) {
+        this.script = script;
+        this.lineNumber = lineNumber;
+    }
+}
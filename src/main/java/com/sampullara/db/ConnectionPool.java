@@ -0,0 +1,296 @@
+package com.sampullara.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+
+/**
+ * A small pool of idle connections, shared by every Migrate with the same driver, URL and connection
+ * properties, so that repeated calls like needsMigrate() don't pay for a new physical connection each time.
+ * Closing a connection handed out by the pool returns it, rolled back and in auto commit mode, for reuse.
+ * The rest of the session is reset too: the isolation level the connection was opened with is restored and
+ * the reset statements of the database, from db.properties, release anything the session still holds, like
+ * the advisory locks and LISTENs of PostgreSQL.  A connection that can't be reset is closed instead.
+ * <p/>
+ * Idle connections are closed once they have been idle for a minute, as the pool comes across them, and
+ * all of them by closeAll(), e.g. when the application shuts down.
+ * <p/>
+ * Anyone who wants a full featured pool can give Migrate a DataSource from it instead.
+ */
+class ConnectionPool {
+    /** the most idle connections kept for each database */
+    private static final int MAX_IDLE = 4;
+    /** idle connections older than this are closed rather than reused */
+    private static final long IDLE_TIMEOUT = 60 * 1000;
+
+    private static final ConcurrentMap<String, Driver> drivers = new ConcurrentHashMap<String, Driver>();
+    private static final ConcurrentMap<String, ConnectionPool> pools = new ConcurrentHashMap<String, ConnectionPool>();
+    private static final Method isValid = isValidMethod();
+
+    private final Driver driver;
+    private final String url;
+    private final Properties properties;
+    private final LinkedList<Idle> idle = new LinkedList<Idle>();
+    // The isolation level new connections start with, and the statements that reset a session, from the
+    // first connection
+    private volatile int isolation = -1;
+    private volatile String[] reset;
+    private boolean closed;
+
+    private ConnectionPool(Driver driver, String url, Properties properties) {
+        this.driver = driver;
+        this.url = url;
+        this.properties = properties;
+    }
+
+    /**
+     * Drivers are instantiated once per class and reused.
+     *
+     * @param className the class name of the driver
+     * @return the driver
+     * @throws MigrationException if the driver can't be found or instantiated
+     */
+    static Driver getDriver(String className) throws MigrationException {
+        Driver driver = drivers.get(className);
+        if (driver == null) {
+            try {
+                driver = (Driver) Class.forName(className).getDeclaredConstructor().newInstance();
+            } catch (InstantiationException e) {
+                throw new MigrationException("Could not instantiate driver", e);
+            } catch (InvocationTargetException e) {
+                throw new MigrationException("Could not instantiate driver", e.getCause());
+            } catch (NoSuchMethodException e) {
+                throw new MigrationException("Driver has no default constructor: " + className, e);
+            } catch (IllegalAccessException e) {
+                throw new MigrationException("Could not access driver constructor", e);
+            } catch (ClassNotFoundException e) {
+                throw new MigrationException("Could not find driver class in classpath: " + className, e);
+            }
+            Driver existing = drivers.putIfAbsent(className, driver);
+            if (existing != null) driver = existing;
+        }
+        return driver;
+    }
+
+    /**
+     * @return the pool for the database, created the first time it is asked for
+     */
+    static ConnectionPool get(String driverClassName, String url, Properties properties) throws MigrationException {
+        String key = driverClassName + "|" + url + "|" + (properties == null ? "" : new TreeMap<Object, Object>(properties).toString());
+        ConnectionPool pool = pools.get(key);
+        if (pool == null) {
+            pool = new ConnectionPool(getDriver(driverClassName), url, properties);
+            ConnectionPool existing = pools.putIfAbsent(key, pool);
+            if (existing != null) pool = existing;
+        }
+        return pool;
+    }
+
+    /**
+     * Reuse an idle connection if there is a good one, otherwise open a new one.
+     *
+     * @return a connection that is returned to the pool when closed
+     * @throws SQLException if a new connection can't be opened
+     */
+    Connection getConnection() throws SQLException {
+        Connection physical = null;
+        while (physical == null) {
+            Idle candidate;
+            synchronized (idle) {
+                candidate = idle.poll();
+            }
+            if (candidate == null) {
+                physical = driver.connect(url, properties);
+                if (physical == null) throw new SQLException("Driver does not accept URL: " + url);
+                if (isolation < 0) isolation = physical.getTransactionIsolation();
+            } else if (System.currentTimeMillis() - candidate.since > IDLE_TIMEOUT || !isUsable(candidate.connection)) {
+                close(candidate.connection);
+            } else {
+                physical = candidate.connection;
+            }
+        }
+        return (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, new Pooled(physical));
+    }
+
+    /**
+     * Close the idle connections of every pool.  Connections that are in use are closed when they are
+     * returned, and the next connection asked for starts a new pool.
+     */
+    static void closeAll() {
+        for (Iterator<ConnectionPool> i = pools.values().iterator(); i.hasNext();) {
+            ConnectionPool pool = i.next();
+            i.remove();
+            pool.close();
+        }
+    }
+
+    private void close() {
+        List<Idle> closing;
+        synchronized (idle) {
+            closed = true;
+            closing = new ArrayList<Idle>(idle);
+            idle.clear();
+        }
+        for (Idle candidate : closing) {
+            close(candidate.connection);
+        }
+    }
+
+    /**
+     * @return the number of connections waiting to be reused
+     */
+    int getIdleCount() {
+        synchronized (idle) {
+            return idle.size();
+        }
+    }
+
+    private void release(Connection physical) {
+        try {
+            if (physical.isClosed()) return;
+            if (!physical.getAutoCommit()) {
+                physical.rollback();
+                physical.setAutoCommit(true);
+            }
+            if (physical.isReadOnly()) {
+                physical.setReadOnly(false);
+            }
+            if (isolation >= 0 && physical.getTransactionIsolation() != isolation) {
+                physical.setTransactionIsolation(isolation);
+            }
+            for (String sql : resetStatements(physical)) {
+                Statement st = physical.createStatement();
+                try {
+                    st.execute(sql);
+                } finally {
+                    st.close();
+                }
+            }
+        } catch (SQLException e) {
+            Migrate.logger.log(Level.FINE, "Could not reset a pooled connection, closing it", e);
+            close(physical);
+            return;
+        }
+        List<Idle> expired = new ArrayList<Idle>();
+        boolean kept = false;
+        synchronized (idle) {
+            // The least recently used are at the end, close those that have been idle too long
+            long now = System.currentTimeMillis();
+            while (!idle.isEmpty() && now - idle.getLast().since > IDLE_TIMEOUT) {
+                expired.add(idle.removeLast());
+            }
+            if (!closed && idle.size() < MAX_IDLE) {
+                idle.addFirst(new Idle(physical));
+                kept = true;
+            }
+        }
+        for (Idle candidate : expired) {
+            close(candidate.connection);
+        }
+        if (!kept) close(physical);
+    }
+
+    /**
+     * @return the reset statements of the database, separated by ; in db.properties
+     */
+    private String[] resetStatements(Connection physical) throws SQLException {
+        if (reset == null) {
+            String sql = Migrate.getDBProperty("reset_" + Dialect.normalize(physical.getMetaData().getDatabaseProductName()));
+            reset = sql == null ? new String[0] : sql.split("\\s*;\\s*");
+        }
+        return reset;
+    }
+
+    private static boolean isUsable(Connection connection) {
+        try {
+            if (connection.isClosed()) return false;
+            // Connection.isValid() is JDBC 4, use it where the runtime has it
+            return isValid == null || (Boolean) isValid.invoke(connection, 2);
+        } catch (Exception e) {
+            return false;
+        } catch (AbstractMethodError e) {
+            // A driver older than the runtime
+            return true;
+        }
+    }
+
+    private static Method isValidMethod() {
+        try {
+            return Connection.class.getMethod("isValid", int.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static void close(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            Migrate.logger.log(Level.WARNING, "Couldn't close a database connection, we may be leaking them");
+        }
+    }
+
+    private static class Idle {
+        private final Connection connection;
+        private final long since = System.currentTimeMillis();
+
+        Idle(Connection connection) {
+            this.connection = connection;
+        }
+    }
+
+    /**
+     * Passes everything through to the physical connection except close(), which returns it to the pool.
+     */
+    private class Pooled implements InvocationHandler {
+        private final Connection physical;
+        private boolean closed;
+
+        Pooled(Connection physical) {
+            this.physical = physical;
+        }
+
+        public synchronized Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("close") && method.getParameterTypes().length == 0) {
+                if (!closed) {
+                    closed = true;
+                    release(physical);
+                }
+                return null;
+            }
+            if (name.equals("isClosed") && method.getParameterTypes().length == 0) {
+                return closed || physical.isClosed();
+            }
+            if (name.equals("equals") && args != null && args.length == 1) {
+                return proxy == args[0];
+            }
+            if (name.equals("hashCode") && method.getParameterTypes().length == 0) {
+                return System.identityHashCode(proxy);
+            }
+            if (closed) {
+                throw new SQLException("Connection has been returned to the pool");
+            }
+            try {
+                return method.invoke(physical, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.sampullara.db;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Counts the UTF-8 bytes of the characters read through it, so the progress through a script can be
+ * reported in bytes whether it is read from the classpath or mapped from a file.  The count can be read
+ * from any thread.
+ */
+class CountingReader extends FilterReader {
+
+    private volatile long bytes;
+
+    CountingReader(Reader in) {
+        super(in);
+    }
+
+    public int read() throws IOException {
+        int c = super.read();
+        if (c != -1) bytes += utf8Length((char) c);
+        return c;
+    }
+
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        int read = super.read(cbuf, off, len);
+        if (read > 0) {
+            long count = 0;
+            for (int i = off; i < off + read; i++) {
+                count += utf8Length(cbuf[i]);
+            }
+            bytes += count;
+        }
+        return read;
+    }
+
+    public long skip(long n) throws IOException {
+        char[] buffer = new char[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+            if (read == -1) break;
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * @return the bytes read so far
+     */
+    long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * A surrogate is half of a 4 byte character.
+     */
+    private static int utf8Length(char c) {
+        if (c < 0x80) return 1;
+        if (c < 0x800 || (c >= '\uD800' && c <= '\uDFFF')) return 2;
+        return 3;
+    }
+}
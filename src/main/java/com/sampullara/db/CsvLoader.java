@@ -0,0 +1,569 @@
+package com.sampullara.db;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Loads a CSV file into a table through the fastest path the database has: COPY on PostgreSQL, LOAD DATA
+ * LOCAL INFILE on MySQL, CSVREAD on H2 and multi-row INSERTs sent in JDBC batches everywhere else.
+ * <p/>
+ * Migrations named migratefromN.csv or migratetoN.csv are loaded this way, described by a manifest next
+ * to them with the same name plus ".properties", e.g. migratefrom7.csv.properties:
+ * <pre>
+ * table=countries
+ * # optional, the header names the columns otherwise
+ * columns=code,name
+ * header=true
+ * delimiter=,
+ * </pre>
+ * Fields may be quoted with " and quotes within them doubled.  An empty field that isn't quoted is NULL,
+ * as it is for COPY and CSVREAD, and a quoted one is an empty string, whichever way the file is loaded.  The
+ * file is read as UTF-8.
+ */
+public class CsvLoader {
+
+    /** the most parameters to put in one generic INSERT, drivers and databases have limits */
+    private static final int MAX_PARAMETERS = 1000;
+    /** the most INSERTs in one generic JDBC batch */
+    private static final int BATCH = 20;
+
+    private final String table;
+    private List<String> columns;
+    private boolean header = true;
+    private char delimiter = ',';
+
+    /**
+     * @param table the table to load
+     */
+    public CsvLoader(String table) {
+        this.table = table;
+    }
+
+    /**
+     * Create a loader from the manifest of a CSV migration.
+     *
+     * @param manifest the properties of the manifest
+     * @param name     the name of the manifest, for errors
+     * @return the loader
+     * @throws MigrationException if the manifest is incomplete
+     */
+    static CsvLoader parse(Properties manifest, String name) throws MigrationException {
+        String table = manifest.getProperty("table");
+        if (table == null) {
+            throw new MigrationException("The manifest needs a table: " + name);
+        }
+        CsvLoader loader = new CsvLoader(table.trim());
+        String columns = manifest.getProperty("columns");
+        if (columns != null) {
+            loader.setColumns(Arrays.asList(columns.trim().split("\\s*,\\s*")));
+        }
+        loader.setHeader(Boolean.valueOf(manifest.getProperty("header", "true").trim()));
+        String delimiter = manifest.getProperty("delimiter", ",");
+        if (delimiter.length() != 1) {
+            throw new MigrationException("The delimiter must be a single character: " + name);
+        }
+        loader.setDelimiter(delimiter.charAt(0));
+        return loader;
+    }
+
+    /**
+     * Load the CSV file, which is either in the classpath or relative to the current directory.
+     *
+     * @param conn    the connection to load on, the rows are committed with the migration
+     * @param csvName the name of the resource or file
+     * @param dialect the dialect of the database, or null to use generic INSERTs
+     * @return the number of rows loaded
+     * @throws MigrationException if the file can't be read or the load fails
+     */
+    public long load(Connection conn, String csvName, Dialect dialect) throws MigrationException {
+        MigrationListener listener = MigrationListeners.current();
+        String name = dialect == null ? "" : dialect.getName();
+        String description = "LOAD " + csvName + " INTO " + table;
+        listener.statementStarted(csvName, 0, description);
+        long start = System.nanoTime();
+        long rows;
+        try {
+            if (name.equals("postgresql") && copyAvailable(conn)) {
+                rows = copy(conn, csvName);
+            } else if (name.equals("mysql")) {
+                rows = loadData(conn, csvName);
+            } else if (name.equals("h2")) {
+                rows = csvRead(conn, csvName);
+            } else {
+                rows = insert(conn, csvName);
+            }
+        } catch (SQLException e) {
+            listener.statementFinished(csvName, 0, description, System.nanoTime() - start, -1, e);
+            throw new MigrationException("Failed to load " + csvName + " into " + table, e);
+        } catch (IOException e) {
+            listener.statementFinished(csvName, 0, description, System.nanoTime() - start, -1, e);
+            throw new MigrationException("Failed to read " + csvName, e);
+        } catch (MigrationException e) {
+            listener.statementFinished(csvName, 0, description, System.nanoTime() - start, -1, e);
+            throw e;
+        }
+        listener.statementFinished(csvName, 0, description, System.nanoTime() - start, (int) Math.min(rows, Integer.MAX_VALUE), null);
+        Migrate.logger.info("Loaded " + rows + " rows from " + csvName + " into " + table);
+        return rows;
+    }
+
+    /**
+     * The CopyManager is reached by reflection so the PostgreSQL driver isn't needed to build or run against
+     * other databases.  The connection may be wrapped, e.g. by our pool, so it is unwrapped if it can be.
+     */
+    private static Object pgConnection(Connection conn) {
+        try {
+            Class<?> pg = Class.forName("org.postgresql.PGConnection", false, conn.getClass().getClassLoader());
+            if (pg.isInstance(conn)) return conn;
+            return Connection.class.getMethod("unwrap", Class.class).invoke(conn, pg);
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (NoSuchMethodException e) {
+            // Drivers written before JDBC 4
+            return null;
+        } catch (IllegalAccessException e) {
+            return null;
+        } catch (InvocationTargetException e) {
+            return null;
+        } catch (AbstractMethodError e) {
+            return null;
+        }
+    }
+
+    private static boolean copyAvailable(Connection conn) {
+        return pgConnection(conn) != null;
+    }
+
+    private long copy(Connection conn, String csvName) throws IOException, SQLException, MigrationException {
+        StringBuilder sql = new StringBuilder("COPY ").append(table);
+        if (columns != null) sql.append(" (").append(join(columns, ", ")).append(")");
+        sql.append(" FROM STDIN WITH CSV");
+        if (header) sql.append(" HEADER");
+        sql.append(" DELIMITER '").append(delimiter == '\'' ? "''" : String.valueOf(delimiter)).append("'");
+        Reader reader = open(csvName);
+        try {
+            Object pg = pgConnection(conn);
+            Object copyManager = pg.getClass().getMethod("getCopyAPI").invoke(pg);
+            Object rows = copyManager.getClass().getMethod("copyIn", String.class, Reader.class)
+                    .invoke(copyManager, sql.toString(), reader);
+            return ((Number) rows).longValue();
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) throw (SQLException) cause;
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new MigrationException("COPY failed: " + sql, cause);
+        } catch (NoSuchMethodException e) {
+            throw new MigrationException("The PostgreSQL driver has no CopyManager", e);
+        } catch (IllegalAccessException e) {
+            throw new MigrationException("The PostgreSQL driver has no CopyManager", e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * The driver has to allow it, with allowLoadLocalInfile=true on Connector/J.  LOAD DATA can't tell a quoted
+     * empty field from an unquoted one and only ends lines at \n, so the file is rewritten for it first, see
+     * writeForLoadData().
+     */
+    private long loadData(Connection conn, String csvName) throws IOException, SQLException, MigrationException {
+        File file = File.createTempFile("dbmigrate", ".csv");
+        file.deleteOnExit();
+        try {
+            List<String> names;
+            Reader reader = open(csvName);
+            try {
+                CsvReader csv = new CsvReader(reader, delimiter);
+                names = columns;
+                if (header) {
+                    List<String> first = csv.next();
+                    if (names == null) names = first;
+                }
+                if (names == null || names.isEmpty()) {
+                    throw new MigrationException("No columns for " + csvName + ", give them in the manifest or a header");
+                }
+                Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+                try {
+                    writeForLoadData(csv, names.size(), csvName, writer);
+                } finally {
+                    writer.close();
+                }
+            } finally {
+                reader.close();
+            }
+            // The default escape character and line terminator, \ and \n
+            String sql = "LOAD DATA LOCAL INFILE " + quote(file.getAbsolutePath()) + " INTO TABLE " + table +
+                    " CHARACTER SET utf8 FIELDS TERMINATED BY ',' OPTIONALLY ENCLOSED BY '\"' (" + join(names, ", ") + ")";
+            Statement st = conn.createStatement();
+            try {
+                return st.executeUpdate(sql);
+            } finally {
+                st.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Write the records left in a CSV file the way LOAD DATA reads them with its default escape character:
+     * NULL as an unquoted \N, every other field quoted with its quotes doubled and its backslashes escaped,
+     * and every record ended by \n, whatever ended it in the file.
+     *
+     * @param csv     the records
+     * @param fields  how many fields each record has
+     * @param csvName the name of the file, for errors
+     * @param writer  where to write them
+     * @throws MigrationException if a record has another number of fields
+     */
+    static void writeForLoadData(CsvReader csv, int fields, String csvName, Writer writer)
+            throws IOException, MigrationException {
+        List<String> row;
+        while ((row = csv.next()) != null) {
+            if (row.size() != fields) {
+                throw new MigrationException(csvName + ":\nExpected " + fields + " fields at line " +
+                        csv.getLineNumber() + " but found " + row.size());
+            }
+            for (int i = 0; i < row.size(); i++) {
+                if (i > 0) writer.write(',');
+                String value = row.get(i);
+                if (value == null) {
+                    writer.write("\\N");
+                } else {
+                    writer.write('"');
+                    writer.write(value.replace("\\", "\\\\").replace("\"", "\"\""));
+                    writer.write('"');
+                }
+            }
+            writer.write('\n');
+        }
+    }
+
+    private long csvRead(Connection conn, String csvName) throws IOException, SQLException, MigrationException {
+        File file = onDisk(csvName);
+        boolean copied = file == null;
+        if (copied) file = copy(csvName);
+        try {
+            List<String> names = columns != null ? columns : readHeader(csvName);
+            String columnNames = "NULL";
+            if (!header) {
+                StringBuilder generated = new StringBuilder();
+                for (int i = 0; i < names.size(); i++) {
+                    if (i > 0) generated.append(delimiter);
+                    generated.append("C").append(i);
+                }
+                columnNames = quote(generated.toString());
+            }
+            String sql = "INSERT INTO " + table + " (" + join(names, ", ") + ") SELECT * FROM CSVREAD(" +
+                    quote(file.getAbsolutePath()) + ", " + columnNames + ", 'UTF-8', " +
+                    quote(String.valueOf(delimiter)) + ")";
+            Statement st = conn.createStatement();
+            try {
+                return st.executeUpdate(sql);
+            } finally {
+                st.close();
+            }
+        } finally {
+            if (copied) file.delete();
+        }
+    }
+
+    /**
+     * The generic path, INSERTs of as many rows as fit in MAX_PARAMETERS sent in batches.
+     */
+    private long insert(Connection conn, String csvName) throws IOException, SQLException, MigrationException {
+        Reader reader = open(csvName);
+        try {
+            CsvReader csv = new CsvReader(reader, delimiter);
+            List<String> names = columns;
+            if (header) {
+                List<String> first = csv.next();
+                if (names == null) names = first;
+            }
+            if (names == null || names.isEmpty()) {
+                throw new MigrationException("No columns for " + csvName + ", give them in the manifest or a header");
+            }
+            int rowsPerInsert = Math.max(1, MAX_PARAMETERS / names.size());
+            List<List<String>> rows = new ArrayList<List<String>>(rowsPerInsert);
+            PreparedStatement ps = conn.prepareStatement(insertSQL(names, rowsPerInsert));
+            long total = 0;
+            try {
+                int batched = 0;
+                List<String> row;
+                while ((row = csv.next()) != null) {
+                    if (row.size() != names.size()) {
+                        throw new MigrationException(csvName + ":\nExpected " + names.size() + " fields at line " +
+                                csv.getLineNumber() + " but found " + row.size());
+                    }
+                    rows.add(row);
+                    if (rows.size() == rowsPerInsert) {
+                        bind(ps, rows);
+                        ps.addBatch();
+                        total += rows.size();
+                        rows.clear();
+                        if (++batched == BATCH) {
+                            ps.executeBatch();
+                            batched = 0;
+                        }
+                    }
+                }
+                if (batched > 0) ps.executeBatch();
+            } finally {
+                ps.close();
+            }
+            if (!rows.isEmpty()) {
+                ps = conn.prepareStatement(insertSQL(names, rows.size()));
+                try {
+                    bind(ps, rows);
+                    ps.executeUpdate();
+                    total += rows.size();
+                } finally {
+                    ps.close();
+                }
+            }
+            return total;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private String insertSQL(List<String> names, int rows) {
+        StringBuilder values = new StringBuilder("(");
+        for (int i = 0; i < names.size(); i++) {
+            values.append(i == 0 ? "?" : ", ?");
+        }
+        values.append(")");
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table)
+                .append(" (").append(join(names, ", ")).append(") VALUES ");
+        for (int i = 0; i < rows; i++) {
+            if (i > 0) sql.append(", ");
+            sql.append(values);
+        }
+        return sql.toString();
+    }
+
+    private static void bind(PreparedStatement ps, List<List<String>> rows) throws SQLException {
+        int index = 1;
+        for (List<String> row : rows) {
+            for (String value : row) {
+                if (value == null) {
+                    ps.setNull(index++, Types.VARCHAR);
+                } else {
+                    ps.setString(index++, value);
+                }
+            }
+        }
+    }
+
+    private List<String> readHeader(String csvName) throws IOException, MigrationException {
+        if (!header) {
+            throw new MigrationException("No columns for " + csvName + ", give them in the manifest or a header");
+        }
+        Reader reader = open(csvName);
+        try {
+            List<String> names = new CsvReader(reader, delimiter).next();
+            if (names == null) throw new MigrationException("No header in " + csvName);
+            return names;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static Reader open(String csvName) throws IOException, MigrationException {
+        URL url = resource(csvName);
+        InputStream is;
+        if (url != null) {
+            is = url.openStream();
+        } else {
+            File file = new File(csvName);
+            if (!file.exists()) throw new MigrationException("Could not find " + csvName);
+            is = new FileInputStream(file);
+        }
+        return new BufferedReader(new InputStreamReader(is, "UTF-8"));
+    }
+
+    /**
+     * @return the CSV file, if it isn't in a JAR
+     */
+    private static File onDisk(String csvName) throws MigrationException {
+        URL url = resource(csvName);
+        if (url == null) {
+            File file = new File(csvName);
+            if (!file.exists()) throw new MigrationException("Could not find " + csvName);
+            return file;
+        }
+        if ("file".equals(url.getProtocol())) try {
+            return new File(url.toURI());
+        } catch (URISyntaxException e) {
+            // Copy it instead
+        }
+        return null;
+    }
+
+    /**
+     * The loaders that read the file themselves need it on disk, so resources in JARs are copied to a
+     * temporary file first, which the caller deletes.
+     */
+    private static File copy(String csvName) throws IOException {
+        File file = File.createTempFile("dbmigrate", ".csv");
+        file.deleteOnExit();
+        InputStream is = resource(csvName).openStream();
+        try {
+            OutputStream os = new FileOutputStream(file);
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = is.read(buffer)) != -1) {
+                    os.write(buffer, 0, read);
+                }
+            } finally {
+                os.close();
+            }
+        } finally {
+            is.close();
+        }
+        return file;
+    }
+
+    private static URL resource(String csvName) {
+        ClassLoader context = Thread.currentThread().getContextClassLoader();
+        URL url = context == null ? null : context.getResource(csvName);
+        return url != null ? url : Migrate.class.getClassLoader().getResource(csvName);
+    }
+
+    private static String quote(String value) {
+        return "'" + value.replace("'", "''") + "'";
+    }
+
+    private static String join(List<String> values, String separator) {
+        StringBuilder sb = new StringBuilder();
+        for (String value : values) {
+            if (sb.length() > 0) sb.append(separator);
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param columns the columns of the table, in the order of the fields, or null to take them from the header
+     */
+    public void setColumns(List<String> columns) {
+        this.columns = columns;
+    }
+
+    /**
+     * @param header true if the first line names the columns, the default
+     */
+    public void setHeader(boolean header) {
+        this.header = header;
+    }
+
+    /**
+     * @param delimiter the character between fields, a comma by default
+     */
+    public void setDelimiter(char delimiter) {
+        this.delimiter = delimiter;
+    }
+
+    /**
+     * Reads one record at a time, including records with quoted line breaks.
+     */
+    static class CsvReader {
+        private final Reader reader;
+        private final char delimiter;
+        private int lineNumber = 1;
+        private int peeked = -2;
+
+        CsvReader(Reader reader, char delimiter) {
+            this.reader = reader;
+            this.delimiter = delimiter;
+        }
+
+        /**
+         * @return the fields of the next record, null for empty unquoted fields, or null at the end
+         */
+        List<String> next() throws IOException, MigrationException {
+            int c = read();
+            // Skip blank lines
+            while (c == '\r' || c == '\n') {
+                if (c == '\n') lineNumber++;
+                c = read();
+            }
+            if (c == -1) return null;
+            List<String> fields = new ArrayList<String>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            while (true) {
+                if (c == '"' && field.length() == 0 && !quoted) {
+                    quoted = true;
+                    while (true) {
+                        c = read();
+                        if (c == -1) throw new MigrationException("Unterminated quote at line " + lineNumber);
+                        if (c == '"') {
+                            c = read();
+                            if (c != '"') break;
+                        }
+                        if (c == '\n') lineNumber++;
+                        field.append((char) c);
+                    }
+                    continue;
+                }
+                if (c == delimiter || c == '\n' || c == '\r' || c == -1) {
+                    fields.add(quoted || field.length() > 0 ? field.toString() : null);
+                    field.setLength(0);
+                    quoted = false;
+                    if (c == delimiter) {
+                        c = read();
+                        continue;
+                    }
+                    if (c == '\r') {
+                        c = read();
+                        if (c != '\n') peeked = c;
+                    }
+                    if (c == '\n') lineNumber++;
+                    return fields;
+                }
+                field.append((char) c);
+                c = read();
+            }
+        }
+
+        /**
+         * @return the line the reader has got to
+         */
+        int getLineNumber() {
+            return lineNumber;
+        }
+
+        private int read() throws IOException {
+            if (peeked != -2) {
+                int c = peeked;
+                peeked = -2;
+                return c;
+            }
+            return reader.read();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.sampullara.db;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+/**
+ * What we need to know about the database we are migrating, read from the connection metadata once and
+ * then reused for the rest of the run.  The lock and unlock statements from db.properties are bound to
+ * the version table here as well so they aren't looked up and rewritten on every use.  In them :table is
+ * the version table and :key a number derived from its name and the schema it is in, for advisory locks.
+ * Advisory locks are held by the whole database on PostgreSQL and the whole server on MySQL, so the key
+ * has to tell apart the version tables of tenants that have a schema each.  :channel is an identifier
+ * made from the same key, for LISTEN and NOTIFY, which don't accept a table qualified by its schema.
+ */
+public class Dialect {
+
+    private final String productName;
+    private final String productVersion;
+    private final String name;
+    private final boolean batchUpdates;
+    private final boolean transactionalDDL;
+    private final boolean savepoints;
+    private final String lockSQL;
+    private final String tryLockSQL;
+    private final String unlockSQL;
+    private final String listenSQL;
+    private final String notifySQL;
+    private final String lagSQL;
+    private final String explainSQL;
+
+    /**
+     * Read the dialect of the database behind the connection.
+     *
+     * @param conn      a connection to the database
+     * @param db        the database specific statements, keyed by statement + "_" + database name
+     * @param tablename the name of the version table
+     * @return the dialect
+     * @throws MigrationException if the metadata of the database can't be read
+     */
+    static Dialect resolve(Connection conn, Properties db, String tablename) throws MigrationException {
+        try {
+            return new Dialect(conn, db, tablename);
+        } catch (SQLException e) {
+            throw new MigrationException("Could not get database name", e);
+        }
+    }
+
+    private Dialect(Connection conn, Properties db, String tablename) throws SQLException {
+        DatabaseMetaData metaData = conn.getMetaData();
+        productName = metaData.getDatabaseProductName();
+        productVersion = metaData.getDatabaseProductVersion();
+        name = normalize(productName);
+        int scope = scope(conn, db.getProperty("schema_" + name), tablename).hashCode();
+        String key = String.valueOf(scope);
+        // The table may be qualified by its schema, which isn't a valid channel name
+        String channel = "dbmigrate_" + Integer.toHexString(scope);
+        batchUpdates = metaData.supportsBatchUpdates();
+        transactionalDDL = metaData.supportsDataDefinitionAndDataManipulationTransactions() &&
+                !metaData.dataDefinitionCausesTransactionCommit();
+        savepoints = supportsSavepoints(metaData);
+        lockSQL = bind(db.getProperty("lock_" + name), tablename, key, channel);
+        tryLockSQL = bind(db.getProperty("trylock_" + name), tablename, key, channel);
+        unlockSQL = bind(db.getProperty("unlock_" + name), tablename, key, channel);
+        listenSQL = bind(db.getProperty("listen_" + name), tablename, key, channel);
+        notifySQL = bind(db.getProperty("notify_" + name), tablename, key, channel);
+        lagSQL = bind(db.getProperty("lag_" + name), tablename, key, channel);
+        explainSQL = db.getProperty("explain_" + name);
+    }
+
+    /**
+     * The name used for database specific migrations and statements, the product name in lower case
+     * without spaces or punctuation, e.g. "mysql", "postgresql" or "h2".
+     *
+     * @param productName the product name reported by the driver
+     * @return the normalized name
+     */
+    static String normalize(String productName) {
+        return productName.trim().replaceAll("[ -._/=+]", "").toLowerCase();
+    }
+
+    private static String bind(String sql, String tablename, String key, String channel) {
+        return sql == null ? null : sql.replace(":key", key).replace(":channel", channel).replace(":table", tablename);
+    }
+
+    /**
+     * String.hashCode() is the same on every JVM, so every process derives the same key from the scope.
+     *
+     * @param schemaSQL a query for the schema the connection works in, or null if the database has none
+     * @return the version table qualified by its schema
+     */
+    private static String scope(Connection conn, String schemaSQL, String tablename) throws SQLException {
+        if (schemaSQL == null) return tablename;
+        Statement st = conn.createStatement();
+        try {
+            ResultSet rs = st.executeQuery(schemaSQL);
+            String schema = rs.next() ? rs.getString(1) : null;
+            return schema == null ? tablename : schema + "." + tablename;
+        } finally {
+            st.close();
+        }
+    }
+
+    private static boolean supportsSavepoints(DatabaseMetaData metaData) {
+        try {
+            return metaData.supportsSavepoints();
+        } catch (SQLException e) {
+            return false;
+        } catch (AbstractMethodError e) {
+            // Drivers written before JDBC 3
+            return false;
+        }
+    }
+
+    /**
+     * @return the normalized database name, see normalize()
+     */
+    public String getName() {
+        return name;
+    }
+
+    public String getProductName() {
+        return productName;
+    }
+
+    public String getProductVersion() {
+        return productVersion;
+    }
+
+    public boolean supportsBatchUpdates() {
+        return batchUpdates;
+    }
+
+    /**
+     * @return true if DDL can be rolled back along with the rest of a migration
+     */
+    public boolean supportsTransactionalDDL() {
+        return transactionalDDL;
+    }
+
+    public boolean supportsSavepoints() {
+        return savepoints;
+    }
+
+    /**
+     * @return the statement that locks the version table, or null if the database has none
+     */
+    public String getLockSQL() {
+        return lockSQL;
+    }
+
+    /**
+     * @return a query for an advisory lock that answers true or 1 if it got the lock, without waiting, or
+     *         null if the database has none
+     */
+    public String getTryLockSQL() {
+        return tryLockSQL;
+    }
+
+    /**
+     * @return the statement that releases the lock, or null if committing releases it
+     */
+    public String getUnlockSQL() {
+        return unlockSQL;
+    }
+
+    /**
+     * @return the statement that subscribes a connection to changes of the version table, or null if the
+     *         database can't notify us
+     */
+    public String getListenSQL() {
+        return listenSQL;
+    }
+
+    /**
+     * @return the statement that tells listening connections the version table changed, or null
+     */
+    public String getNotifySQL() {
+        return notifySQL;
+    }
+
+    /**
+     * @return a query for how far, in seconds, the replicas of the database are behind, or null
+     */
+    public String getLagSQL() {
+        return lagSQL;
+    }
+
+    /**
+     * @return what to put before a statement to have its plan returned without running it, or null
+     */
+    public String getExplainSQL() {
+        return explainSQL;
+    }
+
+    public String toString() {
+        return productName + " " + productVersion;
+    }
+}
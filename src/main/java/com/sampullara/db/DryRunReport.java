@@ -0,0 +1,285 @@
+package com.sampullara.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * What migrate() would do, from Migrate.dryRun(): the pending steps and, for SQL scripts, how many
+ * statements they have, how many rows their data changes are estimated to touch and which of their
+ * statements may rewrite a whole table.
+ * <p/>
+ * Row estimates come from the database's EXPLAIN, where db.properties has one for it, and are only as good
+ * as its statistics.  Statements on tables that earlier pending steps create can't be explained, nor can
+ * anything on databases whose plans have no row counts, such as H2; they are counted as unestimated.  Which
+ * statements rewrite a table depends on the database and its version, so the statements listed are those
+ * that may, e.g. changing the type of a column or adding one with a default.
+ * <p/>
+ * Classes, Groovy scripts and CSV loads are listed but can't be looked into.
+ */
+public class DryRunReport {
+
+    /** statements that change data and can be explained */
+    private static final Pattern DML =
+            Pattern.compile("^\\s*(INSERT|UPDATE|DELETE|MERGE|REPLACE)\\b.*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    /** statements that may copy the whole table on some databases */
+    private static final Pattern REWRITE = Pattern.compile("^\\s*(" +
+            "ALTER\\s+TABLE\\b.*\\b(" +
+            "ALTER\\s+(COLUMN\\s+)?\\S+\\s+(SET\\s+DATA\\s+)?TYPE\\b|" +
+            "MODIFY\\b|CHANGE\\b|" +
+            "ADD\\s+(COLUMN\\s+)?\\S+\\s+.*\\bDEFAULT\\b|" +
+            "DROP\\s+(COLUMN\\b|PRIMARY\\s+KEY\\b)|" +
+            "ADD\\s+(CONSTRAINT\\s+\\S+\\s+)?PRIMARY\\s+KEY\\b|" +
+            "ENGINE\\s*=|CONVERT\\s+TO\\b)|" +
+            "CLUSTER\\b|VACUUM\\s+FULL\\b|OPTIMIZE\\s+TABLE\\b).*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    /** the top row estimate in a PostgreSQL style plan, e.g. (cost=0.00..35.50 rows=2550 width=4) */
+    private static final Pattern PLAN_ROWS = Pattern.compile("\\brows=(\\d+)");
+
+    private final int dbVersion;
+    private final List<Step> steps;
+
+    DryRunReport(int dbVersion, List<Step> steps) {
+        this.dbVersion = dbVersion;
+        this.steps = Collections.unmodifiableList(steps);
+    }
+
+    /**
+     * Look into a pending step.
+     *
+     * @param conn    a connection to explain statements on, in auto commit so that one that can't be
+     *                explained doesn't abort the others
+     * @param step    the step
+     * @param dialect the dialect of the database
+     * @return what we found
+     * @throws MigrationException if a script can't be read
+     */
+    static Step analyze(Connection conn, MigrationStep step, Dialect dialect) throws MigrationException {
+        Step result = new Step(step);
+        if (step.getType() != MigrationStep.Type.SQL) return result;
+        result.analyzed = true;
+        Reader reader = open(step.getName());
+        try {
+            SqlStatementTokenizer tokenizer = new SqlStatementTokenizer(reader);
+            while (tokenizer.hasNext()) {
+                String statement = tokenizer.next();
+                result.statements++;
+                if (REWRITE.matcher(statement).matches()) {
+                    result.rewrites.add(statement);
+                }
+                if (DML.matcher(statement).matches()) {
+                    result.dml++;
+                    long rows = explain(conn, dialect, statement);
+                    if (rows >= 0) {
+                        result.rows += rows;
+                    } else {
+                        result.unestimated++;
+                    }
+                }
+            }
+        } catch (SqlStatementTokenizer.ReadException e) {
+            throw new MigrationException(step.getName() + ":\nFailed to read script at line: " + e.getLineNumber(), e.getCause());
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // Ignore exceptions on close
+            }
+        }
+        return result;
+    }
+
+    private static Reader open(String scriptName) throws MigrationException {
+        try {
+            InputStream is = Thread.currentThread().getContextClassLoader().getResourceAsStream(scriptName);
+            if (is == null) is = Migrate.class.getClassLoader().getResourceAsStream(scriptName);
+            if (is != null) return new InputStreamReader(is, "UTF-8");
+            return new MappedFileReader(new File(scriptName));
+        } catch (IOException e) {
+            throw new MigrationException("Found script but it is unreadable: " + scriptName, e);
+        }
+    }
+
+    /**
+     * @return the estimated rows, or -1 if there is no estimate
+     */
+    private static long explain(Connection conn, Dialect dialect, String statement) {
+        if (dialect.getExplainSQL() == null) return -1;
+        try {
+            Statement st = conn.createStatement();
+            try {
+                return estimate(st.executeQuery(dialect.getExplainSQL() + " " + statement));
+            } finally {
+                st.close();
+            }
+        } catch (SQLException e) {
+            Migrate.logger.fine("Could not explain " + statement + ": " + e);
+            return -1;
+        }
+    }
+
+    /**
+     * Find the row estimate in a plan: the sum of a rows column, as MySQL has one per table, or the rows of
+     * the topmost node that has any in a plan in text, as PostgreSQL's.
+     *
+     * @param plan the result of EXPLAIN
+     * @return the estimated rows, or -1 if the plan doesn't say
+     * @throws SQLException if the plan can't be read
+     */
+    static long estimate(ResultSet plan) throws SQLException {
+        try {
+            ResultSetMetaData metaData = plan.getMetaData();
+            int rowsColumn = 0;
+            for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                if (metaData.getColumnLabel(i).equalsIgnoreCase("rows")) rowsColumn = i;
+            }
+            long rows = -1;
+            while (plan.next()) {
+                if (rowsColumn > 0) {
+                    long value = plan.getLong(rowsColumn);
+                    if (!plan.wasNull()) rows = Math.max(rows, 0) + value;
+                } else if (rows <= 0) {
+                    // The Update, Insert or Delete node at the top returns no rows, the one below it has them
+                    String line = plan.getString(1);
+                    Matcher matcher = PLAN_ROWS.matcher(line == null ? "" : line);
+                    if (matcher.find()) rows = Long.parseLong(matcher.group(1));
+                }
+            }
+            return rows;
+        } finally {
+            plan.close();
+        }
+    }
+
+    /**
+     * @return the version of the database now
+     */
+    public int getDBVersion() {
+        return dbVersion;
+    }
+
+    /**
+     * @return the pending steps, in the order they would run
+     */
+    public List<Step> getSteps() {
+        return steps;
+    }
+
+    /**
+     * @return the statements in all the pending SQL scripts
+     */
+    public int getStatements() {
+        int statements = 0;
+        for (Step step : steps) statements += step.getStatements();
+        return statements;
+    }
+
+    /**
+     * @return the estimated rows touched by all the pending SQL scripts, not counting unestimated statements
+     */
+    public long getEstimatedRows() {
+        long rows = 0;
+        for (Step step : steps) rows += step.getEstimatedRows();
+        return rows;
+    }
+
+    /**
+     * @return the statements of all the pending SQL scripts that may rewrite a table
+     */
+    public List<String> getRewrites() {
+        List<String> rewrites = new ArrayList<String>();
+        for (Step step : steps) rewrites.addAll(step.getRewrites());
+        return rewrites;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(steps.size()).append(" pending migrations from version ").append(dbVersion).append("\n");
+        for (Step step : steps) {
+            sb.append("  ").append(step).append("\n");
+            for (String rewrite : step.getRewrites()) {
+                sb.append("    may rewrite table: ").append(rewrite.trim().replaceAll("\\s+", " ")).append("\n");
+            }
+        }
+        sb.append(getStatements()).append(" statements, ~").append(getEstimatedRows()).append(" rows, ")
+                .append(getRewrites().size()).append(" possible table rewrites");
+        return sb.toString();
+    }
+
+    /**
+     * One pending step.
+     */
+    public static class Step {
+        private final MigrationStep step;
+        private boolean analyzed;
+        private int statements;
+        private int dml;
+        private int unestimated;
+        private long rows;
+        private final List<String> rewrites = new ArrayList<String>();
+
+        Step(MigrationStep step) {
+            this.step = step;
+        }
+
+        public MigrationStep getStep() {
+            return step;
+        }
+
+        /**
+         * @return true if this is a SQL script that was looked into
+         */
+        public boolean isAnalyzed() {
+            return analyzed;
+        }
+
+        public int getStatements() {
+            return statements;
+        }
+
+        /**
+         * @return the statements that change data
+         */
+        public int getDataStatements() {
+            return dml;
+        }
+
+        /**
+         * @return the statements that change data that the database couldn't estimate
+         */
+        public int getUnestimated() {
+            return unestimated;
+        }
+
+        /**
+         * @return the estimated rows touched by the statements that could be estimated
+         */
+        public long getEstimatedRows() {
+            return rows;
+        }
+
+        /**
+         * @return the statements that may rewrite a table
+         */
+        public List<String> getRewrites() {
+            return rewrites;
+        }
+
+        public String toString() {
+            if (!analyzed) return step + " (not analyzed)";
+            return step + ": " + statements + " statements, " + dml + " changing data, ~" + rows + " rows" +
+                    (unestimated > 0 ? " (" + unestimated + " not estimated)" : "");
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.sampullara.db;
+
+import groovy.lang.GroovyClassLoader;
+import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.Phases;
+import org.codehaus.groovy.runtime.InvokerHelper;
+import org.codehaus.groovy.tools.GroovyClass;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * Compiles Groovy migration scripts and keeps the compiled classes, keyed by a hash of the script source and
+ * the Groovy version.  Scripts are read as UTF-8, like SQL scripts, whatever the platform charset.  Within a
+ * run each script is compiled at most once.  Each script is loaded by a classloader of its own, so classes of
+ * the same name declared by two scripts, e.g. a helper class Row, don't clash.  If a cache directory is
+ * given the compiled classes are also written there, so that a later run of an unchanged script skips
+ * compilation entirely.
+ * <p/>
+ * The directory holds one subdirectory per script hash containing the class files and a file named "main"
+ * with the name of the script class.  Entries are written to a temporary directory and renamed into place
+ * so that concurrent runs never see a partial entry.
+ */
+class GroovyScriptCache {
+
+    private static final String MAIN = "main";
+    private static final String ENCODING = "UTF-8";
+
+    private final File directory;
+    private final ClassLoader parent;
+    private final Map<String, Class<?>> classes = new HashMap<String, Class<?>>();
+
+    /**
+     * @param directory the directory to keep compiled scripts in between runs, or null to only cache them
+     *                  for the life of this instance
+     * @param parent    the classloader the scripts are compiled against and loaded from
+     */
+    GroovyScriptCache(File directory, ClassLoader parent) {
+        this.directory = directory;
+        this.parent = parent;
+    }
+
+    /**
+     * Get the compiled class of a script, compiling it only if it isn't already cached.
+     *
+     * @param is         the source of the script, closed when it has been read
+     * @param scriptName the name of the script, used in error messages
+     * @return the script class
+     * @throws MigrationException if the script can't be read or doesn't compile
+     */
+    Class<?> getScriptClass(InputStream is, String scriptName) throws MigrationException {
+        byte[] source;
+        try {
+            source = read(is);
+        } catch (IOException e) {
+            throw new MigrationException("Could not read script: " + scriptName, e);
+        }
+        String hash = Checksums.sha1(InvokerHelper.getVersion() + "/" + ENCODING, source);
+        Class<?> scriptClass = classes.get(hash);
+        if (scriptClass == null) {
+            Map<String, byte[]> compiled = directory == null ? null : load(hash);
+            if (compiled == null) {
+                compiled = compile(source, hash, scriptName);
+                if (directory != null) store(hash, compiled);
+            } else {
+                Migrate.logger.info("Using compiled script from cache: " + scriptName);
+            }
+            String main = decode(compiled.remove(MAIN));
+            ScriptClassLoader loader = new ScriptClassLoader(parent, compiled);
+            try {
+                scriptClass = loader.loadClass(main);
+            } catch (ClassNotFoundException e) {
+                throw new MigrationException("Compiled script class missing: " + main, e);
+            }
+            classes.put(hash, scriptClass);
+        }
+        return scriptClass;
+    }
+
+    private Map<String, byte[]> compile(byte[] source, String hash, String scriptName) throws MigrationException {
+        CompilerConfiguration configuration = new CompilerConfiguration();
+        configuration.setSourceEncoding(ENCODING);
+        CompilationUnit unit = new CompilationUnit(configuration, null, new GroovyClassLoader(parent));
+        unit.addSource("Migration" + hash + ".groovy", new ByteArrayInputStream(source));
+        try {
+            unit.compile(Phases.CLASS_GENERATION);
+        } catch (CompilationFailedException e) {
+            throw new MigrationException("Could not compile script: " + scriptName, e);
+        }
+        Map<String, byte[]> compiled = new HashMap<String, byte[]>();
+        for (Object generated : unit.getClasses()) {
+            GroovyClass groovyClass = (GroovyClass) generated;
+            compiled.put(groovyClass.getName(), groovyClass.getBytes());
+        }
+        compiled.put(MAIN, encode(unit.getFirstClassNode().getName()));
+        return compiled;
+    }
+
+    /**
+     * @return the compiled classes and main class name of the script, or null if it isn't in the directory
+     */
+    private Map<String, byte[]> load(String hash) {
+        File entry = new File(directory, hash);
+        File[] files = entry.listFiles();
+        if (files == null || !new File(entry, MAIN).exists()) return null;
+        Map<String, byte[]> compiled = new HashMap<String, byte[]>();
+        try {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(".class")) name = name.substring(0, name.length() - ".class".length());
+                compiled.put(name, read(new FileInputStream(file)));
+            }
+        } catch (IOException e) {
+            Migrate.logger.log(Level.WARNING, "Could not read cached script " + entry + ", recompiling: " + e);
+            return null;
+        }
+        return compiled;
+    }
+
+    private void store(String hash, Map<String, byte[]> compiled) {
+        File entry = new File(directory, hash);
+        File temp = new File(directory, hash + "." + System.nanoTime() + ".tmp");
+        try {
+            if (!temp.mkdirs()) throw new IOException("Could not create " + temp);
+            for (Map.Entry<String, byte[]> file : compiled.entrySet()) {
+                String name = file.getKey().equals(MAIN) ? MAIN : file.getKey() + ".class";
+                OutputStream os = new FileOutputStream(new File(temp, name));
+                try {
+                    os.write(file.getValue());
+                } finally {
+                    os.close();
+                }
+            }
+            // Another run may have stored the same script first, theirs is just as good
+            if (!temp.renameTo(entry) && !entry.exists()) {
+                throw new IOException("Could not rename " + temp + " to " + entry);
+            }
+        } catch (IOException e) {
+            Migrate.logger.log(Level.WARNING, "Could not cache compiled script in " + directory + ": " + e);
+        } finally {
+            delete(temp);
+        }
+    }
+
+    private static byte[] encode(String name) {
+        try {
+            return name.getBytes(ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is required by every JVM", e);
+        }
+    }
+
+    private static String decode(byte[] name) {
+        try {
+            return new String(name, ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is required by every JVM", e);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) for (File child : files) {
+            child.delete();
+        }
+        file.delete();
+    }
+
+    private static byte[] read(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                baos.write(buffer, 0, read);
+            }
+            return baos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Defines the compiled classes of one script, including the classes of its closures, on demand.
+     */
+    private static class ScriptClassLoader extends ClassLoader {
+        private final Map<String, byte[]> definitions;
+
+        ScriptClassLoader(ClassLoader parent, Map<String, byte[]> compiled) {
+            super(parent);
+            definitions = new HashMap<String, byte[]>(compiled);
+        }
+
+        protected synchronized Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] bytes = definitions.remove(name);
+            if (bytes == null) throw new ClassNotFoundException(name);
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.sampullara.db;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.logging.Level;
+
+/**
+ * Writes every event as a line of JSON, e.g.
+ * <pre>
+ * {"ts":1192000000000,"event":"statement_end","script":"migratefrom3.sql","line":12,"sql":"...","nanos":1200,"rows":1}
+ * </pre>
+ * so that a run can be replayed or loaded into other tools afterwards.  Each line is flushed as it is
+ * written, so the trace is complete up to the statement that is stuck.
+ */
+public class JsonTraceWriter implements MigrationListener {
+
+    private final Writer writer;
+    private boolean failed;
+
+    /**
+     * @param writer where to write the trace, closed by close()
+     */
+    public JsonTraceWriter(Writer writer) {
+        this.writer = writer;
+    }
+
+    public void runStarted(String database, int dbVersion) {
+        write(start("run_start").field("database", database).field("version", dbVersion));
+    }
+
+    public void runFinished(int dbVersion, boolean migrated, long nanos, Throwable failure) {
+        write(start("run_end").field("version", dbVersion).field("migrated", migrated).field("nanos", nanos)
+                .failure(failure));
+    }
+
+    public void stepStarted(MigrationStep step) {
+        write(start("step_start").step(step));
+    }
+
+    public void stepFinished(MigrationStep step, long nanos, Throwable failure) {
+        write(start("step_end").step(step).field("nanos", nanos).failure(failure));
+    }
+
+    public void statementStarted(String script, int lineNumber, String sql) {
+        write(start("statement_start").field("script", script).field("line", lineNumber).field("sql", sql));
+    }
+
+    public void statementFinished(String script, int lineNumber, String sql, long nanos, int rows, Throwable failure) {
+        write(start("statement_end").field("script", script).field("line", lineNumber).field("sql", sql)
+                .field("nanos", nanos).field("rows", rows).failure(failure));
+    }
+
+    public void lockAcquired(long nanos) {
+        write(start("lock_acquired").field("nanos", nanos));
+    }
+
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+    private static Line start(String event) {
+        return new Line().field("ts", System.currentTimeMillis()).field("event", event);
+    }
+
+    private synchronized void write(Line line) {
+        if (failed) return;
+        try {
+            writer.write(line.sb.append("}\n").toString());
+            writer.flush();
+        } catch (IOException e) {
+            // Only complain once, the migration carries on without a trace
+            failed = true;
+            Migrate.logger.log(Level.WARNING, "Could not write migration trace", e);
+        }
+    }
+
+    private static class Line {
+        private final StringBuilder sb = new StringBuilder("{");
+
+        Line field(String name, long value) {
+            name(name).append(value);
+            return this;
+        }
+
+        Line field(String name, boolean value) {
+            name(name).append(value);
+            return this;
+        }
+
+        Line field(String name, String value) {
+            StringBuilder sb = name(name);
+            if (value == null) {
+                sb.append("null");
+                return this;
+            }
+            sb.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"':
+                        sb.append("\\\"");
+                        break;
+                    case '\\':
+                        sb.append("\\\\");
+                        break;
+                    case '\n':
+                        sb.append("\\n");
+                        break;
+                    case '\r':
+                        sb.append("\\r");
+                        break;
+                    case '\t':
+                        sb.append("\\t");
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            String hex = Integer.toHexString(c);
+                            sb.append("\\u0000", 0, 6 - hex.length()).append(hex);
+                        } else {
+                            sb.append(c);
+                        }
+                }
+            }
+            sb.append('"');
+            return this;
+        }
+
+        Line step(MigrationStep step) {
+            return field("from", step.getFromVersion()).field("type", step.getType().name())
+                    .field("name", step.getName());
+        }
+
+        Line failure(Throwable failure) {
+            return failure == null ? this : field("error", failure.toString());
+        }
+
+        private StringBuilder name(String name) {
+            if (sb.length() > 1) sb.append(',');
+            return sb.append('"').append(name).append("\":");
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package com.sampullara.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Takes the lock that keeps two processes from migrating the same database at once, giving up after a
+ * timeout instead of holding a connection forever when many processes start together.
+ * <p/>
+ * In order of preference the lock is:
+ * <ol>
+ * <li>an advisory lock, where db.properties has a trylock statement for the database, e.g.
+ * pg_try_advisory_lock on PostgreSQL and GET_LOCK on MySQL.  It is tried repeatedly with jittered,
+ * exponential backoff until the timeout.  These don't need the version table, so they also protect the
+ * bootstrap from version 0.</li>
+ * <li>the lock statement, e.g. an UPDATE of the version table on H2, with the remaining time as its query
+ * timeout.</li>
+ * <li>when there is no version table yet to lock, or the migration is online and commits as it goes, which
+ * would release a table lock, a row in a separate lock table, inserted on its own connection and deleted
+ * when the migration is done.  The row is touched every HEARTBEAT while it is held
+ * and rows that haven't been touched for STALE, left behind by a process that died, are broken.</li>
+ * </ol>
+ * Advisory locks and lock rows are released after the migration commits, so the next process to get the
+ * lock always sees the new version.
+ * <p/>
+ * The lock row is also the lease for coordinated migrations, see tryLease().
+ */
+class LockManager {
+
+    /** the first backoff, doubled on each attempt up to MAX_BACKOFF */
+    private static final long MIN_BACKOFF = 50;
+    private static final long MAX_BACKOFF = 2000;
+    /** lock rows not touched for this long are assumed to belong to a process that died */
+    private static final long STALE = 2 * 60 * 1000;
+    /** how often a held lock row is touched */
+    private static final long HEARTBEAT = STALE / 4;
+
+    private static final Random random = new Random();
+
+    private final Migrate migrate;
+    private final Dialect dialect;
+    private final MigrationListener listener;
+    private final long timeout;
+    private final boolean online;
+    private final String owner = UUID.randomUUID().toString();
+
+    private boolean advisory;
+    private boolean locked;
+    private Connection lockRowConnection;
+    private Timer heartbeat;
+
+    /**
+     * @param migrate  the migration to lock for
+     * @param dialect  the dialect of its database
+     * @param listener told how long we waited
+     * @param timeout  how long to wait for the lock in milliseconds
+     * @param online   true if the migration commits before it is done
+     */
+    LockManager(Migrate migrate, Dialect dialect, MigrationListener listener, long timeout, boolean online) {
+        this.migrate = migrate;
+        this.dialect = dialect;
+        this.listener = listener;
+        this.timeout = timeout;
+        this.online = online;
+    }
+
+    /**
+     * Take the lock, if we don't already hold it.  Called again after the bootstrap migration to lock the
+     * version table it created.
+     *
+     * @param conn      the connection of the migration
+     * @param dbVersion the version of the database, 0 if there is no version table yet
+     * @throws MigrationException if the lock can't be taken within the timeout
+     */
+    void lock(Connection conn, int dbVersion) throws MigrationException {
+        if (advisory || locked) return;
+        long start = System.nanoTime();
+        long deadline = System.currentTimeMillis() + timeout;
+        try {
+            if (dialect.getTryLockSQL() != null) {
+                tryLock(conn, deadline);
+                advisory = true;
+            } else if (dbVersion > 0 && !online) {
+                if (dialect.getLockSQL() != null) {
+                    blockingLock(conn, deadline);
+                    locked = true;
+                }
+            } else if (lockRowConnection == null) {
+                lockRow(deadline);
+            } else {
+                return;
+            }
+        } catch (SQLException e) {
+            throw new MigrationException("Could not lock database", e);
+        }
+        long waited = System.nanoTime() - start;
+        if (TimeUnit.NANOSECONDS.toMillis(waited) >= 1000) {
+            Migrate.logger.info("Waited " + TimeUnit.NANOSECONDS.toMillis(waited) + "ms for the migration lock on " + migrate.getTablename());
+        }
+        listener.lockAcquired(waited);
+    }
+
+    /**
+     * Release the advisory lock or lock row, if held.  Table locks are released by the commit.  Failures
+     * are logged, the lock will go away with the connection.
+     *
+     * @param conn the connection of the migration, after it has committed
+     */
+    synchronized void release(Connection conn) {
+        if (advisory) try {
+            execute(conn, dialect.getUnlockSQL());
+        } catch (SQLException e) {
+            Migrate.logger.log(Level.WARNING, "Could not release the migration lock", e);
+        } finally {
+            advisory = false;
+        }
+        locked = false;
+        if (heartbeat != null) {
+            heartbeat.cancel();
+            heartbeat = null;
+        }
+        if (lockRowConnection != null) try {
+            PreparedStatement ps = lockRowConnection.prepareStatement("DELETE FROM " + lockTable() + " WHERE id = 1 AND owner = ?");
+            try {
+                ps.setString(1, owner);
+                ps.executeUpdate();
+            } finally {
+                ps.close();
+            }
+        } catch (SQLException e) {
+            Migrate.logger.log(Level.WARNING, "Could not delete the lock row from " + lockTable(), e);
+        } finally {
+            close(lockRowConnection);
+            lockRowConnection = null;
+        }
+    }
+
+    private void tryLock(Connection conn, long deadline) throws SQLException, MigrationException {
+        for (int attempt = 0; ; attempt++) {
+            Statement st = conn.createStatement();
+            try {
+                ResultSet rs = st.executeQuery(dialect.getTryLockSQL());
+                if (rs.next() && isTrue(rs.getObject(1))) return;
+            } finally {
+                st.close();
+            }
+            backoff(attempt, deadline);
+        }
+    }
+
+    /**
+     * PostgreSQL answers with a boolean, MySQL with 1, 0 or NULL.
+     */
+    private static boolean isTrue(Object result) {
+        if (result instanceof Boolean) return (Boolean) result;
+        return result instanceof Number && ((Number) result).intValue() == 1;
+    }
+
+    private void blockingLock(Connection conn, long deadline) throws SQLException, MigrationException {
+        Statement st = conn.createStatement();
+        try {
+            st.setQueryTimeout((int) Math.max(1, (deadline - System.currentTimeMillis() + 999) / 1000));
+            st.execute(dialect.getLockSQL());
+        } catch (SQLException e) {
+            if (System.currentTimeMillis() >= deadline) throw timedOut();
+            throw e;
+        } finally {
+            st.close();
+        }
+    }
+
+    private void lockRow(long deadline) throws MigrationException, SQLException {
+        for (int attempt = 0; !tryLease(); attempt++) {
+            backoff(attempt, deadline);
+        }
+    }
+
+    /**
+     * Make one attempt at the lock row, without waiting.  Coordinated migrations use this as a lease: the
+     * process that gets it migrates while the others watch the version.
+     *
+     * @return true if we now hold the lock row
+     * @throws MigrationException if the database can't be connected to
+     * @throws SQLException       if the lock table can't be read
+     */
+    synchronized boolean tryLease() throws MigrationException, SQLException {
+        if (lockRowConnection != null) return true;
+        Connection conn = migrate.openConnection();
+        try {
+            conn.setAutoCommit(true);
+            createLockTable(conn);
+            PreparedStatement ps = conn.prepareStatement("DELETE FROM " + lockTable() + " WHERE id = 1 AND locked_at < ?");
+            try {
+                ps.setLong(1, System.currentTimeMillis() - STALE);
+                if (ps.executeUpdate() > 0) {
+                    Migrate.logger.warning("Broke a stale migration lock in " + lockTable());
+                }
+            } finally {
+                ps.close();
+            }
+            ps = conn.prepareStatement("INSERT INTO " + lockTable() + " (id, owner, locked_at) VALUES (1, ?, ?)");
+            try {
+                ps.setString(1, owner);
+                ps.setLong(2, System.currentTimeMillis());
+                ps.executeUpdate();
+            } catch (SQLException e) {
+                // Someone else has the row
+                return false;
+            } finally {
+                ps.close();
+            }
+            lockRowConnection = conn;
+            startHeartbeat();
+            return true;
+        } finally {
+            if (lockRowConnection != conn) close(conn);
+        }
+    }
+
+    /**
+     * Coordinated followers wait for as long as the leader is alive, however long it takes to migrate.
+     *
+     * @param conn a connection to the database
+     * @return true if another process holds the lock row and has touched it recently enough not to be stale
+     * @throws SQLException if the lock table can't be read
+     */
+    synchronized boolean isLeased(Connection conn) throws SQLException {
+        if (lockRowConnection != null) return false;
+        PreparedStatement ps;
+        try {
+            ps = conn.prepareStatement("SELECT locked_at FROM " + lockTable() + " WHERE id = 1");
+        } catch (SQLException e) {
+            if (Migrate.isMissingTable(e)) return false;
+            throw e;
+        }
+        try {
+            ResultSet rs = ps.executeQuery();
+            return rs.next() && rs.getLong(1) >= System.currentTimeMillis() - STALE;
+        } catch (SQLException e) {
+            if (Migrate.isMissingTable(e)) return false;
+            throw e;
+        } finally {
+            ps.close();
+        }
+    }
+
+    private void startHeartbeat() {
+        heartbeat = new Timer("LockManager " + lockTable(), true);
+        heartbeat.schedule(new TimerTask() {
+            public void run() {
+                touch();
+            }
+        }, HEARTBEAT, HEARTBEAT);
+    }
+
+    private synchronized void touch() {
+        if (lockRowConnection == null) return;
+        try {
+            PreparedStatement ps = lockRowConnection.prepareStatement("UPDATE " + lockTable() + " SET locked_at = ? WHERE id = 1 AND owner = ?");
+            try {
+                ps.setLong(1, System.currentTimeMillis());
+                ps.setString(2, owner);
+                if (ps.executeUpdate() != 1) {
+                    Migrate.logger.severe("Lost the migration lock in " + lockTable());
+                }
+            } finally {
+                ps.close();
+            }
+        } catch (SQLException e) {
+            Migrate.logger.log(Level.WARNING, "Could not touch the lock row in " + lockTable(), e);
+        }
+    }
+
+    private void createLockTable(Connection conn) {
+        try {
+            execute(conn, "CREATE TABLE " + lockTable() + " (id integer not null primary key, owner varchar(64), locked_at bigint)");
+        } catch (SQLException e) {
+            // Somebody already created it
+        }
+    }
+
+    private String lockTable() {
+        return migrate.getTablename() + "_lock";
+    }
+
+    /**
+     * Sleep for a random time up to an exponentially growing limit, so that processes started together
+     * don't retry together.
+     */
+    void backoff(int attempt, long deadline) throws MigrationException {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) throw timedOut();
+        long limit = Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(attempt, 10));
+        long sleep;
+        synchronized (random) {
+            sleep = 1 + (long) (random.nextDouble() * limit);
+        }
+        try {
+            Thread.sleep(Math.min(sleep, remaining));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MigrationException("Interrupted while waiting for the migration lock");
+        }
+    }
+
+    private MigrationException timedOut() {
+        return new MigrationException("Timed out after " + timeout + "ms waiting for the migration lock on " + migrate.getTablename());
+    }
+
+    private static void execute(Connection conn, String sql) throws SQLException {
+        if (sql != null) {
+            Statement st = conn.createStatement();
+            try {
+                st.execute(sql);
+            } finally {
+                st.close();
+            }
+        }
+    }
+
+    private static void close(Connection conn) {
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            Migrate.logger.log(Level.WARNING, "Couldn't close a database connection, we may be leaking them");
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.sampullara.db;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.security.MessageDigest;
+
+/**
+ * Reads a UTF-8 file by mapping it into memory a window at a time and decoding it incrementally into a
+ * fixed size character buffer.  Neither the file nor its lines are ever held on the heap as a whole, so
+ * memory use stays the same whether the script is a few lines or several hundred megabytes.
+ * <p/>
+ * Characters that are split across two windows are handled by starting the next window at the first
+ * byte the decoder did not consume.  A digest can be given to hash the bytes as they are decoded, so the
+ * file needn't be read a second time to tell whether it changed.
+ */
+class MappedFileReader extends Reader {
+    /** how much of the file is mapped at once */
+    private static final long DEFAULT_WINDOW_SIZE = 32 * 1024 * 1024;
+    /** how many characters are decoded at once */
+    private static final int CHAR_BUFFER_SIZE = 8192;
+
+    private final FileInputStream stream;
+    private final FileChannel channel;
+    private final long size;
+    private final long windowSize;
+    private final CharsetDecoder decoder;
+    private final CharBuffer chars = CharBuffer.allocate(CHAR_BUFFER_SIZE);
+
+    private ByteBuffer bytes;
+    private long windowStart;
+    private long windowEnd;
+    private boolean done;
+    private MessageDigest digest;
+
+    /**
+     * Open and map the first window of the given file.
+     *
+     * @param file the file to read
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    MappedFileReader(File file) throws IOException {
+        this(file, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Open and map the first window of the given file.
+     *
+     * @param file       the file to read
+     * @param windowSize the number of bytes to map at once
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    MappedFileReader(File file, long windowSize) throws IOException {
+        this.windowSize = windowSize;
+        stream = new FileInputStream(file);
+        channel = stream.getChannel();
+        try {
+            size = channel.size();
+            map(0);
+        } catch (IOException e) {
+            stream.close();
+            throw e;
+        }
+        // Match InputStreamReader, which substitutes malformed input rather than failing
+        decoder = Charset.forName("UTF-8").newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        chars.flip();
+    }
+
+    /**
+     * @param digest updated with every byte of the file as it is decoded, or null
+     */
+    void setDigest(MessageDigest digest) {
+        this.digest = digest;
+    }
+
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!chars.hasRemaining() && !fill()) {
+            return -1;
+        }
+        int count = Math.min(len, chars.remaining());
+        chars.get(cbuf, off, count);
+        return count;
+    }
+
+    public void close() throws IOException {
+        bytes = null;
+        stream.close();
+    }
+
+    /**
+     * Decode the next block of characters, moving the mapped window forward as it is used up.
+     *
+     * @return false at the end of the file
+     * @throws IOException if the next window cannot be mapped
+     */
+    private boolean fill() throws IOException {
+        if (done) return false;
+        chars.clear();
+        while (true) {
+            boolean last = windowEnd == size;
+            int from = bytes.position();
+            CoderResult result = decoder.decode(bytes, chars, last);
+            if (digest != null) {
+                ByteBuffer decoded = bytes.duplicate();
+                decoded.position(from);
+                decoded.limit(bytes.position());
+                digest.update(decoded);
+            }
+            if (result.isOverflow()) break;
+            if (result.isError()) result.throwException();
+            // Underflow, everything but a trailing partial character in this window has been decoded
+            if (!last) {
+                map(windowStart + bytes.position());
+                continue;
+            }
+            decoder.flush(chars);
+            done = true;
+            break;
+        }
+        chars.flip();
+        return chars.hasRemaining();
+    }
+
+    private void map(long start) throws IOException {
+        long length = Math.min(windowSize, size - start);
+        MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        bytes = window;
+        windowStart = start;
+        windowEnd = start + length;
+    }
+}
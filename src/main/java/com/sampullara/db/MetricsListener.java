@@ -0,0 +1,216 @@
+package com.sampullara.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects histograms of how long runs, migrations, statements and lock waits take, and remembers the
+ * slowest statements, so a stalled or slow deploy can be explained.  One instance can be shared by
+ * several Migrates, e.g. from a MigrationFleetRunner.
+ */
+public class MetricsListener implements MigrationListener {
+
+    /** how many of the slowest statements to remember */
+    private static final int SLOWEST = 10;
+
+    private final Histogram runs = new Histogram();
+    private final Histogram steps = new Histogram();
+    private final Histogram statements = new Histogram();
+    private final Histogram lockWaits = new Histogram();
+    private final LinkedList<SlowStatement> slowest = new LinkedList<SlowStatement>();
+    private long rows;
+    private int failures;
+
+    public void runStarted(String database, int dbVersion) {
+    }
+
+    public void runFinished(int dbVersion, boolean migrated, long nanos, Throwable failure) {
+        runs.record(nanos);
+        if (failure != null) {
+            synchronized (this) {
+                failures++;
+            }
+        }
+    }
+
+    public void stepStarted(MigrationStep step) {
+    }
+
+    public void stepFinished(MigrationStep step, long nanos, Throwable failure) {
+        steps.record(nanos);
+    }
+
+    public void statementStarted(String script, int lineNumber, String sql) {
+    }
+
+    public void statementFinished(String script, int lineNumber, String sql, long nanos, int rows, Throwable failure) {
+        statements.record(nanos);
+        synchronized (this) {
+            if (rows > 0) this.rows += rows;
+            if (slowest.size() < SLOWEST || nanos > slowest.getLast().nanos) {
+                SlowStatement statement = new SlowStatement(script, lineNumber, sql, nanos);
+                int i = 0;
+                while (i < slowest.size() && slowest.get(i).nanos >= nanos) i++;
+                slowest.add(i, statement);
+                if (slowest.size() > SLOWEST) slowest.removeLast();
+            }
+        }
+    }
+
+    public void lockAcquired(long nanos) {
+        lockWaits.record(nanos);
+    }
+
+    public Histogram getRuns() {
+        return runs;
+    }
+
+    public Histogram getSteps() {
+        return steps;
+    }
+
+    public Histogram getStatements() {
+        return statements;
+    }
+
+    public Histogram getLockWaits() {
+        return lockWaits;
+    }
+
+    /**
+     * @return the total rows affected by statements, as far as the drivers told us
+     */
+    public synchronized long getRows() {
+        return rows;
+    }
+
+    /**
+     * @return the number of runs that failed
+     */
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return the slowest statements seen, slowest first
+     */
+    public synchronized List<SlowStatement> getSlowest() {
+        return Collections.unmodifiableList(new ArrayList<SlowStatement>(slowest));
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("runs: ").append(runs).append(", ").append(getFailures()).append(" failed\n");
+        sb.append("steps: ").append(steps).append('\n');
+        sb.append("statements: ").append(statements).append(", ").append(getRows()).append(" rows\n");
+        sb.append("lock waits: ").append(lockWaits);
+        for (SlowStatement statement : getSlowest()) {
+            sb.append("\n  ").append(statement);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A histogram of times with power of two buckets, so percentiles are accurate to within a factor of two
+     * and recording costs next to nothing.
+     */
+    public static class Histogram {
+        private final long[] buckets = new long[64];
+        private long count;
+        private long total;
+        private long max;
+
+        synchronized void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            buckets[64 - Long.numberOfLeadingZeros(nanos)]++;
+            count++;
+            total += nanos;
+            if (nanos > max) max = nanos;
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the total time recorded in nanoseconds
+         */
+        public synchronized long getTotal() {
+            return total;
+        }
+
+        public synchronized long getMax() {
+            return max;
+        }
+
+        public synchronized long getMean() {
+            return count == 0 ? 0 : total / count;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the upper bound in nanoseconds of the bucket holding the percentile, 0 if nothing is recorded
+         */
+        public synchronized long getPercentile(double percentile) {
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(max, i == 0 ? 0 : (1L << i) - 1);
+                }
+            }
+            return max;
+        }
+
+        public String toString() {
+            return getCount() + " in " + millis(getTotal()) + "ms, p50 " + millis(getPercentile(50)) +
+                    "ms, p99 " + millis(getPercentile(99)) + "ms, max " + millis(getMax()) + "ms";
+        }
+    }
+
+    /**
+     * One of the slowest statements
+     */
+    public static class SlowStatement {
+        private final String script;
+        private final int lineNumber;
+        private final String sql;
+        private final long nanos;
+
+        private SlowStatement(String script, int lineNumber, String sql, long nanos) {
+            this.script = script;
+            this.lineNumber = lineNumber;
+            this.sql = sql;
+            this.nanos = nanos;
+        }
+
+        public String getScript() {
+            return script;
+        }
+
+        public int getLineNumber() {
+            return lineNumber;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public String toString() {
+            return millis(nanos) + "ms " + script + ":" + lineNumber + " " + sql;
+        }
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
@@ -4,13 +4,29 @@ import com.sampullara.cli.Args;
 import com.sampullara.cli.Argument;
 import com.sampullara.cli.PropertiesArgs;
 import groovy.lang.Binding;
-import groovy.lang.GroovyClassLoader;
 import groovy.lang.Script;
 
 import javax.sql.DataSource;
 import java.io.*;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -45,14 +61,52 @@ public class Migrate {
     private String tablename = "db_version";
     @Argument(required = true, alias = "package", description = "Package or directory within which the database migration scripts/classes are stored")
     private String packageName;
+    @Argument(description = "Number of consecutive data statements in a script to send as a single JDBC batch, 0 to disable")
+    private Integer batch = 0;
+    @Argument(description = "Send data statements that only differ in their literals as one cached prepared statement")
+    private Boolean prepare = false;
+    @Argument(description = "Times to retry a statement or batch that hit a deadlock, lock timeout or serialization failure")
+    private Integer retries = 0;
+    @Argument(description = "Directory in which to keep compiled Groovy migrations between runs")
+    private String groovycache;
+    @Argument(description = "Read the database version once and track it in memory while migrating")
+    private Boolean fast = false;
+    @Argument(description = "With fast, re-read the version after Migrator classes and Groovy scripts that may update it themselves")
+    private Boolean checkmanual = false;
+    @Argument(description = "Keep connections open and share them between runs against the same database")
+    private Boolean pool = false;
+    @Argument(description = "Seconds to wait for another process to finish migrating before giving up")
+    private Integer locktimeout = 60;
+    @Argument(description = "Let one process migrate while the others wait for the new version without locking")
+    private Boolean coordinated = false;
+    @Argument(description = "Commit each statement, backfill chunk and migration as it completes so that writers aren't blocked")
+    private Boolean online = false;
+    @Argument(description = "Report the pending migrations and their estimated cost instead of running them")
+    private Boolean dryrun = false;
+    @Argument(description = "Start new databases from the newest baseline snapshot instead of replaying every migration")
+    private Boolean baseline = true;
+    @Argument(description = "Report the applied migrations that were changed or removed since instead of migrating")
+    private Boolean verify = false;
 
     // Internal state
     private DataSource datasource;
     private Connection connection;
     private Properties properties;
+    private MigrationIndex index;
+    private Dialect dialect;
+    private GroovyScriptCache scriptCache;
+    private final MigrationListeners listeners = new MigrationListeners();
+    private LockManager locks;
+    private MigrationHistory history;
+    /** the checksum of each script run so far, hashed as it was read, until it is recorded in the history */
+    private final Map<String, String> checksums = new HashMap<String, String>();
 
     // Static state
     private static Pattern pattern = Pattern.compile(".*?;");
+    /** how often the progress through a script is reported to ProgressListeners */
+    private static final long PROGRESS_BYTES = 64 * 1024;
+    /** the SQLSTATEs of a table that doesn't exist, see isMissingTable() */
+    private static final Set<String> MISSING_TABLE = new HashSet<String>(Arrays.asList("42S02", "42P01", "42102"));
     private static Properties db;
 
     static {
@@ -69,6 +123,14 @@ public class Migrate {
         }
     }
 
+    /**
+     * @param key a database specific statement, keyed by statement + "_" + database name
+     * @return the statement from db.properties, or null if the database doesn't have one
+     */
+    static String getDBProperty(String key) {
+        return db.getProperty(key);
+    }
+
     /**
      * Command line migration tool
      *
@@ -82,7 +144,13 @@ public class Migrate {
         } catch (Exception e) {
             return;
         }
-        migrate.migrate();
+        if (migrate.getDryrun()) {
+            System.out.println(migrate.dryRun());
+        } else if (migrate.getVerify()) {
+            System.out.println(migrate.verify());
+        } else {
+            migrate.migrate();
+        }
     }
 
     /**
@@ -193,74 +261,163 @@ public class Migrate {
     }
 
     /**
-     * Migrate the database from the current database version to the client version using
-     * the following resources in this order of operations:
+     * Migrate the database from the current database version to the client version.  The package is listed
+     * once to find the available migrations and for each version the first of these is used:
      * <p/>
      * <ol>
-     * <li>Attempt to use a migration class: packageName + databaseName + ".Migrate" + dbVersion</li>
-     * <li>If class in 1 not found, use a migration script: pacakge dir + "/" + databaseName + "/migrate" + dbVersion + ".sql"</li>
-     * <li>If script in 2 not found, attempt to use a generic migration class: packageName + ".Migrate" + dbVersion</li>
-     * <li>If class in 3 not found, use a generic migration script: pacakge dir + "/migrate" + dbVersion + ".sql"</li>
+     * <li>A database specific migration class: packageName + "." + databaseName + ".MigrateFrom" + dbVersion</li>
+     * <li>A database specific script: package dir + "/" + databaseName + "/migratefrom" + dbVersion + ".sql", ".groovy" or ".csv"</li>
+     * <li>The same class and scripts named MigrateTo / migrateto (dbVersion + 1)</li>
+     * <li>The generic migration class: packageName + ".MigrateFrom" + dbVersion</li>
+     * <li>The generic script: package dir + "/migratefrom" + dbVersion + ".sql", ".groovy" or ".csv"</li>
+     * <li>The generic class and scripts named MigrateTo / migrateto (dbVersion + 1)</li>
      * </ol>
+     * A .csv migration is a bulk load of data described by a manifest, see CsvLoader.
+     * <p/>
+     * A new database, at version 0, starts from the newest baseline snapshot up to the client version, if
+     * there is one, and only runs the migrations after it.  See snapshot().
+     * <p/>
+     * Each migration is recorded in the history table, tablename + "_history", with the checksum of its
+     * source, so that verify() can tell when one was edited after it was applied.
      *
      * @return Returns true if a migration occurred
      * @throws MigrationException Will fail if the migration is unsuccessful
      */
     public boolean migrate() throws MigrationException {
+        return run().isMigrated();
+    }
+
+    /**
+     * Run migrate() on the executor so that the calling thread can get on with something else, like the
+     * rest of an application's startup, and only wait for the migration where it needs the new schema.
+     * Register a MigrationProgress with addListener() first to follow it as it runs.  Cancelling the
+     * future interrupts the migration, which fails at the next statement that notices the interrupt and is
+     * rolled back where the database has transactional DDL, as any failed migration is.  Elsewhere, and in
+     * online mode, the steps that completed are kept.
+     * <p/>
+     * The Migrate must not be used for anything else until the migration completes.
+     *
+     * @param executor runs the migration
+     * @return what migrate() did, or the MigrationException it threw as the cause of an ExecutionException
+     */
+    public Future<MigrationResult> migrateAsync(Executor executor) {
+        FutureTask<MigrationResult> task = new FutureTask<MigrationResult>(new Callable<MigrationResult>() {
+            public MigrationResult call() throws MigrationException {
+                return run();
+            }
+        });
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * @return what migrate() did
+     */
+    private MigrationResult run() throws MigrationException {
         if (!getAuto() && getVersion() == null) {
             throw new MigrationException("You must either set a client version or enable auto migration");
         }
+        long begin = System.nanoTime();
+        LockManager lease = null;
+        if (getCoordinated()) {
+            lease = awaitLease();
+            if (lease == null) {
+                int dbVersion = readDBVersion();
+                return new MigrationResult(false, dbVersion, dbVersion, System.nanoTime() - begin);
+            }
+        }
         boolean migrated = false;
-        Connection conn = getConnection();
+        Connection conn;
+        int dbVersion;
         try {
-            // We will try and do all the DDL in a transaction so that we can
-            // roll it back on failure.  Not all databases will support this,
-            // be very careful.
-            conn.setAutoCommit(false);
-        } catch (SQLException e) {
-            throw new MigrationException("Failed to set autocommit to false", e);
+            conn = getConnection();
+            try {
+                // We will try and do all the DDL in a transaction so that we can
+                // roll it back on failure.  Not all databases will support this,
+                // be very careful.
+                conn.setAutoCommit(false);
+            } catch (SQLException e) {
+                throw new MigrationException("Failed to set autocommit to false", e);
+            }
+
+            // Have to see if we can lock
+            dbVersion = getDBVersion();
+        } catch (MigrationException e) {
+            // The lease only has its own connection to release
+            if (lease != null) lease.release(null);
+            throw e;
         }
+        int fromVersion = dbVersion;
+        MigrationListeners previous = listeners.install();
+        long start = System.nanoTime();
+        Throwable failure = null;
+        boolean completed = false;
 
-        // Have to see if we can lock
-        int dbVersion = getDBVersion();
+        try {
+            listeners.runStarted(getDatabaseName(conn), dbVersion);
 
-        // Here we need to LOCK the database version table so that if someone else tries to update
-        // at the same time they are blocked until we complete the operation.  Need to verify
-        // the right way to do this for various databases. If you are starting a new database with
-        // no version table this will not protect you.
-        if (dbVersion > 0) lockDB(conn);
+            // Here we need to LOCK the database so that if someone else tries to update at the same
+            // time they are blocked until we complete the operation.  See LockManager for how this is
+            // done for the various databases, including new databases with no version table.
+            locks = lease != null ? lease : new LockManager(this, getDialect(conn), listeners, getLocktimeout() * 1000L, getOnline());
+            lockDB(conn, dbVersion);
 
-        try {
             // Get the current database version and check to make sure we need to do work.
-            while (needsMigrate(dbVersion = getDBVersion())) {
-                if (databaseSpecificClassMigrationFrom(conn, dbVersion) ||
-                        databaseSpecificSQLScriptMigrationFrom(conn, dbVersion) ||
-                        databaseSpecificGroovyMigrationFrom(conn, dbVersion) ||
-                        databaseSpecificClassMigrationTo(conn, dbVersion) ||
-                        databaseSpecificSQLScriptMigrationTo(conn, dbVersion) ||
-                        databaseSpecificGroovyMigrationTo(conn, dbVersion) ||
-                        genericClassMigrationFrom(conn, dbVersion) ||
-                        genericSQLScriptMigrationFrom(conn, dbVersion) ||
-                        genericGroovyMigrationFrom(conn, dbVersion) ||
-                        genericClassMigrationTo(conn, dbVersion) ||
-                        genericSQLScriptMigrationTo(conn, dbVersion) ||
-                        genericGroovyMigrationTo(conn, dbVersion)
-                        ) {
-                    advanceVersion(dbVersion);
+            MigrationIndex index = getIndex(conn);
+            if (dbVersion == 0 && applyBaseline(conn, index)) {
+                migrated = true;
+            }
+            if (getFast()) {
+                migrated = migrateTracked(conn, index);
+            } else while (needsMigrate(dbVersion = getDBVersion())) {
+                MigrationStep step = index.resolve(dbVersion);
+                if (step != null) {
+                    long nanos = runStep(conn, step);
+                    advanceVersion(dbVersion, step, nanos);
+                    commitIfOnline(conn);
                     migrated = true;
                 } else {
                     if (getAuto()) break;
                     throw new MigrationException("No migration found: " + dbVersion);
                 }
             }
+            // Let anyone watching the version know, it is delivered when we commit
+            if (migrated) notifyWatchers(conn);
+            completed = true;
+        } catch (MigrationException e) {
+            failure = e;
+            throw e;
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
         } finally {
-            // Complete the transaction
-            unlockDB(conn);
+            // A failed or interrupted migration is undone where the database can undo all of it
+            boolean rollback = !completed && rollsBack();
+            if (rollback) try {
+                conn.rollback();
+            } catch (SQLException e) {
+                logger.log(Level.SEVERE, "Failed to roll back", e);
+            }
+            try {
+                // What will be committed
+                dbVersion = readVersion(conn, getTablename());
+            } catch (SQLException e) {
+                // Report the last version we read
+            }
+            listeners.runFinished(dbVersion, migrated, System.nanoTime() - start, failure);
+            MigrationListeners.restore(previous);
+            // Complete the transaction, and only then let the next process in
             try {
-                conn.commit();
+                if (!rollback) conn.commit();
             } catch (SQLException e) {
                 logger.log(Level.SEVERE, "Failed to commit", e);
             } finally {
+                if (locks != null) {
+                    locks.release(conn);
+                    locks = null;
+                }
+                history = null;
+                checksums.clear();
                 try {
                     conn.close();
                 } catch (SQLException e) {
@@ -270,162 +427,485 @@ public class Migrate {
                 connection = null;
             }
         }
-        return migrated;
+        return new MigrationResult(migrated, fromVersion, dbVersion, System.nanoTime() - begin);
     }
 
-    private void lockDB(Connection conn) throws MigrationException {
-        try {
-            String dbname = getDatabaseName(conn);
-            String lockSQL = (String) db.get("lock_" + dbname);
-            if (lockSQL != null) {
-                Statement st = conn.createStatement();
-                lockSQL = lockSQL.replace(":table", getTablename());
-                st.execute(lockSQL);
+    /**
+     * The coordinated mode of migrate().  Processes race for a lease, the lock row of LockManager, and the
+     * one that gets it migrates.  The rest poll the version with a short lived connection, backing off
+     * exponentially, until the database reaches the client version.  If the lease becomes free first,
+     * because the leader failed, the next process to get it takes over.
+     * <p/>
+     * The followers wait for as long as the leader keeps its lease fresh, since a migration can take much
+     * longer than the lock timeout.  The timeout only runs while nobody holds a fresh lease and this
+     * process can't take it.
+     *
+     * @return the lease if this process should migrate, null if the database was migrated by another
+     * @throws MigrationException if the version can't be read or the lease can't be taken within the timeout
+     */
+    private LockManager awaitLease() throws MigrationException {
+        long start = System.nanoTime();
+        long deadline = System.currentTimeMillis() + getLocktimeout() * 1000L;
+        LockManager lease = null;
+        for (int attempt = 0; ; attempt++) {
+            boolean leased;
+            Connection conn = openConnection();
+            try {
+                int dbVersion = readVersion(conn, getTablename());
+                if (!getAuto() && !needsMigrate(dbVersion)) {
+                    logger.info("Database was migrated to " + dbVersion + " by another process");
+                    return null;
+                }
+                if (lease == null) {
+                    lease = new LockManager(this, getDialect(conn), listeners, getLocktimeout() * 1000L, getOnline());
+                }
+                leased = lease.isLeased(conn);
+            } catch (SQLException e) {
+                throw new MigrationException("Could not read the version or the lease from " + getTablename(), e);
+            } finally {
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                    logger.log(Level.WARNING, "Couldn't close a database connection, we may be leaking them");
+                }
             }
-        } catch (SQLException e) {
-            throw new MigrationException("Could not lock database", e);
+            if (leased) {
+                // The leader is alive, keep waiting for it
+                deadline = System.currentTimeMillis() + getLocktimeout() * 1000L;
+            } else try {
+                if (lease.tryLease()) {
+                    listeners.lockAcquired(System.nanoTime() - start);
+                    return lease;
+                }
+            } catch (SQLException e) {
+                throw new MigrationException("Could not get the migration lease", e);
+            }
+            lease.backoff(attempt, deadline);
+        }
+    }
+
+    /**
+     * Resolve the migrations that migrate() would run, without running them.  Each step is expected to move
+     * the database forward one version; a Migrator that updates the version table itself can skip ahead of
+     * this plan when it is actually run.
+     *
+     * @return the steps from the current database version to the client version, or as far as there are
+     *         migrations available when auto migrating
+     * @throws MigrationException If the database can't be read or, unless auto migrating, a migration is missing
+     */
+    public List<MigrationStep> plan() throws MigrationException {
+        if (!getAuto() && getVersion() == null) {
+            throw new MigrationException("You must either set a client version or enable auto migration");
         }
+        return plan(getIndex(getConnection()), getDBVersion());
     }
 
-    private void unlockDB(Connection conn) throws MigrationException {
+    private List<MigrationStep> plan(MigrationIndex index, int dbVersion) throws MigrationException {
+        List<MigrationStep> plan = new ArrayList<MigrationStep>();
+        if (dbVersion == 0 && getBaseline()) {
+            // The baseline itself isn't a step, the plan starts after it
+            int baselineVersion = index.baselineVersion(maxBaselineVersion());
+            if (baselineVersion > 0) dbVersion = baselineVersion;
+        }
+        while (needsMigrate(dbVersion)) {
+            MigrationStep step = index.resolve(dbVersion);
+            if (step == null) {
+                if (getAuto()) break;
+                throw new MigrationException("No migration found: " + dbVersion);
+            }
+            plan.add(step);
+            dbVersion = step.getToVersion();
+        }
+        return plan;
+    }
+
+    /**
+     * Find out what migrate() would do before doing it: the steps of plan() and, for each SQL script, its
+     * statements, the rows its data changes are estimated to touch, from EXPLAIN, and the statements that
+     * may rewrite a table.  Nothing is locked or changed, everything is read on a separate read only
+     * connection.
+     *
+     * @return the report
+     * @throws MigrationException If the database can't be read or, unless auto migrating, a migration is missing
+     */
+    public DryRunReport dryRun() throws MigrationException {
+        if (!getAuto() && getVersion() == null) {
+            throw new MigrationException("You must either set a client version or enable auto migration");
+        }
+        Connection conn = openConnection();
         try {
-            String dbname = getDatabaseName(conn);
-            String unlockSQL = (String) db.get("unlock_" + dbname);
-            if (unlockSQL != null) {
-                Statement st = conn.createStatement();
-                unlockSQL = unlockSQL.replace(":table", getTablename());
-                st.execute(unlockSQL);
+            conn.setAutoCommit(true);
+            conn.setReadOnly(true);
+            int dbVersion = readVersion(conn, getTablename());
+            List<DryRunReport.Step> steps = new ArrayList<DryRunReport.Step>();
+            for (MigrationStep step : plan(getIndex(conn), dbVersion)) {
+                steps.add(DryRunReport.analyze(conn, step, getDialect(conn)));
             }
+            return new DryRunReport(dbVersion, steps);
         } catch (SQLException e) {
-            throw new MigrationException("Could not unlock database", e);
+            throw new MigrationException("Could not read the database version", e);
+        } finally {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                logger.log(Level.WARNING, "Couldn't close a database connection, we may be leaking them");
+            }
         }
     }
 
-    private boolean classMigrator(Connection conn, String className) throws MigrationException {
-        // Remove dashes from the classnames
-        className = className.replace("-", "");
+    /**
+     * Check that the migrations applied to the database haven't been edited or removed since.  The history
+     * table, written as each migration is applied, is read with a single query on a separate read only
+     * connection and the scripts and CSV files in it are hashed in parallel and compared with their
+     * checksums.  Nothing is locked.
+     *
+     * @return the migrations that differ, see VerifyReport
+     * @throws MigrationException If the history or a migration can't be read
+     */
+    public VerifyReport verify() throws MigrationException {
+        Connection conn = openConnection();
+        Map<String, String> recorded;
         try {
-            Class migratorClass = Class.forName(className);
-            Migrator migrator;
+            conn.setAutoCommit(true);
+            conn.setReadOnly(true);
+            recorded = new MigrationHistory(conn, getTablename() + "_history").checksums();
+        } catch (SQLException e) {
+            throw new MigrationException("Could not read the migration history", e);
+        } finally {
             try {
-                migrator = (Migrator) migratorClass.newInstance();
-            } catch (InstantiationException e) {
-                throw new MigrationException("Failure constructing migrator: " + className, e);
-            } catch (IllegalAccessException e) {
-                throw new MigrationException("Migrator constructor not accessible: " + className, e);
+                conn.close();
+            } catch (SQLException e) {
+                logger.log(Level.WARNING, "Couldn't close a database connection, we may be leaking them");
             }
-            logger.info("Using class: " + className);
-            migrator.migrate(conn);
-            return true;
-        } catch (ClassNotFoundException e) {
-            // Go on to the next test
         }
-        return false;
+        return VerifyReport.verify(recorded);
     }
 
-    private void advanceVersion(int dbVersion) throws MigrationException {
-        int newVersion = getDBVersion();
-        if (newVersion == dbVersion) {
-            // Auto advance the version
-            Connection conn = getConnection();
-            PreparedStatement ps = null;
+    /**
+     * Write a baseline snapshot of the database as it is now, to start new databases from instead of version 0.
+     * The schema is dumped as a script named baseline + the current version + ".sql" in the database specific
+     * directory of the package under the given directory, e.g. src/main/resources, see Baseline for what
+     * it includes.  Migrations up to that version are still needed to migrate existing databases, but
+     * migrate() runs the newest baseline up to the client version on a new database and only the migrations
+     * after it.
+     *
+     * @param directory the root of the resources or files the package is in
+     * @return the baseline script
+     * @throws MigrationException if the database has no version or the script can't be written
+     */
+    public File snapshot(File directory) throws MigrationException {
+        Connection conn = openConnection();
+        try {
+            int dbVersion = readVersion(conn, getTablename());
+            if (dbVersion == 0) {
+                throw new MigrationException("There is no version to snapshot in " + getTablename());
+            }
+            Dialect dialect = getDialect(conn);
+            List<String> statements = Baseline.dump(conn, dialect, getTablename(), dbVersion);
+            File packageDirectory = new File(directory, getPackage().replace(".", "/") + "/" + dialect.getName());
+            if (!packageDirectory.isDirectory() && !packageDirectory.mkdirs()) {
+                throw new MigrationException("Could not create " + packageDirectory);
+            }
+            File file = new File(packageDirectory, "baseline" + dbVersion + ".sql");
+            Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
             try {
-                newVersion = dbVersion + 1;
-                ps = conn.prepareStatement("UPDATE " + getTablename() + " SET version=?");
-                ps.setInt(1, newVersion);
-                int rows = ps.executeUpdate();
-                if (rows != 1) {
-                    throw new MigrationException("Failed to update database version from " + dbVersion + " to " + newVersion);
+                writer.write("-- Baseline of " + getPackage() + " at version " + dbVersion + " on " + dialect + "\n");
+                for (String statement : statements) {
+                    writer.write(statement);
+                    writer.write("\n");
                 }
-            } catch (SQLException e) {
-                throw new MigrationException("Failed to update database version from " + dbVersion + " to " + (dbVersion + 1), e);
             } finally {
-                if (ps != null) try {
-                    ps.close();
-                } catch (SQLException e) {
-                    // Ignore failures to close things
-                }
+                writer.close();
+            }
+            logger.info("Wrote baseline " + file);
+            return file;
+        } catch (SQLException e) {
+            throw new MigrationException("Could not read the schema", e);
+        } catch (IOException e) {
+            throw new MigrationException("Could not write the baseline", e);
+        } finally {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                logger.log(Level.WARNING, "Couldn't close a database connection, we may be leaking them");
             }
-            logger.log(Level.INFO, "Automatically incremented database from " + dbVersion + " to " + newVersion);
-        } else {
-            logger.log(Level.INFO, "Manually updated database from " + dbVersion + " to " + newVersion);
         }
-        if (dbVersion == 0) {
-            Connection conn = getConnection();
-            lockDB(conn);
+    }
+
+    /**
+     * Run the newest baseline snapshot up to the client version on a new database.
+     *
+     * @return true if there was one
+     */
+    private boolean applyBaseline(Connection conn, MigrationIndex index) throws MigrationException {
+        if (!getBaseline()) return false;
+        int baselineVersion = index.baselineVersion(maxBaselineVersion());
+        if (baselineVersion == 0) return false;
+        String name = index.baselineName(baselineVersion);
+        logger.info("Starting from baseline " + name);
+        long start = System.nanoTime();
+        ScriptExecutor executor = new ScriptExecutor(conn, getBatch(), getDialect(conn));
+        if (!sqlScriptMigrator(conn, name, executor)) {
+            throw new MigrationException("Baseline is no longer available: " + name);
+        }
+        checksums.put(name, executor.getChecksum());
+        int dbVersion = getDBVersion();
+        if (dbVersion != baselineVersion) {
+            throw new MigrationException("Baseline " + name + " left the database at version " + dbVersion);
         }
+        recordHistory(conn, dbVersion, name, MigrationStep.Type.SQL, System.nanoTime() - start);
+        // Now there is a version table to lock
+        lockDB(conn, dbVersion);
+        commitIfOnline(conn);
+        return true;
     }
 
-    private boolean databaseSpecificClassMigrationFrom(Connection conn, int dbVersion) throws MigrationException {
-        String databaseName = getDatabaseName(conn);
-        String className = getPackage() + "." + databaseName + ".MigrateFrom" + dbVersion;
-        return classMigrator(conn, className);
+    private int maxBaselineVersion() {
+        return getVersion() == null ? Integer.MAX_VALUE : getVersion();
     }
 
-    private boolean genericClassMigrationFrom(Connection conn, int dbVersion) throws MigrationException {
-        String className = getPackage() + ".MigrateFrom" + dbVersion;
-        return classMigrator(conn, className);
+    private MigrationIndex getIndex(Connection conn) throws MigrationException {
+        if (index == null) {
+            index = new MigrationIndex(getPackage(), getDatabaseName(conn));
+        }
+        return index;
     }
 
-    private boolean databaseSpecificClassMigrationTo(Connection conn, int dbVersion) throws MigrationException {
-        String databaseName = getDatabaseName(conn);
-        String className = getPackage() + "." + databaseName + ".MigrateTo" + (dbVersion + 1);
-        return classMigrator(conn, className);
+    /**
+     * @return how long the step took
+     */
+    private long runStep(Connection conn, MigrationStep step) throws MigrationException {
+        boolean found;
+        listeners.stepStarted(step);
+        long start = System.nanoTime();
+        try {
+            switch (step.getType()) {
+                case CLASS:
+                    found = classMigrator(conn, step.getName());
+                    break;
+                case SQL:
+                    ScriptExecutor executor = new ScriptExecutor(conn, getBatch(), getDialect(conn));
+                    executor.setOnline(getOnline());
+                    executor.setCheckpointTable(getTablename() + "_checkpoint");
+                    executor.setConnections(this);
+                    executor.setPrepare(getPrepare());
+                    executor.setRetries(getRetries());
+                    // Where a failure can't be rolled back, remember how far each script got
+                    executor.setCheckpointing(getOnline() || !getDialect(conn).supportsTransactionalDDL());
+                    found = sqlScriptMigrator(conn, step.getName(), executor);
+                    if (found) checksums.put(step.getName(), executor.getChecksum());
+                    break;
+                case CSV:
+                    found = csvMigrator(conn, step.getName(), getDialect(conn));
+                    break;
+                default:
+                    found = scriptMigrator(conn, step.getName(), step.getFromVersion());
+                    break;
+            }
+            if (!found) {
+                throw new MigrationException("Migration is no longer available: " + step);
+            }
+        } catch (MigrationException e) {
+            listeners.stepFinished(step, System.nanoTime() - start, e);
+            throw e;
+        } catch (RuntimeException e) {
+            listeners.stepFinished(step, System.nanoTime() - start, e);
+            throw e;
+        }
+        long nanos = System.nanoTime() - start;
+        listeners.stepFinished(step, nanos, null);
+        return nanos;
     }
 
-    private boolean genericClassMigrationTo(Connection conn, int dbVersion) throws MigrationException {
-        String className = getPackage() + ".MigrateTo" + (dbVersion + 1);
-        return classMigrator(conn, className);
+    /**
+     * Add a migration to the history table, see verify().
+     */
+    private void recordHistory(Connection conn, int version, String source, MigrationStep.Type type, long nanos)
+            throws MigrationException {
+        String checksum = checksums.remove(source);
+        if (checksum == null && type != MigrationStep.Type.CLASS) checksum = checksum(source);
+        if (history == null) history = new MigrationHistory(conn, getTablename() + "_history");
+        try {
+            history.record(version, source, type, checksum, nanos);
+        } catch (SQLException e) {
+            throw new MigrationException("Could not record " + source + " in the history", e);
+        }
     }
 
-    private boolean databaseSpecificSQLScriptMigrationFrom(Connection conn, int dbVersion) throws MigrationException {
-        String databaseName = getDatabaseName(conn);
-        String scriptName = getPackage().replace(".", "/") + "/" + databaseName + "/migratefrom" + dbVersion + ".sql";
-        return sqlScriptMigrator(conn, scriptName);
+    /**
+     * Where DDL isn't transactional the work done so far can't be undone, so it is committed along with the
+     * version and checkpoints that say how far it got, as it is in online mode.
+     *
+     * @return true if a failed migration should be rolled back
+     */
+    private boolean rollsBack() {
+        return dialect != null && dialect.supportsTransactionalDDL() && !getOnline();
     }
 
-    private boolean genericSQLScriptMigrationFrom(Connection conn, int dbVersion) throws MigrationException {
-        String scriptName = getPackage().replace(".", "/") + "/" + "migratefrom" + dbVersion + ".sql";
-        return sqlScriptMigrator(conn, scriptName);
+    private void commitIfOnline(Connection conn) throws MigrationException {
+        if (getOnline()) try {
+            conn.commit();
+        } catch (SQLException e) {
+            throw new MigrationException("Failed to commit", e);
+        }
     }
 
-    private boolean databaseSpecificSQLScriptMigrationTo(Connection conn, int dbVersion) throws MigrationException {
-        String databaseName = getDatabaseName(conn);
-        String scriptName =
-                getPackage().replace(".", "/") + "/" + databaseName + "/migrateto" + (dbVersion + 1) + ".sql";
-        return sqlScriptMigrator(conn, scriptName);
+    private void lockDB(Connection conn, int dbVersion) throws MigrationException {
+        locks.lock(conn, dbVersion);
     }
 
-    private boolean genericSQLScriptMigrationTo(Connection conn, int dbVersion) throws MigrationException {
-        String scriptName = getPackage().replace(".", "/") + "/" + "migrateto" + (dbVersion + 1) + ".sql";
-        return sqlScriptMigrator(conn, scriptName);
+    /**
+     * Watchers poll as well, so failing to notify them is no reason to fail the migration.  The statement
+     * runs in a savepoint since a failure aborts the whole transaction on PostgreSQL.
+     */
+    private void notifyWatchers(Connection conn) throws MigrationException {
+        Dialect dialect = getDialect(conn);
+        if (dialect.getNotifySQL() == null) return;
+        Savepoint savepoint = null;
+        try {
+            if (dialect.supportsSavepoints()) savepoint = conn.setSavepoint();
+            execute(conn, dialect.getNotifySQL());
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "Could not notify watchers of the new version of " + getTablename(), e);
+            if (savepoint != null) try {
+                conn.rollback(savepoint);
+            } catch (SQLException re) {
+                logger.log(Level.WARNING, "Could not roll back the failed notification", re);
+            }
+        }
     }
 
-    private boolean databaseSpecificGroovyMigrationFrom(Connection conn, int dbVersion) throws MigrationException {
-        String databaseName = getDatabaseName(conn);
-        String scriptName =
-                getPackage().replace(".", "/") + "/" + databaseName + "/migratefrom" + dbVersion + ".groovy";
-        return scriptMigrator(conn, scriptName);
+    private static void execute(Connection conn, String sql) throws SQLException {
+        if (sql != null) {
+            Statement st = conn.createStatement();
+            try {
+                st.execute(sql);
+            } finally {
+                st.close();
+            }
+        }
     }
 
-    private boolean genericGroovyMigrationFrom(Connection conn, int dbVersion) throws MigrationException {
-        String scriptName = getPackage().replace(".", "/") + "/" + "migratefrom" + dbVersion + ".groovy";
-        return scriptMigrator(conn, scriptName);
+    private boolean classMigrator(Connection conn, String className) throws MigrationException {
+        // Remove dashes from the classnames
+        className = className.replace("-", "");
+        try {
+            Class migratorClass = Class.forName(className);
+            Migrator migrator;
+            try {
+                migrator = (Migrator) migratorClass.newInstance();
+            } catch (InstantiationException e) {
+                throw new MigrationException("Failure constructing migrator: " + className, e);
+            } catch (IllegalAccessException e) {
+                throw new MigrationException("Migrator constructor not accessible: " + className, e);
+            }
+            logger.info("Using class: " + className);
+            migrator.migrate(conn);
+            return true;
+        } catch (ClassNotFoundException e) {
+            // Go on to the next test
+        }
+        return false;
     }
 
-    private boolean databaseSpecificGroovyMigrationTo(Connection conn, int dbVersion) throws MigrationException {
-        String databaseName = getDatabaseName(conn);
-        String scriptName =
-                getPackage().replace(".", "/") + "/" + databaseName + "/migrateto" + (dbVersion + 1) + ".groovy";
-        return scriptMigrator(conn, scriptName);
+    /**
+     * The fast path of migrate().  The version is read once, under the lock, and then tracked in memory
+     * while the steps run, with a single write of the final version at the end.  Only the bootstrap step
+     * from version 0, which creates the version table, and, if checkmanual is set, Migrator classes and
+     * Groovy scripts that may update the version table themselves are followed by a read of the version.
+     * Migrator classes and Groovy scripts are preceded by a write of the tracked version, if it has changed,
+     * so that they read the version they migrate from.  Online, each step is followed by a write of the
+     * version since it is committed right away.
+     *
+     * @return true if a migration occurred
+     */
+    private boolean migrateTracked(Connection conn, MigrationIndex index) throws MigrationException {
+        boolean migrated = false;
+        int dbVersion = getDBVersion();
+        int written = dbVersion;
+        boolean completed = false;
+        try {
+            while (needsMigrate(dbVersion)) {
+                MigrationStep step = index.resolve(dbVersion);
+                if (step == null) {
+                    if (getAuto()) break;
+                    throw new MigrationException("No migration found: " + dbVersion);
+                }
+                // Online, every migration is committed with its version
+                boolean manual = step.getType() != MigrationStep.Type.SQL && step.getType() != MigrationStep.Type.CSV;
+                boolean check = dbVersion == 0 || getOnline() || (getCheckmanual() && manual);
+                if ((check || manual) && written != dbVersion) {
+                    // Classes and scripts may read the version, or change it, so they see the real one
+                    writeVersion(written, dbVersion);
+                    written = dbVersion;
+                }
+                long nanos = runStep(conn, step);
+                if (check) {
+                    advanceVersion(dbVersion, step, nanos);
+                    dbVersion = written = getDBVersion();
+                    commitIfOnline(conn);
+                } else {
+                    recordHistory(conn, ++dbVersion, step.getName(), step.getType(), nanos);
+                }
+                migrated = true;
+            }
+            completed = true;
+        } finally {
+            // Record how far we got, even if a step failed, since the completed steps will be committed
+            if (written != dbVersion) try {
+                writeVersion(written, dbVersion);
+                logger.log(Level.INFO, "Automatically incremented database from " + written + " to " + dbVersion);
+            } catch (MigrationException e) {
+                if (completed) throw e;
+                logger.log(Level.SEVERE, "Could not record database version " + dbVersion + " after failure", e);
+            }
+        }
+        return migrated;
     }
 
-    private boolean genericGroovyMigrationTo(Connection conn, int dbVersion) throws MigrationException {
-        String scriptName = getPackage().replace(".", "/") + "/" + "migrateto" + (dbVersion + 1) + ".groovy";
-        return scriptMigrator(conn, scriptName);
+    private void writeVersion(int dbVersion, int newVersion) throws MigrationException {
+        Connection conn = getConnection();
+        PreparedStatement ps = null;
+        try {
+            ps = conn.prepareStatement("UPDATE " + getTablename() + " SET version=?");
+            ps.setInt(1, newVersion);
+            int rows = ps.executeUpdate();
+            if (rows != 1) {
+                throw new MigrationException("Failed to update database version from " + dbVersion + " to " + newVersion);
+            }
+        } catch (SQLException e) {
+            throw new MigrationException("Failed to update database version from " + dbVersion + " to " + newVersion, e);
+        } finally {
+            if (ps != null) try {
+                ps.close();
+            } catch (SQLException e) {
+                // Ignore failures to close things
+            }
+        }
     }
 
-    private boolean scriptMigrator(Connection conn, String scriptName) throws MigrationException {
+    private void advanceVersion(int dbVersion, MigrationStep step, long nanos) throws MigrationException {
+        int newVersion = getDBVersion();
+        if (newVersion == dbVersion) {
+            // Auto advance the version
+            newVersion = dbVersion + 1;
+            writeVersion(dbVersion, newVersion);
+            logger.log(Level.INFO, "Automatically incremented database from " + dbVersion + " to " + newVersion);
+        } else {
+            logger.log(Level.INFO, "Manually updated database from " + dbVersion + " to " + newVersion);
+        }
+        Connection conn = getConnection();
+        recordHistory(conn, newVersion, step.getName(), step.getType(), nanos);
+        if (dbVersion == 0) {
+            // Now there is a version table to lock
+            lockDB(conn, newVersion);
+        }
+    }
+
+    /**
+     * @param version the version the script migrates from, bound as "version"
+     */
+    private boolean scriptMigrator(Connection conn, String scriptName, int version) throws MigrationException {
         File file = new File(scriptName);
         InputStream is;
         if (file.exists()) {
@@ -439,16 +919,13 @@ public class Migrate {
         }
 
         if (is != null) {
-            // Have to figure out why this doesn't work in Ant and if there is a way to fix it.
-            // ClassLoader parent = Thread.currentThread().getContextClassLoader();
-            GroovyClassLoader loader = new GroovyClassLoader(Migrate.class.getClassLoader());
             try {
-                Class groovyClass = loader.parseClass(is);
+                Class<?> groovyClass = getScriptCache().getScriptClass(is, scriptName);
                 Binding binding = new Binding();
                 Script script = (Script) groovyClass.newInstance();
                 binding.setProperty("connection", conn);
                 binding.setProperty("database", getDatabaseName(conn));
-                binding.setProperty("version", getDBVersion());
+                binding.setProperty("version", version);
                 binding.setProperty("tablename", getTablename());
                 script.setBinding(binding);
                 script.run();
@@ -464,7 +941,17 @@ public class Migrate {
         return false;
     }
 
-    private static InputStream getResourceAsStream(String scriptName) {
+    private GroovyScriptCache getScriptCache() {
+        if (scriptCache == null) {
+            // Have to figure out why this doesn't work in Ant and if there is a way to fix it.
+            // ClassLoader parent = Thread.currentThread().getContextClassLoader();
+            File directory = getGroovycache() == null ? null : new File(getGroovycache());
+            scriptCache = new GroovyScriptCache(directory, Migrate.class.getClassLoader());
+        }
+        return scriptCache;
+    }
+
+    static InputStream getResourceAsStream(String scriptName) {
         InputStream is;
         is = Thread.currentThread().getContextClassLoader().getResourceAsStream(scriptName);
         if (is == null) {
@@ -483,96 +970,193 @@ public class Migrate {
      * @throws MigrationException If the script was found but could not be executed to completion.
      */
     public static boolean sqlScriptMigrator(Connection conn, String scriptName) throws MigrationException {
+        return sqlScriptMigrator(conn, scriptName, 0);
+    }
+
+    /**
+     * Pass the database connection and then a script name that will either be in the classpath or relative
+     * to the current directory.  Consecutive INSERT, UPDATE, DELETE, MERGE and REPLACE statements are sent
+     * to the database in JDBC batches of up to batchSize statements.
+     *
+     * @param conn       The database connection against which to execute the sql statements
+     * @param scriptName The name of the file or resource to execute
+     * @param batchSize  The maximum number of statements per batch, 0 or 1 to execute them one at a time
+     * @return Script found
+     * @throws MigrationException If the script was found but could not be executed to completion.
+     */
+    public static boolean sqlScriptMigrator(Connection conn, String scriptName, int batchSize) throws MigrationException {
+        return sqlScriptMigrator(conn, scriptName, new ScriptExecutor(conn, batchSize));
+    }
+
+    static boolean sqlScriptMigrator(Connection conn, String scriptName, ScriptExecutor executor) throws MigrationException {
+        Reader reader = null;
+        // The script is hashed as it is read, for the history, rather than read again afterwards
+        MessageDigest digest = Checksums.sha1();
         InputStream is = getResourceAsStream(scriptName);
-        if (is == null) {
+        if (is != null) {
+            try {
+                reader = new InputStreamReader(new DigestInputStream(is, digest), "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new MigrationException("UTF-8 is not supported", e);
+            }
+        } else {
             File file = new File(scriptName);
             if (file.exists()) {
+                // Large data loads are mapped rather than read onto the heap
                 try {
-                    is = new BufferedInputStream(new FileInputStream(file));
-                } catch (FileNotFoundException e) {
+                    MappedFileReader mapped = new MappedFileReader(file);
+                    mapped.setDigest(digest);
+                    reader = mapped;
+                } catch (IOException e) {
                     throw new MigrationException("Found script but it is unreadable: " + file, e);
                 }
             }
         }
-        if (is != null) {
+        if (reader != null) {
             logger.info("Using script: " + scriptName);
-            // Pull the entire script file into a char buffer
-            // Skip lines that start with #
-            StringBuilder sb = new StringBuilder();
-            int num = 1;
+            executor.setScript(scriptName);
+            // Checkpoints are named after the script's hash, which is needed before it is executed
+            String checksum = executor.isCheckpointing() ? checksum(scriptName) : null;
+            if (checksum != null) {
+                executor.resume(scriptName, checksum);
+            }
+            MigrationListeners listeners = MigrationListeners.current();
+            long size = scriptSize(scriptName);
+            CountingReader counter = new CountingReader(reader);
             try {
-                BufferedReader br = new BufferedReader(new InputStreamReader(is, "UTF-8"));
-                String line;
-                while ((line = br.readLine()) != null) {
-                    if (!line.startsWith("#") && !line.startsWith("--")) {
-                        sb.append(line);
-                        if (!line.endsWith(";")) {
-                            sb.append(" ");
+                // The script is read and split on another thread while its statements are executed in
+                // order on this one, so reading and waiting for the database overlap
+                PipelinedTokenizer tokenizer = new PipelinedTokenizer(new SqlStatementTokenizer(counter), scriptName);
+                try {
+                    int statements = 0;
+                    long reported = 0;
+                    listeners.scriptProgress(scriptName, 0, -1, 0, size);
+                    while (tokenizer.hasNext()) {
+                        String statement = tokenizer.next();
+                        executor.execute(tokenizer.getLineNumber(), statement, tokenizer.getDirectives());
+                        statements++;
+                        if (counter.getBytes() - reported >= PROGRESS_BYTES) {
+                            reported = counter.getBytes();
+                            listeners.scriptProgress(scriptName, statements, tokenizer.getTotalStatements(), reported, size);
                         }
                     }
-                    // Attempt to parse & execute lines as we go.
-                    SqlStatementParser parser = new SqlStatementParser(sb);
-                    for (String statement : parser.pullStatements()) {
-                    	executeStatement(conn, num, statement);
-                    }
-                    
-                    num++;
+                    executor.flush();
+                    executor.complete();
+                    executor.setChecksum(checksum != null ? checksum : Checksums.hex(digest.digest()));
+                    listeners.scriptProgress(scriptName, statements, statements, counter.getBytes(), size);
+                } catch (SqlStatementTokenizer.ReadException e) {
+                    throw new MigrationException(scriptName + ":\nFailed to read script at line: " + e.getLineNumber(), e.getCause());
+                } finally {
+                    tokenizer.close();
+                    executor.close();
                 }
-            } catch (IOException e) {
-                throw new MigrationException(scriptName + ":\n" + sb + "\nFailed to read script at line: " + num, e);
             } finally {
                 try {
-                    is.close();
+                    reader.close();
                 } catch (IOException e) {
                     // Ignore exceptions on close
                 }
             }
-            // finally, execute any statement that wasn't terminated with
-            // a semi-colon
-            executeStatement(conn, num, sb.toString());
             return true;
         }
         return false;
     }
 
     /**
-     * Execute the given sqlStatement on the supplied connection.
-     * 
-     * @param conn the database connection against which to execute the sql
-     * 		statement
-     * @param lineNumber the number of the line from whic
-     * @param sqlStatement the statement to execute
-     * @throws MigrationException if the current statement could not be
-     * 		executed
-     */
-	private static void executeStatement(Connection conn,
-										 int lineNumber,
-										 String sqlStatement)
-	throws MigrationException {
-		Statement st = null;
-		try {
-		    st = conn.createStatement();
-		    st.execute(sqlStatement);
-		} catch (SQLException e) {
-		    throw new MigrationException("Failed to execute SQL line #" + lineNumber + ": " + sqlStatement, e);
-		} finally {
-		    if (st != null) try {
-		        st.close();
-		    } catch (SQLException e) {
-		        logger.log(Level.WARNING, "Failed to close statement, might be leaking them", e);
-		    }
-		}
-	}
+     * @return the size of the script, which was found either in the classpath or as a file, or -1 if it
+     *         can't be told without reading it
+     */
+    private static long scriptSize(String scriptName) {
+        URL url = Thread.currentThread().getContextClassLoader().getResource(scriptName);
+        if (url == null) url = Migrate.class.getClassLoader().getResource(scriptName);
+        if (url == null) return new File(scriptName).length();
+        try {
+            if (url.getProtocol().equals("file")) return new File(url.toURI()).length();
+            URLConnection connection = url.openConnection();
+            if (connection instanceof JarURLConnection) return ((JarURLConnection) connection).getJarEntry().getSize();
+        } catch (URISyntaxException e) {
+            // Not a file we can find the size of
+        } catch (IOException e) {
+            // Nor a jar
+        }
+        return -1;
+    }
 
-    public String getDatabaseName(Connection conn) throws MigrationException {
-        String databaseName;
+    /**
+     * Load a CSV file described by a manifest named after it plus ".properties", either in the classpath
+     * or relative to the current directory, through the fastest path the database has.  See CsvLoader.
+     *
+     * @param conn    The database connection to load into
+     * @param csvName The name of the CSV file or resource
+     * @param dialect The dialect of the database, or null to load with INSERTs
+     * @return CSV file found
+     * @throws MigrationException If the manifest is invalid or the data could not be loaded
+     */
+    public static boolean csvMigrator(Connection conn, String csvName, Dialect dialect) throws MigrationException {
+        String manifestName = csvName + ".properties";
+        InputStream is = getResourceAsStream(manifestName);
+        if (is == null) {
+            File file = new File(manifestName);
+            if (!file.exists()) {
+                InputStream csv = getResourceAsStream(csvName);
+                if (csv == null && !new File(csvName).exists()) return false;
+                if (csv != null) try {
+                    csv.close();
+                } catch (IOException e) {
+                    // Ignore exceptions on close
+                }
+                throw new MigrationException("Found " + csvName + " but not its manifest " + manifestName);
+            }
+            try {
+                is = new FileInputStream(file);
+            } catch (FileNotFoundException e) {
+                throw new MigrationException("Found manifest but could not read it: " + manifestName, e);
+            }
+        }
+        Properties manifest = new Properties();
         try {
-            databaseName = conn.getMetaData().getDatabaseProductName();
-            databaseName = databaseName.trim().replaceAll("[ -._/=+]", "");
-        } catch (SQLException e) {
-            throw new MigrationException("Could not get database name", e);
+            try {
+                manifest.load(is);
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            throw new MigrationException("Found manifest but could not read it: " + manifestName, e);
+        }
+        logger.info("Using CSV: " + csvName);
+        CsvLoader.parse(manifest, manifestName).load(conn, csvName, dialect);
+        return true;
+    }
+
+    /**
+     * @return the SHA-1 of the script, which was found either in the classpath or as a file
+     */
+    private static String checksum(String scriptName) throws MigrationException {
+        try {
+            InputStream is = getResourceAsStream(scriptName);
+            return Checksums.sha1(is != null ? is : new FileInputStream(scriptName));
+        } catch (IOException e) {
+            throw new MigrationException("Found script but it is unreadable: " + scriptName, e);
+        }
+    }
+
+    public String getDatabaseName(Connection conn) throws MigrationException {
+        return getDialect(conn).getName();
+    }
+
+    /**
+     * The dialect is read from the connection metadata the first time it is needed and then reused.
+     *
+     * @param conn a connection to the database being migrated
+     * @return the dialect of the database
+     * @throws MigrationException if the database metadata can't be read
+     */
+    public Dialect getDialect(Connection conn) throws MigrationException {
+        if (dialect == null) {
+            dialect = Dialect.resolve(conn, db, getTablename());
+            logger.info("Migrating " + dialect);
         }
-        return databaseName.toLowerCase();
+        return dialect;
     }
 
     /**
@@ -589,7 +1173,7 @@ public class Migrate {
         return needsMigrate;
     }
 
-    private boolean needsMigrate(int dbVersion) throws MigrationException {
+    boolean needsMigrate(int dbVersion) throws MigrationException {
         if (getAuto()) {
             return true;
         } else {
@@ -606,6 +1190,62 @@ public class Migrate {
         }
     }
 
+    /**
+     * Get the current database version without changing anything, unlike getDBVersion() which will insert
+     * the first version into an empty table.  A database without the version table is at version 0.
+     *
+     * @return returns the current version of the database
+     * @throws MigrationException Will fail if there is more than one row or the database can't be read
+     */
+    public int readDBVersion() throws MigrationException {
+        Connection conn = getConnection();
+        try {
+            return readVersion(conn, getTablename());
+        } catch (SQLException e) {
+            throw new MigrationException("Could not read the version from " + getTablename(), e);
+        }
+    }
+
+    /**
+     * Read the version with a plain SELECT.  An empty or missing version table is version 0.
+     */
+    static int readVersion(Connection conn, String tablename) throws SQLException {
+        PreparedStatement ps;
+        try {
+            ps = conn.prepareStatement("SELECT version FROM " + tablename);
+        } catch (SQLException e) {
+            if (isMissingTable(e)) return 0;
+            throw e;
+        }
+        try {
+            ResultSet rs = ps.executeQuery();
+            try {
+                if (!rs.next()) return 0;
+                int dbVersion = rs.getInt(1);
+                if (rs.next()) {
+                    throw new SQLException("Too many version in table: " + tablename);
+                }
+                return dbVersion;
+            } finally {
+                rs.close();
+            }
+        } catch (SQLException e) {
+            if (isMissingTable(e)) return 0;
+            throw e;
+        } finally {
+            ps.close();
+        }
+    }
+
+    /**
+     * Only an undefined table: 42S02 is the standard state, used by MySQL and H2, 42P01 is PostgreSQL's and
+     * 42102 that of later H2 versions.  The rest of SQLSTATE class 42, e.g. a denied SELECT, is a failure.
+     */
+    static boolean isMissingTable(SQLException e) {
+        String state = e.getSQLState();
+        return state != null && MISSING_TABLE.contains(state);
+    }
+
     /**
      * Get the current database version
      *
@@ -665,34 +1305,83 @@ public class Migrate {
     public Connection getConnection() throws MigrationException {
         try {
             if (connection == null || connection.isClosed()) {
-                if (datasource == null) {
-                    Driver dbdriver = (Driver) Class.forName(getDriver()).newInstance();
-                    try {
-                        connection = dbdriver.connect(getUrl(), properties);
-                    } catch (SQLException e) {
-                        throw new MigrationException("Could not connect to database: " + getUrl(), e);
-                    }
-                } else {
-                    try {
-                        logger.log(Level.INFO, "Using supplied datasource: " + datasource);
-                        connection = datasource.getConnection();
-                    } catch (SQLException e) {
-                        throw new MigrationException("Could not connect to datasource: " + datasource, e);
-                    }
-                }
+                connection = openConnection();
             }
         } catch (SQLException e) {
             throw new MigrationException("Could not examine connection", e);
-        } catch (InstantiationException e) {
-            throw new MigrationException("Could not instantiate driver", e);
-        } catch (IllegalAccessException e) {
-            throw new MigrationException("Could not access driver constructor", e);
-        } catch (ClassNotFoundException e) {
-            throw new MigrationException("Could not find driver class in classpath: " + getDriver(), e);
+        }
+        return connection;
+    }
+
+    /**
+     * Open a new connection to the database, separate from the one returned by getConnection().
+     *
+     * @return the connection, the caller is responsible for closing it
+     * @throws MigrationException if the database can't be connected to
+     */
+    Connection openConnection() throws MigrationException {
+        try {
+            if (datasource == null) {
+                Connection conn;
+                try {
+                    if (getPool()) {
+                        conn = ConnectionPool.get(getDriver(), getUrl(), properties).getConnection();
+                    } else {
+                        conn = ConnectionPool.getDriver(getDriver()).connect(getUrl(), properties);
+                    }
+                } catch (SQLException e) {
+                    throw new MigrationException("Could not connect to database: " + getUrl(), e);
+                }
+                return conn;
+            } else {
+                try {
+                    logger.log(Level.INFO, "Using supplied datasource: " + datasource);
+                    return datasource.getConnection();
+                } catch (SQLException e) {
+                    throw new MigrationException("Could not connect to datasource: " + datasource, e);
+                }
+            }
+        } catch (MigrationException e) {
+            throw e;
         } catch (Exception e) {
             throw new MigrationException("Some other failure to connect: " + getUrl() + ", " + properties, e);
         }
-        return connection;
+    }
+
+    /**
+     * Tell the listener about the migrations, scripts and statements run by migrate().
+     *
+     * @param listener the listener to add
+     */
+    public void addListener(MigrationListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(MigrationListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Release the connection held by this instance, if any.  migrate() does this itself when it is done, call
+     * it after needsMigrate() or getDBVersion() to return the connection to the pool.
+     */
+    public void close() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                // Do nothing if we can't close the connection
+                logger.log(Level.WARNING, "Couldn't close a database connection, we may be leaking them");
+            }
+            connection = null;
+        }
+    }
+
+    /**
+     * Close the idle connections kept for reuse with pool, e.g. when the application shuts down.
+     */
+    public static void closePool() {
+        ConnectionPool.closeAll();
     }
 
     public String getUrl() {
@@ -749,6 +1438,7 @@ public class Migrate {
 
     public void setTablename(String tablename) {
         this.tablename = tablename;
+        this.dialect = null;
     }
 
     public String getPackage() {
@@ -757,5 +1447,111 @@ public class Migrate {
 
     public void setPackage(String packageName) {
         this.packageName = packageName;
+        this.index = null;
+    }
+
+    public Integer getBatch() {
+        return batch;
+    }
+
+    public void setBatch(Integer batch) {
+        this.batch = batch;
+    }
+
+    public Boolean getPrepare() {
+        return prepare;
+    }
+
+    public void setPrepare(Boolean prepare) {
+        this.prepare = prepare;
+    }
+
+    public Integer getRetries() {
+        return retries;
+    }
+
+    public void setRetries(Integer retries) {
+        this.retries = retries;
+    }
+
+    public String getGroovycache() {
+        return groovycache;
+    }
+
+    public void setGroovycache(String groovycache) {
+        this.groovycache = groovycache;
+        this.scriptCache = null;
+    }
+
+    public Boolean getFast() {
+        return fast;
+    }
+
+    public void setFast(Boolean fast) {
+        this.fast = fast;
+    }
+
+    public Boolean getCheckmanual() {
+        return checkmanual;
+    }
+
+    public void setCheckmanual(Boolean checkmanual) {
+        this.checkmanual = checkmanual;
+    }
+
+    public Boolean getPool() {
+        return pool;
+    }
+
+    public void setPool(Boolean pool) {
+        this.pool = pool;
+    }
+
+    public Integer getLocktimeout() {
+        return locktimeout;
+    }
+
+    public void setLocktimeout(Integer locktimeout) {
+        this.locktimeout = locktimeout;
+    }
+
+    public Boolean getCoordinated() {
+        return coordinated;
+    }
+
+    public void setCoordinated(Boolean coordinated) {
+        this.coordinated = coordinated;
+    }
+
+    public Boolean getOnline() {
+        return online;
+    }
+
+    public void setOnline(Boolean online) {
+        this.online = online;
+    }
+
+    public Boolean getBaseline() {
+        return baseline;
+    }
+
+    public void setBaseline(Boolean baseline) {
+        this.baseline = baseline;
+    }
+
+    public Boolean getVerify() {
+        return verify;
+    }
+
+    public void setVerify(Boolean verify) {
+        this.verify = verify;
+    }
+
+    public Boolean getDryrun() {
+        return dryrun;
+    }
+
+    public void setDryrun(Boolean dryrun) {
+        this.dryrun = dryrun;
     }
 }
@@ -0,0 +1,390 @@
+package com.sampullara.db;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+/**
+ * Migrates many databases, for example one schema per tenant, concurrently.  Each target is migrated by its
+ * own Migrate instance, so the usual locking in migrate() still keeps two runners from migrating the same
+ * database at once.
+ * <p/>
+ * Concurrency is bounded globally and, optionally, per group of targets, e.g. the targets that share a
+ * database server.  The targets of a group are queued and taken in turn by as many tasks as the group may
+ * run at once, so that a group at its limit doesn't hold up the others.  On JVMs with virtual threads each
+ * target gets one; otherwise a fixed pool of platform threads the size of the global limit is used.
+ * <p/>
+ * Subclasses can override createMigrate() to configure each Migrate (batching, the fast path, etc).
+ */
+public class MigrationFleetRunner {
+
+    /**
+     * What to do with the remaining targets when one fails
+     */
+    public static enum FailurePolicy {
+        /** Don't start any more targets once one has failed, those already running are allowed to finish */
+        FAIL_FAST,
+        /** Migrate every target and report the failures at the end */
+        CONTINUE
+    }
+
+    private final String packageName;
+    private final int version;
+    private final List<Target> targets = new ArrayList<Target>();
+    private int concurrency = 8;
+    private int groupConcurrency = 0;
+    private FailurePolicy failurePolicy = FailurePolicy.CONTINUE;
+
+    /**
+     * @param packageName Package of the migration scripts / classes
+     * @param version     Current version of the client classes
+     */
+    public MigrationFleetRunner(String packageName, int version) {
+        this.packageName = packageName;
+        this.version = version;
+    }
+
+    /**
+     * @param name       a name for the target, used in the report
+     * @param group      the group the target belongs to for the per group limit, or null
+     * @param datasource the datasource of the database to migrate
+     */
+    public void addTarget(String name, String group, DataSource datasource) {
+        targets.add(new Target(name, group, datasource, null, null, null));
+    }
+
+    /**
+     * @param name       a name for the target, used in the report
+     * @param group      the group the target belongs to for the per group limit, or null
+     * @param url        URL of the database
+     * @param driver     Class name of the database driver
+     * @param properties Database connection properties
+     */
+    public void addTarget(String name, String group, String url, String driver, Properties properties) {
+        targets.add(new Target(name, group, null, url, driver, properties));
+    }
+
+    /**
+     * Migrate all of the targets and wait for them to finish.
+     *
+     * @return the outcome for each target, in the order they were added
+     * @throws InterruptedException if interrupted while waiting for the targets
+     */
+    public Report run() throws InterruptedException {
+        final Semaphore global = new Semaphore(concurrency);
+        final AtomicBoolean aborted = new AtomicBoolean();
+        final Result[] results = new Result[targets.size()];
+        long start = System.currentTimeMillis();
+
+        ExecutorService executor = newExecutor();
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        try {
+            for (final Queue<Integer> queue : queues()) {
+                int lanes = queue.size() > 1 ? Math.min(groupConcurrency, queue.size()) : 1;
+                for (int lane = 0; lane < lanes; lane++) {
+                    futures.add(executor.submit(new Callable<Object>() {
+                        public Object call() throws InterruptedException {
+                            Integer i;
+                            while ((i = queue.poll()) != null) {
+                                Target target = targets.get(i);
+                                global.acquire();
+                                try {
+                                    if (aborted.get()) {
+                                        results[i] = new Result(target, false, 0, null, true);
+                                        continue;
+                                    }
+                                    results[i] = migrate(target);
+                                    if (results[i].getFailure() != null && failurePolicy == FailurePolicy.FAIL_FAST) {
+                                        aborted.set(true);
+                                    }
+                                } finally {
+                                    global.release();
+                                }
+                            }
+                            return null;
+                        }
+                    }));
+                }
+            }
+            Throwable failure = null;
+            for (Future<Object> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    failure = e.getCause();
+                }
+            }
+            List<Result> report = new ArrayList<Result>();
+            for (int i = 0; i < results.length; i++) {
+                report.add(results[i] != null ? results[i] : new Result(targets.get(i), false, 0, failure, false));
+            }
+            return new Report(report, System.currentTimeMillis() - start);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Queue the targets of each group, to be taken by at most the per group limit of tasks, so that a thread
+     * is never left waiting for its group while targets of other groups could run.  A target without a
+     * group, or with no per group limit, is a queue of its own.
+     *
+     * @return the indexes of the targets in each queue, in the order they were added
+     */
+    private List<Queue<Integer>> queues() {
+        List<Queue<Integer>> queues = new ArrayList<Queue<Integer>>();
+        Map<String, Queue<Integer>> groups = new HashMap<String, Queue<Integer>>();
+        for (int i = 0; i < targets.size(); i++) {
+            String group = targets.get(i).group;
+            Queue<Integer> queue = group == null || groupConcurrency <= 0 ? null : groups.get(group);
+            if (queue == null) {
+                queue = new ConcurrentLinkedQueue<Integer>();
+                queues.add(queue);
+                if (group != null && groupConcurrency > 0) groups.put(group, queue);
+            }
+            queue.add(i);
+        }
+        return queues;
+    }
+
+    private Result migrate(Target target) {
+        long start = System.currentTimeMillis();
+        try {
+            boolean migrated = createMigrate(target).migrate();
+            long duration = System.currentTimeMillis() - start;
+            Migrate.logger.info((migrated ? "Migrated " : "Already current ") + target.name + " in " + duration + "ms");
+            return new Result(target, migrated, duration, null, false);
+        } catch (Throwable t) {
+            Migrate.logger.log(Level.SEVERE, "Failed to migrate " + target.name, t);
+            return new Result(target, false, System.currentTimeMillis() - start, t, false);
+        }
+    }
+
+    /**
+     * Create the Migrate for a target.  Override to set additional options.
+     *
+     * @param target the target to migrate
+     * @return a Migrate for the target
+     */
+    protected Migrate createMigrate(Target target) {
+        if (target.datasource != null) {
+            return new Migrate(packageName, target.datasource, version);
+        }
+        return new Migrate(packageName, target.url, target.driver, version, target.properties);
+    }
+
+    /**
+     * Use a virtual thread per target where the JVM has them, otherwise a pool of the global limit.
+     */
+    private ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return Executors.newFixedThreadPool(concurrency);
+        }
+    }
+
+    /**
+     * @param concurrency the most targets to migrate at once, 8 by default
+     */
+    public void setConcurrency(int concurrency) {
+        if (concurrency < 1) throw new IllegalArgumentException("Concurrency must be at least 1");
+        this.concurrency = concurrency;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * @param groupConcurrency the most targets in the same group to migrate at once, 0 for no limit
+     */
+    public void setGroupConcurrency(int groupConcurrency) {
+        this.groupConcurrency = groupConcurrency;
+    }
+
+    public int getGroupConcurrency() {
+        return groupConcurrency;
+    }
+
+    public void setFailurePolicy(FailurePolicy failurePolicy) {
+        this.failurePolicy = failurePolicy;
+    }
+
+    public FailurePolicy getFailurePolicy() {
+        return failurePolicy;
+    }
+
+    /**
+     * A database to migrate
+     */
+    public static class Target {
+        private final String name;
+        private final String group;
+        private final DataSource datasource;
+        private final String url;
+        private final String driver;
+        private final Properties properties;
+
+        private Target(String name, String group, DataSource datasource, String url, String driver, Properties properties) {
+            this.name = name;
+            this.group = group;
+            this.datasource = datasource;
+            this.url = url;
+            this.driver = driver;
+            this.properties = properties;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getGroup() {
+            return group;
+        }
+
+        public DataSource getDatasource() {
+            return datasource;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public String getDriver() {
+            return driver;
+        }
+
+        public Properties getProperties() {
+            return properties;
+        }
+    }
+
+    /**
+     * The outcome of migrating one target
+     */
+    public static class Result {
+        private final Target target;
+        private final boolean migrated;
+        private final long duration;
+        private final Throwable failure;
+        private final boolean skipped;
+
+        private Result(Target target, boolean migrated, long duration, Throwable failure, boolean skipped) {
+            this.target = target;
+            this.migrated = migrated;
+            this.duration = duration;
+            this.failure = failure;
+            this.skipped = skipped;
+        }
+
+        public Target getTarget() {
+            return target;
+        }
+
+        /**
+         * @return true if migrate() did any work
+         */
+        public boolean isMigrated() {
+            return migrated;
+        }
+
+        /**
+         * @return how long the migration took in milliseconds
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        /**
+         * @return why the migration failed, or null if it didn't
+         */
+        public Throwable getFailure() {
+            return failure;
+        }
+
+        /**
+         * @return true if the target wasn't started because another failed first
+         */
+        public boolean isSkipped() {
+            return skipped;
+        }
+
+        public String toString() {
+            return target.name + ": " + (skipped ? "skipped" : failure != null ? "failed, " + failure :
+                    (migrated ? "migrated" : "current") + " in " + duration + "ms");
+        }
+    }
+
+    /**
+     * The outcome of a run across all the targets
+     */
+    public static class Report {
+        private final List<Result> results;
+        private final long duration;
+
+        private Report(List<Result> results, long duration) {
+            this.results = results;
+            this.duration = duration;
+        }
+
+        public List<Result> getResults() {
+            return results;
+        }
+
+        public long getDuration() {
+            return duration;
+        }
+
+        public int getMigrated() {
+            int count = 0;
+            for (Result result : results) if (result.isMigrated()) count++;
+            return count;
+        }
+
+        public int getFailed() {
+            int count = 0;
+            for (Result result : results) if (result.getFailure() != null) count++;
+            return count;
+        }
+
+        public int getSkipped() {
+            int count = 0;
+            for (Result result : results) if (result.isSkipped()) count++;
+            return count;
+        }
+
+        /**
+         * @return true if every target is now current
+         */
+        public boolean isSuccess() {
+            return getFailed() == 0 && getSkipped() == 0;
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(results.size()).append(" targets in ").append(duration).append("ms: ")
+                    .append(getMigrated()).append(" migrated, ")
+                    .append(results.size() - getMigrated() - getFailed() - getSkipped()).append(" current, ")
+                    .append(getFailed()).append(" failed, ")
+                    .append(getSkipped()).append(" skipped");
+            for (Result result : results) {
+                if (result.getFailure() != null) sb.append("\n  ").append(result);
+            }
+            return sb.toString();
+        }
+    }
+}
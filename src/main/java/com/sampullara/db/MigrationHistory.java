@@ -0,0 +1,92 @@
+package com.sampullara.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Every migration applied to a database, kept in a table next to the version table: the version it
+ * migrated to, its source, type and checksum, how long it took and when it was applied.  Rows are written
+ * on the migrating connection, so they are committed or rolled back along with the migration.  Migrations
+ * applied before the table existed aren't in it.
+ */
+class MigrationHistory {
+
+    private final Connection conn;
+    private final String table;
+    private boolean created;
+
+    /**
+     * @param conn  a connection to the database
+     * @param table the history table
+     */
+    MigrationHistory(Connection conn, String table) {
+        this.conn = conn;
+        this.table = table;
+    }
+
+    /**
+     * Record a migration, creating the table if it doesn't exist yet.  That is only looked into before the
+     * first migration recorded, one MigrationHistory is kept for each run.
+     *
+     * @param version  the version the migration migrated to
+     * @param source   its script, class or CSV file
+     * @param type     its type
+     * @param checksum the SHA-1 of its source, or null for classes
+     * @param nanos    how long it took
+     * @throws SQLException if the row can't be written
+     */
+    void record(int version, String source, MigrationStep.Type type, String checksum, long nanos) throws SQLException {
+        if (!created && !Tables.exists(conn, table)) {
+            Statement st = conn.createStatement();
+            try {
+                st.execute("CREATE TABLE " + table + " (version integer not null, source varchar(255) not null, " +
+                        "type varchar(16) not null, checksum varchar(40), duration bigint not null, applied_at timestamp not null)");
+            } finally {
+                st.close();
+            }
+        }
+        created = true;
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO " + table +
+                " (version, source, type, checksum, duration, applied_at) VALUES (?, ?, ?, ?, ?, ?)");
+        try {
+            ps.setInt(1, version);
+            ps.setString(2, source);
+            ps.setString(3, type.name());
+            ps.setString(4, checksum);
+            ps.setLong(5, nanos / 1000000);
+            ps.setTimestamp(6, new Timestamp(System.currentTimeMillis()));
+            ps.executeUpdate();
+        } finally {
+            ps.close();
+        }
+    }
+
+    /**
+     * Read the checksums of every migration with one, in a single query.
+     *
+     * @return the checksum of each source, the latest where one was applied more than once, in version order,
+     *         empty if there is no history table
+     * @throws SQLException if the table can't be read
+     */
+    Map<String, String> checksums() throws SQLException {
+        Map<String, String> checksums = new LinkedHashMap<String, String>();
+        if (!Tables.exists(conn, table)) return checksums;
+        Statement st = conn.createStatement();
+        try {
+            ResultSet rs = st.executeQuery("SELECT source, checksum FROM " + table +
+                    " WHERE checksum IS NOT NULL ORDER BY version, applied_at");
+            while (rs.next()) {
+                checksums.put(rs.getString(1), rs.getString(2));
+            }
+        } finally {
+            st.close();
+        }
+        return checksums;
+    }
+}
@@ -0,0 +1,257 @@
+package com.sampullara.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Index of the migrations available for a package, built by listing the package once instead of probing
+ * for every candidate class and script at every version.  Both the classpath (directories and JARs) and
+ * the filesystem are listed, for the generic package and for the database specific subpackage.
+ * <p/>
+ * Baseline snapshots, baselineN.sql, are indexed as well.  They are only found by listing, never probed for.
+ * <p/>
+ * Classpath locations that can't be listed (a custom URL scheme for example) are logged and the index
+ * falls back to probing for the versions it has no entry for, the way migrate() always used to.
+ */
+class MigrationIndex {
+
+    private static final Pattern CLASS = Pattern.compile("Migrate(From|To)(\\d+)\\.class");
+    private static final Pattern SCRIPT = Pattern.compile("migrate(from|to)(\\d+)\\.(sql|groovy|csv)");
+    private static final Pattern BASELINE = Pattern.compile("baseline(\\d+)\\.sql");
+
+    private final String packageName;
+    private final String databaseName;
+    private final Map<Integer, MigrationStep> steps = new HashMap<Integer, MigrationStep>();
+    private final TreeMap<Integer, String> baselines = new TreeMap<Integer, String>();
+    private final Set<Integer> specificBaselines = new HashSet<Integer>();
+    private boolean complete = true;
+
+    /**
+     * Scan the package for migrations.
+     *
+     * @param packageName  the package or directory of the migrations
+     * @param databaseName the normalized name of the database, used for the database specific subpackage
+     */
+    MigrationIndex(String packageName, String databaseName) {
+        this.packageName = packageName;
+        this.databaseName = databaseName;
+        String path = packageName.replace(".", "/");
+        scan(path, false);
+        scan(path + "/" + databaseName, true);
+    }
+
+    /**
+     * @param dbVersion the current version of the database
+     * @return the migration from that version, or null if there isn't one
+     */
+    MigrationStep resolve(int dbVersion) {
+        MigrationStep step = steps.get(dbVersion);
+        if (step == null && !complete) {
+            step = probe(dbVersion);
+        }
+        return step;
+    }
+
+    /**
+     * @param maxVersion the highest version to start from
+     * @return the version of the newest baseline snapshot up to maxVersion, or 0 if there is none
+     */
+    int baselineVersion(int maxVersion) {
+        SortedMap<Integer, String> candidates = maxVersion == Integer.MAX_VALUE ? baselines : baselines.headMap(maxVersion + 1);
+        return candidates.isEmpty() ? 0 : candidates.lastKey();
+    }
+
+    /**
+     * @param version a version returned by baselineVersion()
+     * @return the script of the baseline snapshot at that version
+     */
+    String baselineName(int version) {
+        return baselines.get(version);
+    }
+
+    private void scan(String path, boolean databaseSpecific) {
+        // Classes are loaded with Class.forName, so only list those that classloader can see
+        Set<URL> classUrls = new LinkedHashSet<URL>();
+        Set<URL> urls = new LinkedHashSet<URL>();
+        try {
+            addAll(classUrls, Migrate.class.getClassLoader(), path);
+            addAll(urls, Thread.currentThread().getContextClassLoader(), path);
+            urls.addAll(classUrls);
+        } catch (IOException e) {
+            Migrate.logger.log(Level.WARNING, "Could not list migrations in " + path + ": " + e);
+            complete = false;
+        }
+        for (URL url : urls) {
+            boolean classes = classUrls.contains(url);
+            for (String entry : list(url, path)) {
+                int slash = entry.indexOf('/');
+                if (slash == -1) {
+                    add(entry, path, databaseSpecific, classes);
+                } else if (!databaseSpecific && entry.substring(0, slash).equals(databaseName)) {
+                    // JARs without directory entries only show up when listing the generic package
+                    add(entry.substring(slash + 1), path + "/" + databaseName, true, classes);
+                }
+            }
+        }
+        File directory = new File(path);
+        if (directory.isDirectory()) {
+            String[] entries = directory.list();
+            if (entries != null) for (String entry : entries) {
+                add(entry, path, databaseSpecific, false);
+            }
+        } else if (urls.isEmpty() && !databaseSpecific) {
+            // The package may be in a JAR without directory entries, which can't be found by name
+            Migrate.logger.log(Level.WARNING, "Can't find " + path + " to list migrations, will probe for them instead");
+            complete = false;
+        }
+    }
+
+    private static void addAll(Set<URL> urls, ClassLoader loader, String path) throws IOException {
+        if (loader == null) return;
+        Enumeration<URL> resources = loader.getResources(path);
+        while (resources.hasMoreElements()) {
+            urls.add(resources.nextElement());
+        }
+    }
+
+    /**
+     * @return the names of the entries within the directory or JAR directory at url, down to one subdirectory
+     *         for JARs
+     */
+    private List<String> list(URL url, String path) {
+        List<String> entries = new ArrayList<String>();
+        try {
+            if ("file".equals(url.getProtocol())) {
+                String[] names = new File(url.toURI()).list();
+                if (names != null) for (String name : names) {
+                    entries.add(name);
+                }
+                return entries;
+            }
+            URLConnection connection = url.openConnection();
+            if (connection instanceof JarURLConnection) {
+                JarFile jar = ((JarURLConnection) connection).getJarFile();
+                String prefix = path + "/";
+                Enumeration<JarEntry> jarEntries = jar.entries();
+                while (jarEntries.hasMoreElements()) {
+                    String name = jarEntries.nextElement().getName();
+                    int slash = name.indexOf('/', prefix.length());
+                    if (name.startsWith(prefix) && (slash == -1 || name.indexOf('/', slash + 1) == -1)) {
+                        entries.add(name.substring(prefix.length()));
+                    }
+                }
+                return entries;
+            }
+        } catch (IOException e) {
+            Migrate.logger.log(Level.WARNING, "Could not list migrations in " + url + ": " + e);
+        } catch (URISyntaxException e) {
+            Migrate.logger.log(Level.WARNING, "Could not list migrations in " + url + ": " + e);
+        }
+        Migrate.logger.log(Level.WARNING, "Can't list migrations in " + url + ", will probe for them instead");
+        complete = false;
+        return entries;
+    }
+
+    private void add(String entry, String path, boolean databaseSpecific, boolean classes) {
+        Matcher matcher = CLASS.matcher(entry);
+        if (matcher.matches()) {
+            if (classes) {
+                String className = packageName + (databaseSpecific ? "." + databaseName : "") +
+                        ".Migrate" + matcher.group(1) + matcher.group(2);
+                add(step(matcher.group(1), matcher.group(2), MigrationStep.Type.CLASS,
+                        className.replace("-", ""), databaseSpecific));
+            }
+            return;
+        }
+        matcher = BASELINE.matcher(entry);
+        if (matcher.matches()) {
+            int version = Integer.parseInt(matcher.group(1));
+            // Database specific snapshots win over generic ones
+            if (databaseSpecific || !specificBaselines.contains(version)) {
+                baselines.put(version, path + "/" + entry);
+                if (databaseSpecific) specificBaselines.add(version);
+            }
+            return;
+        }
+        matcher = SCRIPT.matcher(entry);
+        if (matcher.matches()) {
+            MigrationStep.Type type = MigrationStep.Type.valueOf(matcher.group(3).toUpperCase());
+            add(step(matcher.group(1), matcher.group(2), type, path + "/" + entry, databaseSpecific));
+        }
+    }
+
+    private static MigrationStep step(String direction, String version, MigrationStep.Type type, String name,
+                                      boolean databaseSpecific) {
+        boolean to = direction.equalsIgnoreCase("to");
+        int fromVersion = Integer.parseInt(version) - (to ? 1 : 0);
+        return new MigrationStep(fromVersion, type, name, databaseSpecific, to);
+    }
+
+    private void add(MigrationStep step) {
+        MigrationStep existing = steps.get(step.getFromVersion());
+        if (existing == null || step.rank() < existing.rank()) {
+            steps.put(step.getFromVersion(), step);
+        }
+    }
+
+    /**
+     * Look for each of the candidate classes and scripts in order of precedence.
+     */
+    private MigrationStep probe(int dbVersion) {
+        String path = packageName.replace(".", "/");
+        for (int i = 0; i < 2; i++) {
+            boolean databaseSpecific = i == 0;
+            String className = packageName + (databaseSpecific ? "." + databaseName : "");
+            String scriptPath = path + (databaseSpecific ? "/" + databaseName : "");
+            for (int j = 0; j < 2; j++) {
+                boolean to = j == 1;
+                int version = dbVersion + (to ? 1 : 0);
+                String name = (to ? "To" : "From") + version;
+                String candidate = (className + ".Migrate" + name).replace("-", "");
+                try {
+                    Class.forName(candidate);
+                    return new MigrationStep(dbVersion, MigrationStep.Type.CLASS, candidate, databaseSpecific, to);
+                } catch (ClassNotFoundException e) {
+                    // Go on to the next candidate
+                }
+                String script = scriptPath + "/migrate" + name.toLowerCase();
+                if (exists(script + ".sql")) {
+                    return new MigrationStep(dbVersion, MigrationStep.Type.SQL, script + ".sql", databaseSpecific, to);
+                }
+                if (exists(script + ".groovy")) {
+                    return new MigrationStep(dbVersion, MigrationStep.Type.GROOVY, script + ".groovy", databaseSpecific, to);
+                }
+                if (exists(script + ".csv")) {
+                    return new MigrationStep(dbVersion, MigrationStep.Type.CSV, script + ".csv", databaseSpecific, to);
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean exists(String scriptName) {
+        ClassLoader context = Thread.currentThread().getContextClassLoader();
+        return (context != null && context.getResource(scriptName) != null) ||
+                Migrate.class.getClassLoader().getResource(scriptName) != null ||
+                new File(scriptName).exists();
+    }
+}
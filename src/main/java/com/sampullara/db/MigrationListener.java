@@ -0,0 +1,60 @@
+package com.sampullara.db;
+
+/**
+ * Told what a migration is doing as it happens, for metrics and tracing.  Register listeners with
+ * Migrate.addListener().  All times are in nanoseconds.
+ * <p/>
+ * Listeners are called on the migrating thread, so they should be quick, and anything they throw is
+ * logged and otherwise ignored.  Statements run by Migrator classes and Groovy migrations through
+ * Migrate.sqlScriptMigrator() are reported as well, since they run on the same thread.
+ */
+public interface MigrationListener {
+
+    /**
+     * @param database  the name of the database, see Migrate.getDatabaseName()
+     * @param dbVersion the version of the database before migrating
+     */
+    void runStarted(String database, int dbVersion);
+
+    /**
+     * @param dbVersion the version of the database after migrating, as far as we got
+     * @param migrated  true if any migration was run
+     * @param nanos     how long the run took
+     * @param failure   why the run failed, or null
+     */
+    void runFinished(int dbVersion, boolean migrated, long nanos, Throwable failure);
+
+    void stepStarted(MigrationStep step);
+
+    /**
+     * @param step    the migration that was run
+     * @param nanos   how long it took
+     * @param failure why it failed, or null
+     */
+    void stepFinished(MigrationStep step, long nanos, Throwable failure);
+
+    /**
+     * @param script     the script the statement is from
+     * @param lineNumber the line of the script on which the statement ends
+     * @param sql        the statement
+     */
+    void statementStarted(String script, int lineNumber, String sql);
+
+    /**
+     * Statements sent together in a batch are reported when the batch completes, each with an even share
+     * of the batch's time.
+     *
+     * @param script     the script the statement is from
+     * @param lineNumber the line of the script on which the statement ends
+     * @param sql        the statement
+     * @param nanos      how long the statement took
+     * @param rows       the rows affected, or -1 if the driver didn't say
+     * @param failure    why the statement failed, or null
+     */
+    void statementFinished(String script, int lineNumber, String sql, long nanos, int rows, Throwable failure);
+
+    /**
+     * @param nanos how long we waited for the lock on the version table
+     */
+    void lockAcquired(long nanos);
+}
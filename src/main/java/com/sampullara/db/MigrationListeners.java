@@ -0,0 +1,146 @@
+package com.sampullara.db;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+
+/**
+ * Passes each event on to every registered listener, logging and otherwise ignoring their failures so that
+ * a broken listener can't break a migration.
+ * <p/>
+ * The listeners of the migration running on a thread are also available from current(), which is how the
+ * static sqlScriptMigrator() reports the statements of scripts called from Groovy migrations.
+ */
+class MigrationListeners implements MigrationListener {
+
+    private static final MigrationListeners NONE = new MigrationListeners();
+    private static final ThreadLocal<MigrationListeners> current = new ThreadLocal<MigrationListeners>();
+
+    private final List<MigrationListener> listeners = new CopyOnWriteArrayList<MigrationListener>();
+
+    /**
+     * @return the listeners of the migration running on this thread, never null
+     */
+    static MigrationListeners current() {
+        MigrationListeners listeners = current.get();
+        return listeners == null ? NONE : listeners;
+    }
+
+    /**
+     * Make these the listeners of the migration running on this thread.
+     *
+     * @return the listeners that were current before, to be restored with restore()
+     */
+    MigrationListeners install() {
+        MigrationListeners previous = current.get();
+        current.set(this);
+        return previous;
+    }
+
+    static void restore(MigrationListeners previous) {
+        if (previous == null) {
+            current.remove();
+        } else {
+            current.set(previous);
+        }
+    }
+
+    void add(MigrationListener listener) {
+        listeners.add(listener);
+    }
+
+    void remove(MigrationListener listener) {
+        listeners.remove(listener);
+    }
+
+    boolean isEmpty() {
+        return listeners.isEmpty();
+    }
+
+    public void runStarted(String database, int dbVersion) {
+        for (MigrationListener listener : listeners) {
+            try {
+                listener.runStarted(database, dbVersion);
+            } catch (RuntimeException e) {
+                failed(listener, e);
+            }
+        }
+    }
+
+    public void runFinished(int dbVersion, boolean migrated, long nanos, Throwable failure) {
+        for (MigrationListener listener : listeners) {
+            try {
+                listener.runFinished(dbVersion, migrated, nanos, failure);
+            } catch (RuntimeException e) {
+                failed(listener, e);
+            }
+        }
+    }
+
+    public void stepStarted(MigrationStep step) {
+        for (MigrationListener listener : listeners) {
+            try {
+                listener.stepStarted(step);
+            } catch (RuntimeException e) {
+                failed(listener, e);
+            }
+        }
+    }
+
+    public void stepFinished(MigrationStep step, long nanos, Throwable failure) {
+        for (MigrationListener listener : listeners) {
+            try {
+                listener.stepFinished(step, nanos, failure);
+            } catch (RuntimeException e) {
+                failed(listener, e);
+            }
+        }
+    }
+
+    public void statementStarted(String script, int lineNumber, String sql) {
+        for (MigrationListener listener : listeners) {
+            try {
+                listener.statementStarted(script, lineNumber, sql);
+            } catch (RuntimeException e) {
+                failed(listener, e);
+            }
+        }
+    }
+
+    public void statementFinished(String script, int lineNumber, String sql, long nanos, int rows, Throwable failure) {
+        for (MigrationListener listener : listeners) {
+            try {
+                listener.statementFinished(script, lineNumber, sql, nanos, rows, failure);
+            } catch (RuntimeException e) {
+                failed(listener, e);
+            }
+        }
+    }
+
+    /**
+     * Pass the progress through a script on to the listeners that want it, see ProgressListener.
+     */
+    void scriptProgress(String script, int statements, int totalStatements, long bytes, long totalBytes) {
+        for (MigrationListener listener : listeners) {
+            if (listener instanceof ProgressListener) try {
+                ((ProgressListener) listener).scriptProgress(script, statements, totalStatements, bytes, totalBytes);
+            } catch (RuntimeException e) {
+                failed(listener, e);
+            }
+        }
+    }
+
+    public void lockAcquired(long nanos) {
+        for (MigrationListener listener : listeners) {
+            try {
+                listener.lockAcquired(nanos);
+            } catch (RuntimeException e) {
+                failed(listener, e);
+            }
+        }
+    }
+
+    private static void failed(MigrationListener listener, RuntimeException e) {
+        Migrate.logger.log(Level.WARNING, "Migration listener failed: " + listener, e);
+    }
+}
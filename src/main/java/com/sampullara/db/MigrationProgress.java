@@ -0,0 +1,182 @@
+package com.sampullara.db;
+
+/**
+ * Keeps track of how far a migration has got, for another thread to poll while it runs, e.g. one that
+ * started it with Migrate.migrateAsync() and reports on startup.  Register it with Migrate.addListener().
+ * <p/>
+ * Every getter reads the state as of the last event, and toString() describes it all at once.
+ */
+public class MigrationProgress implements ProgressListener {
+
+    private boolean running;
+    private boolean finished;
+    private int fromVersion = -1;
+    private int dbVersion = -1;
+    private int steps;
+    private MigrationStep step;
+    private String script;
+    private int statements;
+    private int totalStatements = -1;
+    private long bytes;
+    private long totalBytes = -1;
+    private Throwable failure;
+
+    public synchronized void runStarted(String database, int dbVersion) {
+        running = true;
+        finished = false;
+        fromVersion = this.dbVersion = dbVersion;
+        steps = 0;
+        step = null;
+        failure = null;
+        clearScript();
+    }
+
+    public synchronized void runFinished(int dbVersion, boolean migrated, long nanos, Throwable failure) {
+        running = false;
+        finished = true;
+        this.dbVersion = dbVersion;
+        this.failure = failure;
+        step = null;
+        clearScript();
+    }
+
+    public synchronized void stepStarted(MigrationStep step) {
+        this.step = step;
+        clearScript();
+    }
+
+    public synchronized void stepFinished(MigrationStep step, long nanos, Throwable failure) {
+        if (failure == null) {
+            steps++;
+            dbVersion = step.getToVersion();
+        }
+    }
+
+    public void statementStarted(String script, int lineNumber, String sql) {
+    }
+
+    public void statementFinished(String script, int lineNumber, String sql, long nanos, int rows, Throwable failure) {
+    }
+
+    public void lockAcquired(long nanos) {
+    }
+
+    public synchronized void scriptProgress(String script, int statements, int totalStatements, long bytes, long totalBytes) {
+        this.script = script;
+        this.statements = statements;
+        this.totalStatements = totalStatements;
+        this.bytes = bytes;
+        this.totalBytes = totalBytes;
+    }
+
+    private void clearScript() {
+        script = null;
+        statements = 0;
+        totalStatements = -1;
+        bytes = 0;
+        totalBytes = -1;
+    }
+
+    /**
+     * @return true from when the database is locked until the migration completes
+     */
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return true once a migration has completed, successfully or not
+     */
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return the version of the database when the migration started, or -1 if it hasn't
+     */
+    public synchronized int getFromVersion() {
+        return fromVersion;
+    }
+
+    /**
+     * @return the version the database is at as far as the migration has got, or -1 if it hasn't started
+     */
+    public synchronized int getDBVersion() {
+        return dbVersion;
+    }
+
+    /**
+     * @return the migrations that have completed
+     */
+    public synchronized int getSteps() {
+        return steps;
+    }
+
+    /**
+     * @return the migration running now, or null
+     */
+    public synchronized MigrationStep getStep() {
+        return step;
+    }
+
+    /**
+     * @return the SQL script running now, or null
+     */
+    public synchronized String getScript() {
+        return script;
+    }
+
+    /**
+     * @return the statements of the script that have run
+     */
+    public synchronized int getStatements() {
+        return statements;
+    }
+
+    /**
+     * @return the statements in the script, or -1 until it has all been read
+     */
+    public synchronized int getTotalStatements() {
+        return totalStatements;
+    }
+
+    /**
+     * @return the bytes of the script that have been read
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the size of the script, or -1 if it isn't known
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return why the last migration failed, or null
+     */
+    public synchronized Throwable getFailure() {
+        return failure;
+    }
+
+    public synchronized String toString() {
+        if (!running) {
+            if (!finished) return "not started";
+            return (failure == null ? "migrated " : "failed after migrating ") + steps + " steps from version " +
+                    fromVersion + " to " + dbVersion;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("version ").append(dbVersion).append(", ").append(steps).append(" steps done");
+        if (step != null) sb.append(", running ").append(step);
+        if (script != null) {
+            sb.append(", ").append(statements);
+            if (totalStatements >= 0) sb.append("/").append(totalStatements);
+            sb.append(" statements, ").append(bytes);
+            if (totalBytes >= 0) sb.append("/").append(totalBytes);
+            sb.append(" bytes");
+        }
+        return sb.toString();
+    }
+}
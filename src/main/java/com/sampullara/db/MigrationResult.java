@@ -0,0 +1,51 @@
+package com.sampullara.db;
+
+/**
+ * What a run of migrate() did, from Migrate.migrateAsync().
+ */
+public class MigrationResult {
+
+    private final boolean migrated;
+    private final int fromVersion;
+    private final int toVersion;
+    private final long nanos;
+
+    MigrationResult(boolean migrated, int fromVersion, int toVersion, long nanos) {
+        this.migrated = migrated;
+        this.fromVersion = fromVersion;
+        this.toVersion = toVersion;
+        this.nanos = nanos;
+    }
+
+    /**
+     * @return true if a migration occurred, false if the database was up to date or another process migrated it
+     */
+    public boolean isMigrated() {
+        return migrated;
+    }
+
+    /**
+     * @return the version of the database before migrating
+     */
+    public int getFromVersion() {
+        return fromVersion;
+    }
+
+    /**
+     * @return the version of the database after migrating
+     */
+    public int getToVersion() {
+        return toVersion;
+    }
+
+    /**
+     * @return how long the run took, in nanoseconds, including any wait for the lock
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    public String toString() {
+        return (migrated ? "migrated from version " + fromVersion + " to " : "up to date at version ") + toVersion;
+    }
+}
@@ -0,0 +1,75 @@
+package com.sampullara.db;
+
+/**
+ * A single resolved migration: the class or script that will move the database from one version to the
+ * next.
+ */
+public class MigrationStep {
+
+    /**
+     * The kinds of migration, in the order they are preferred when more than one exists for a version
+     */
+    public static enum Type {
+        CLASS, SQL, GROOVY, CSV
+    }
+
+    private final int fromVersion;
+    private final Type type;
+    private final String name;
+    private final boolean databaseSpecific;
+    private final boolean to;
+
+    /**
+     * @param fromVersion      the database version this step migrates from
+     * @param type             whether this is a Migrator class, a SQL script, a Groovy script or a CSV load
+     * @param name             the class name or the resource / file name of the script
+     * @param databaseSpecific true if the step was found in the database specific package
+     * @param to               true if the step was named for the version it migrates to (MigrateTo / migrateto)
+     */
+    public MigrationStep(int fromVersion, Type type, String name, boolean databaseSpecific, boolean to) {
+        this.fromVersion = fromVersion;
+        this.type = type;
+        this.name = name;
+        this.databaseSpecific = databaseSpecific;
+        this.to = to;
+    }
+
+    public int getFromVersion() {
+        return fromVersion;
+    }
+
+    public int getToVersion() {
+        return fromVersion + 1;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isDatabaseSpecific() {
+        return databaseSpecific;
+    }
+
+    public boolean isTo() {
+        return to;
+    }
+
+    /**
+     * Database specific steps win over generic ones, then From over To, then classes over SQL over Groovy
+     * over CSV.
+     *
+     * @return the precedence of this step, lower wins
+     */
+    int rank() {
+        int types = Type.values().length;
+        return (databaseSpecific ? 0 : 2 * types) + (to ? types : 0) + type.ordinal();
+    }
+
+    public String toString() {
+        return fromVersion + " -> " + getToVersion() + ": " + type + " " + name;
+    }
+}
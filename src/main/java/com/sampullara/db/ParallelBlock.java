@@ -0,0 +1,258 @@
+package com.sampullara.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Statements of a script that don't depend on each other, typically CREATE INDEX on different tables, run
+ * at the same time on a few extra connections.  In a script they are marked with directives:
+ * <pre>
+ * -- @parallel threads=4 timeout=600
+ * CREATE INDEX accounts_email ON accounts (email);
+ * CREATE INDEX orders_account ON orders (account_id);
+ * CREATE INDEX events_time ON events (created);
+ * -- @end
+ * INSERT INTO ...
+ * </pre>
+ * The block ends at the end directive or at the end of the script, and all of its statements have completed
+ * before anything after it runs.  A block that hasn't completed after the timeout, an hour unless the
+ * directive says otherwise, is cancelled and fails the migration.
+ * <p/>
+ * Each connection is in auto commit mode, so the statements are committed as they complete rather than
+ * with the migration, and they can only see what the migration has committed.  Blocks are therefore only
+ * run in parallel in online mode, where everything before the block has been committed; otherwise a
+ * statement needing a lock held by the migration's own uncommitted work would wait for it forever.  Auto
+ * commit also allows statements that can't run in a transaction, like CREATE INDEX CONCURRENTLY on
+ * PostgreSQL.
+ * <p/>
+ * Statements are reported to the listeners on the migrating thread once the block is done, each with its
+ * own time.
+ */
+class ParallelBlock {
+
+    /** the number of connections used when the directive doesn't say */
+    private static final int DEFAULT_THREADS = 4;
+    /** how long the block may take when the directive doesn't say, in seconds */
+    private static final int DEFAULT_TIMEOUT = 3600;
+
+    private final int threads;
+    private int timeout = DEFAULT_TIMEOUT;
+    private final List<Integer> lines = new ArrayList<Integer>();
+    private final List<String> statements = new ArrayList<String>();
+    private int completed;
+
+    ParallelBlock(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("A parallel block needs at least 1 thread");
+        this.threads = threads;
+    }
+
+    /**
+     * Create a block from the options of a parallel directive.
+     *
+     * @param options e.g. "threads=4"
+     * @return the block, empty
+     * @throws MigrationException if an option is invalid
+     */
+    static ParallelBlock parse(String options) throws MigrationException {
+        int threads = DEFAULT_THREADS;
+        int timeout = DEFAULT_TIMEOUT;
+        for (String option : options.trim().split("\\s+")) {
+            if (option.length() == 0) continue;
+            if (option.startsWith("threads=")) {
+                threads = parseOption(option, "threads=");
+                if (threads < 1) throw new MigrationException("A parallel block needs at least 1 thread: " + option);
+            } else if (option.startsWith("timeout=")) {
+                timeout = parseOption(option, "timeout=");
+                if (timeout < 1) throw new MigrationException("A parallel block needs a timeout of at least 1 second: " + option);
+            } else {
+                throw new MigrationException("Unknown parallel option: " + option);
+            }
+        }
+        ParallelBlock block = new ParallelBlock(threads);
+        block.timeout = timeout;
+        return block;
+    }
+
+    private static int parseOption(String option, String name) throws MigrationException {
+        try {
+            return Integer.parseInt(option.substring(name.length()));
+        } catch (NumberFormatException e) {
+            throw new MigrationException("Invalid parallel option: " + option, e);
+        }
+    }
+
+    void add(int lineNumber, String sqlStatement) {
+        lines.add(lineNumber);
+        statements.add(sqlStatement);
+    }
+
+    int size() {
+        return statements.size();
+    }
+
+    /**
+     * Run the statements and wait for all of them.  After a failure no more statements are started, the
+     * ones already running are waited for.  After the timeout the running statements are cancelled.
+     *
+     * @param migrate   opens the connections
+     * @param script    the script of the block, for the listeners
+     * @param listeners told about each statement once they are all done
+     * @throws MigrationException if a statement failed, the first in the script if more than one did, or the
+     *                            block timed out
+     */
+    void run(final Migrate migrate, String script, MigrationListener listeners) throws MigrationException {
+        final int size = statements.size();
+        final long[] nanos = new long[size];
+        final int[] rows = new int[size];
+        final boolean[] started = new boolean[size];
+        final Statement[] running = new Statement[workers(size)];
+        final SQLException[] failures = new SQLException[size];
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        int workers = workers(size);
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        MigrationException failure = null;
+        try {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for (int w = 0; w < workers; w++) {
+                final int worker = w;
+                futures.add(executor.submit(new Callable<Object>() {
+                    public Object call() throws MigrationException {
+                        Connection conn = migrate.openConnection();
+                        try {
+                            conn.setAutoCommit(true);
+                            int i;
+                            while (failed.get() == 0 && (i = next.getAndIncrement()) < size) {
+                                started[i] = true;
+                                long start = System.nanoTime();
+                                try {
+                                    rows[i] = execute(conn, statements.get(i), running, worker);
+                                } catch (SQLException e) {
+                                    failures[i] = e;
+                                    failed.incrementAndGet();
+                                }
+                                nanos[i] = System.nanoTime() - start;
+                            }
+                            return null;
+                        } catch (SQLException e) {
+                            failed.incrementAndGet();
+                            throw new MigrationException("Could not set up a connection for a parallel block", e);
+                        } finally {
+                            try {
+                                conn.close();
+                            } catch (SQLException e) {
+                                Migrate.logger.log(Level.WARNING, "Couldn't close a database connection, we may be leaking them");
+                            }
+                        }
+                    }
+                }));
+            }
+            long deadline = System.currentTimeMillis() + timeout * 1000L;
+            for (Future<Object> future : futures) {
+                try {
+                    future.get(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    failed.incrementAndGet();
+                    cancel(running);
+                    throw new MigrationException("Parallel block from line #" + lines.get(0) + " did not complete in " +
+                            timeout + " seconds");
+                } catch (ExecutionException e) {
+                    failed.incrementAndGet();
+                    if (failure == null) {
+                        failure = e.getCause() instanceof MigrationException ? (MigrationException) e.getCause() :
+                                new MigrationException("Parallel block from line #" + lines.get(0) + " failed", e.getCause());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MigrationException("Interrupted while waiting for the parallel block from line #" + lines.get(0));
+        } finally {
+            executor.shutdownNow();
+        }
+        // The futures have all completed, so everything the workers wrote is visible here
+        for (int i = 0; i < size; i++) {
+            if (!started[i]) continue;
+            listeners.statementStarted(script, lines.get(i), statements.get(i));
+            listeners.statementFinished(script, lines.get(i), statements.get(i), nanos[i], failures[i] == null ? rows[i] : -1, failures[i]);
+        }
+        while (completed < size && started[completed] && failures[completed] == null) {
+            completed++;
+        }
+        for (int i = 0; i < size; i++) {
+            if (failures[i] != null) {
+                throw new MigrationException("Failed to execute SQL line #" + lines.get(i) + ": " + statements.get(i), failures[i]);
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * @return how many statements at the start of the block completed in run(), all of them unless one failed
+     */
+    int getCompleted() {
+        return completed;
+    }
+
+    /**
+     * For running the block one statement at a time where no more connections can be opened.
+     *
+     * @return the lines of the statements of the block, in order
+     */
+    List<Integer> getLines() {
+        return lines;
+    }
+
+    /**
+     * @return the statements of the block, in order
+     */
+    List<String> getStatements() {
+        return statements;
+    }
+
+    private int workers(int size) {
+        return Math.min(threads, size);
+    }
+
+    /**
+     * @param running where the statement is kept while it runs, so that it can be cancelled
+     */
+    private static int execute(Connection conn, String sqlStatement, Statement[] running, int worker) throws SQLException {
+        Statement st = conn.createStatement();
+        synchronized (running) {
+            running[worker] = st;
+        }
+        try {
+            return st.execute(sqlStatement) ? -1 : st.getUpdateCount();
+        } finally {
+            synchronized (running) {
+                running[worker] = null;
+            }
+            st.close();
+        }
+    }
+
+    private static void cancel(Statement[] running) {
+        synchronized (running) {
+            for (Statement st : running) {
+                if (st != null) try {
+                    st.cancel();
+                } catch (SQLException e) {
+                    Migrate.logger.log(Level.WARNING, "Could not cancel a statement of a parallel block", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.sampullara.db;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Reads and splits a script on its own thread while the statements already found are executed, so that
+ * reading the script from disk, tokenizing it and waiting for the database overlap.  The statements are
+ * handed over through a bounded queue, so a fast reader stays at most CAPACITY statements ahead and a large
+ * script is never held in memory.
+ * <p/>
+ * The statements are still executed in order on the calling thread and its connection, and a failure to
+ * read the script is thrown from hasNext() or next() at the point in the script it happened, just as it
+ * would be by the SqlStatementTokenizer itself.
+ */
+class PipelinedTokenizer {
+
+    /** how many statements the reader can get ahead */
+    private static final int CAPACITY = 64;
+    /** how often a blocked reader checks whether it has been closed, in milliseconds */
+    private static final long POLL = 100;
+    /** how long close() waits for the reader to stop, in milliseconds */
+    private static final long STOP = 5000;
+
+    private static final Parsed END = new Parsed(0, null, null, null);
+
+    private final SqlStatementTokenizer tokenizer;
+    private final BlockingQueue<Parsed> queue = new ArrayBlockingQueue<Parsed>(CAPACITY);
+    private final Thread reader;
+    private volatile boolean closed;
+    private volatile int read;
+    private volatile boolean complete;
+    private Parsed next;
+    private Parsed current;
+
+    /**
+     * Start reading the script.  The caller must close() the pipeline, which stops the reader, before it
+     * closes the tokenizer's Reader.
+     *
+     * @param tokenizer the tokenizer of the script
+     * @param script    the name of the script, for the reader thread
+     */
+    PipelinedTokenizer(SqlStatementTokenizer tokenizer, String script) {
+        this.tokenizer = tokenizer;
+        reader = new Thread(new Runnable() {
+            public void run() {
+                read();
+            }
+        }, "dbmigrate reader " + script);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void read() {
+        try {
+            while (!closed && tokenizer.hasNext()) {
+                String statement = tokenizer.next();
+                if (!put(new Parsed(tokenizer.getLineNumber(), statement, tokenizer.getDirectives(), null))) return;
+                read++;
+            }
+            complete = !closed;
+            put(END);
+        } catch (RuntimeException e) {
+            put(new Parsed(0, null, null, e));
+        } catch (Error e) {
+            put(new Parsed(0, null, null, e));
+        }
+    }
+
+    /**
+     * @return false if the pipeline was closed before there was room
+     */
+    private boolean put(Parsed parsed) {
+        try {
+            while (!closed) {
+                if (queue.offer(parsed, POLL, TimeUnit.MILLISECONDS)) return true;
+            }
+        } catch (InterruptedException e) {
+            // Nobody is waiting for the statements any more
+        }
+        return false;
+    }
+
+    /**
+     * @return true if there is another statement in the script
+     * @throws MigrationException if we are interrupted while waiting for the reader
+     * @throws SqlStatementTokenizer.ReadException
+     *                            if the script can't be read
+     */
+    boolean hasNext() throws MigrationException {
+        if (next == null) {
+            try {
+                next = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MigrationException("Interrupted while reading the script");
+            }
+        }
+        if (next.failure instanceof RuntimeException) throw (RuntimeException) next.failure;
+        if (next.failure instanceof Error) throw (Error) next.failure;
+        return next != END;
+    }
+
+    /**
+     * @return the next statement in the script, without its terminating semi-colon
+     * @throws MigrationException if we are interrupted while waiting for the reader
+     */
+    String next() throws MigrationException {
+        if (!hasNext()) {
+            throw new IllegalStateException("No more statements");
+        }
+        current = next;
+        next = null;
+        return current.statement;
+    }
+
+    /**
+     * @return the line on which the statement last returned by next() ended
+     */
+    int getLineNumber() {
+        return current == null ? 0 : current.lineNumber;
+    }
+
+    /**
+     * @return the directives that preceded the statement last returned by next()
+     */
+    List<String> getDirectives() {
+        return current == null ? null : current.directives;
+    }
+
+    /**
+     * @return the number of statements in the script, or -1 until the reader has got to its end
+     */
+    int getTotalStatements() {
+        return complete ? read : -1;
+    }
+
+    /**
+     * Stop the reader, if it is still going, and wait for it to let go of the script.
+     */
+    void close() {
+        closed = true;
+        queue.clear();
+        try {
+            reader.join(STOP);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (reader.isAlive()) {
+            Migrate.logger.log(Level.WARNING, reader.getName() + " is still reading after " + STOP + "ms");
+        }
+    }
+
+    private static class Parsed {
+        final int lineNumber;
+        final String statement;
+        final List<String> directives;
+        final Throwable failure;
+
+        Parsed(int lineNumber, String statement, List<String> directives, Throwable failure) {
+            this.lineNumber = lineNumber;
+            this.statement = statement;
+            this.directives = directives;
+            this.failure = failure;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.sampullara.db;
+
+/**
+ * A listener that is also told how far through each SQL script the migration is, see MigrationProgress.
+ * Register it with Migrate.addListener() like any other listener.
+ */
+public interface ProgressListener extends MigrationListener {
+
+    /**
+     * Called on the migrating thread every so often while a script runs and once more when it completes.
+     *
+     * @param script          the script
+     * @param statements      the statements of the script run so far, including any still waiting in a batch
+     * @param totalStatements the statements in the script, or -1 until the whole script has been read
+     * @param bytes           the bytes of the script read so far, which runs ahead of the statements
+     * @param totalBytes      the size of the script, or -1 if it isn't known
+     */
+    void scriptProgress(String script, int statements, int totalStatements, long bytes, long totalBytes);
+}
@@ -0,0 +1,85 @@
+package com.sampullara.db;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Which failures are worth retrying, and how long to wait before each retry.  Deadlocks, lock timeouts and
+ * serialization failures are caused by other transactions, typically live traffic, and go away when the
+ * statement is tried again a little later.  Anything else fails the migration straight away.
+ */
+class RetryPolicy {
+
+    /** deadlocks and serialization failures, lock timeouts on PostgreSQL and on H2 */
+    private static final Set<String> STATES = new HashSet<String>(Arrays.asList("40001", "40P01", "55P03", "HYT00"));
+    /** MySQL's deadlock and lock wait timeout */
+    private static final Set<Integer> CODES = new HashSet<Integer>(Arrays.asList(1213, 1205));
+    /** the first backoff, doubled on each attempt up to MAX_BACKOFF */
+    private static final long MIN_BACKOFF = 100;
+    private static final long MAX_BACKOFF = 5000;
+
+    private static final Random random = new Random();
+
+    private final int retries;
+
+    /**
+     * @param retries how many times to retry a transient failure, 0 to fail straight away
+     */
+    RetryPolicy(int retries) {
+        this.retries = retries;
+    }
+
+    int getRetries() {
+        return retries;
+    }
+
+    /**
+     * @param e       the failure
+     * @param attempt the attempt that failed, from 0
+     * @return true if the failure is transient and there are retries left
+     */
+    boolean shouldRetry(SQLException e, int attempt) {
+        return attempt < retries && isTransient(e);
+    }
+
+    /**
+     * Drivers chain the underlying failure either as the next exception or as the cause.
+     */
+    static boolean isTransient(SQLException e) {
+        Throwable t = e;
+        for (int depth = 0; t != null && depth < 10; depth++) {
+            if (t instanceof SQLException) {
+                SQLException se = (SQLException) t;
+                if (se.getSQLState() != null && STATES.contains(se.getSQLState())) return true;
+                if (CODES.contains(se.getErrorCode())) return true;
+                if (se.getNextException() != null) {
+                    t = se.getNextException();
+                    continue;
+                }
+            }
+            t = t.getCause();
+        }
+        return false;
+    }
+
+    /**
+     * Sleep for a random time up to an exponentially growing limit, so that the transactions we collided
+     * with can finish first.
+     */
+    void backoff(int attempt) throws MigrationException {
+        long limit = Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(attempt, 10));
+        long sleep;
+        synchronized (random) {
+            sleep = 1 + (long) (random.nextDouble() * limit);
+        }
+        try {
+            Thread.sleep(sleep);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MigrationException("Interrupted while waiting to retry");
+        }
+    }
+}
@@ -0,0 +1,695 @@
+package com.sampullara.db;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.regex.Pattern;
+
+/**
+ * Executes the statements of a migration script against a connection.  When a batch size greater
+ * than one is configured, consecutive data manipulation statements are grouped together and sent
+ * with Statement.addBatch / executeBatch instead of one round trip per statement.  Anything else,
+ * DDL in particular, flushes the pending batch and is executed on its own so that statement order
+ * is always preserved.
+ * <p/>
+ * Failures are reported with the line number and text of the statement that failed, even when that
+ * statement was part of a batch.  Each statement is also reported to the listeners of the migration
+ * running on this thread.
+ * <p/>
+ * A statement preceded by a backfill directive is run in chunks by ChunkedBackfill.  Statements between a
+ * parallel and an end directive are run at the same time on extra connections by ParallelBlock, where the
+ * executor has a Migrate to open them and is in online mode, and one after the other where it has none.
+ * Outside online mode the work before a block wouldn't be committed, so a parallel block fails the
+ * migration rather than waiting on it.  In online mode every statement, batch and backfill chunk is
+ * committed as soon as it has run.
+ * <p/>
+ * With checkpointing on, the number of statements of the script that have completed is recorded in the
+ * checkpoint table, keyed by the script and a hash of its content.  A script that failed part way, on a
+ * database that can't roll back its DDL, then resumes after the last statement that completed instead of
+ * starting over.  Online the position is written with every commit; otherwise it is only needed when the
+ * migration commits after a failure, so it is written then and every CHECKPOINT_INTERVAL statements rather
+ * than costing a round trip per statement.  The checkpoints of the script's backfills are kept under the
+ * same key, and all of them are removed when the script completes.
+ * <p/>
+ * With prepare on, the literals of data statements are made parameters, see StatementTemplate, and statements
+ * of the same shape share a prepared statement from a cache of the most recently used ones.  A batch then
+ * holds statements of one shape only, so a script that alternates between shapes gets smaller batches.
+ * <p/>
+ * With retries on, a statement or batch that fails because of a deadlock, a lock timeout or a serialization
+ * failure, see RetryPolicy, is rolled back to a savepoint taken just before it and tried again after a
+ * backoff, so that only it is repeated rather than the whole migration.  Where the failure rolled back the
+ * whole transaction, as a deadlock does on MySQL, the savepoint is gone and the failure is thrown as usual.
+ * Taking the savepoints costs a round trip each, so retries are off by default.
+ */
+class ScriptExecutor {
+
+    /** statements that only touch data and can safely share a batch */
+    private static final Pattern BATCHABLE =
+            Pattern.compile("^\\s*(INSERT|UPDATE|DELETE|MERGE|REPLACE)\\b.*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    /** the number of prepared statements kept open */
+    private static final int PREPARED_CACHE = 32;
+    /** the most statements between writes of the checkpoint, outside online mode */
+    private static final int CHECKPOINT_INTERVAL = 100;
+
+    private final Connection conn;
+    private final int batchSize;
+    private final Dialect dialect;
+    private final MigrationListeners listeners = MigrationListeners.current();
+    private String script;
+    private boolean online;
+    private String checkpointTable;
+    private Migrate connections;
+    private ParallelBlock parallel;
+    private long parallelEnd;
+    private boolean prepare;
+    private RetryPolicy retry = new RetryPolicy(0);
+    private boolean savepoints;
+
+    // Prepared statements by the SQL of their template, least recently used first
+    private final Map<String, PreparedStatement> prepared = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+            if (size() <= PREPARED_CACHE) return false;
+            closeStatement(eldest.getValue());
+            return true;
+        }
+    };
+
+    // Progress through the script, when checkpointing
+    private boolean checkpointing;
+    private Checkpoints checkpoints;
+    private String checkpointPrefix;
+    private String checkpointName;
+    private long position;
+    private long written;
+    private long index;
+    private long resumeFrom;
+    private long batchEnd;
+    private String checksum;
+
+    // The pending batch and the source of each of its statements.  It is either in the plain batch statement
+    // or, for statements with a template, in the prepared statement of the template.
+    private Statement batch;
+    private Statement pending;
+    private String pendingTemplate;
+    private final List<Integer> batchLines = new ArrayList<Integer>();
+    private final List<String> batchStatements = new ArrayList<String>();
+
+    /**
+     * Create an executor for the given connection.
+     *
+     * @param conn      the connection against which to execute statements
+     * @param batchSize the maximum number of statements to send in one batch, 0 or 1 disables batching
+     * @throws MigrationException if the connection cannot be examined
+     */
+    ScriptExecutor(Connection conn, int batchSize) throws MigrationException {
+        this(conn, batchSize, batchSize > 1 ? supportsBatchUpdates(conn) : false, null);
+    }
+
+    /**
+     * Create an executor for the given connection whose dialect has already been resolved.
+     *
+     * @param conn      the connection against which to execute statements
+     * @param batchSize the maximum number of statements to send in one batch, 0 or 1 disables batching
+     * @param dialect   the dialect of the database
+     */
+    ScriptExecutor(Connection conn, int batchSize, Dialect dialect) {
+        this(conn, batchSize, dialect.supportsBatchUpdates(), dialect);
+    }
+
+    private ScriptExecutor(Connection conn, int batchSize, boolean batchUpdates, Dialect dialect) {
+        this.conn = conn;
+        this.dialect = dialect;
+        if (batchSize > 1 && !batchUpdates) {
+            Migrate.logger.info("Driver does not support batch updates, executing statements one at a time");
+            batchSize = 0;
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param script the name of the script the statements are from, for the listeners
+     */
+    void setScript(String script) {
+        this.script = script;
+    }
+
+    /**
+     * @param online true to commit each statement as soon as it has run
+     */
+    void setOnline(boolean online) {
+        this.online = online;
+    }
+
+    /**
+     * @param connections opens the extra connections for parallel blocks, or null to run them serially
+     */
+    void setConnections(Migrate connections) {
+        this.connections = connections;
+    }
+
+    /**
+     * @param prepare true to run data statements that only differ in their literals as one prepared statement
+     */
+    void setPrepare(boolean prepare) {
+        this.prepare = prepare;
+    }
+
+    /**
+     * @param retries how many times to retry a statement or batch that failed with a transient failure, 0 to
+     *                fail straight away
+     */
+    void setRetries(int retries) {
+        retry = new RetryPolicy(retries);
+        if (retries > 0) {
+            if (dialect != null) {
+                savepoints = dialect.supportsSavepoints();
+            } else try {
+                savepoints = conn.getMetaData().supportsSavepoints();
+            } catch (SQLException e) {
+                savepoints = false;
+            }
+        }
+    }
+
+    /**
+     * @param checkpointTable the table in which backfills keep their checkpoints
+     */
+    void setCheckpointTable(String checkpointTable) {
+        this.checkpointTable = checkpointTable;
+    }
+
+    /**
+     * @param checkpointing true to record the progress through each script, see resume()
+     */
+    void setCheckpointing(boolean checkpointing) {
+        this.checkpointing = checkpointing;
+    }
+
+    /**
+     * @return true if resume() should be called before executing a script
+     */
+    boolean isCheckpointing() {
+        return checkpointing && checkpointTable != null;
+    }
+
+    /**
+     * Start recording the progress through a script, skipping the statements that completed in an earlier
+     * attempt.
+     *
+     * @param script the name of the script
+     * @param hash   a hash of its content, so that a script that has changed is run from the start
+     * @throws MigrationException if the checkpoint table can't be read
+     */
+    void resume(String script, String hash) throws MigrationException {
+        checkpointPrefix = "script:" + script + "#";
+        checkpointName = checkpointPrefix + hash;
+        index = 0;
+        try {
+            checkpoints = new Checkpoints(conn, checkpointTable);
+            Long position = checkpoints.read(checkpointName);
+            resumeFrom = position == null ? 0 : position;
+            this.position = written = resumeFrom;
+        } catch (SQLException e) {
+            throw new MigrationException("Could not read the checkpoint of " + script, e);
+        }
+        if (resumeFrom > 0) {
+            Migrate.logger.info("Resuming " + script + " after statement " + resumeFrom);
+        }
+    }
+
+    /**
+     * @param checksum the SHA-1 of the script that was executed, see getChecksum()
+     */
+    void setChecksum(String checksum) {
+        this.checksum = checksum;
+    }
+
+    /**
+     * @return the SHA-1 of the script that was executed, hashed as it was read, or null before it completes
+     */
+    String getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * The script has completed, forget its progress.
+     *
+     * @throws MigrationException if the checkpoint can't be removed
+     */
+    void complete() throws MigrationException {
+        if (checkpoints != null) try {
+            checkpoints.delete(checkpointPrefix);
+        } catch (SQLException e) {
+            throw new MigrationException("Could not remove the checkpoint of " + script, e);
+        } finally {
+            checkpoints = null;
+        }
+    }
+
+    private void checkpoint(long position) throws MigrationException {
+        if (checkpoints == null) return;
+        this.position = position;
+        if (online || position - written >= CHECKPOINT_INTERVAL) saveCheckpoint();
+    }
+
+    private void saveCheckpoint() throws MigrationException {
+        if (checkpoints != null && position != written) try {
+            checkpoints.write(checkpointName, position);
+            written = position;
+        } catch (SQLException e) {
+            throw new MigrationException("Could not record the progress of " + script, e);
+        }
+    }
+
+    /**
+     * A statement failed, make sure the table says how far the script got before it.
+     */
+    private void failed() {
+        try {
+            saveCheckpoint();
+        } catch (MigrationException e) {
+            Migrate.logger.log(Level.WARNING, "Could not record the progress of " + script, e);
+        }
+    }
+
+    private static boolean supportsBatchUpdates(Connection conn) throws MigrationException {
+        try {
+            return conn.getMetaData().supportsBatchUpdates();
+        } catch (SQLException e) {
+            throw new MigrationException("Could not determine batch support", e);
+        }
+    }
+
+    /**
+     * Execute a statement, or add it to the pending batch if batching is enabled and the statement
+     * only manipulates data.
+     *
+     * @param lineNumber   the line of the script on which the statement ends
+     * @param sqlStatement the statement to execute
+     * @throws MigrationException if the statement, or the batch it completed, could not be executed
+     */
+    void execute(int lineNumber, String sqlStatement) throws MigrationException {
+        execute(lineNumber, sqlStatement, Collections.<String>emptyList());
+    }
+
+    /**
+     * Execute a statement as its directives say.
+     *
+     * @param lineNumber   the line of the script on which the statement ends
+     * @param sqlStatement the statement to execute
+     * @param directives   the directives that preceded the statement, see SqlStatementTokenizer
+     * @throws MigrationException if the statement could not be executed
+     */
+    void execute(int lineNumber, String sqlStatement, List<String> directives) throws MigrationException {
+        try {
+            dispatch(lineNumber, sqlStatement, directives);
+        } catch (MigrationException e) {
+            failed();
+            throw e;
+        }
+    }
+
+    private void dispatch(int lineNumber, String sqlStatement, List<String> directives) throws MigrationException {
+        if (index < resumeFrom) {
+            // Completed by an earlier attempt
+            index++;
+            return;
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            // e.g. migrateAsync() was cancelled, and the driver may not notice
+            throw new MigrationException("Interrupted before SQL line #" + lineNumber);
+        }
+        index++;
+        for (String directive : directives) {
+            if (directive.equals("end") || directive.startsWith("end ")) {
+                runParallel();
+            }
+        }
+        for (String directive : directives) {
+            if (directive.startsWith("parallel")) {
+                if (connections != null && !online) {
+                    // The extra connections can't see the migration's uncommitted work, or wait for its locks
+                    throw new MigrationException("A parallel block needs online mode, line #" + lineNumber);
+                }
+                flush();
+                parallel = ParallelBlock.parse(directive.substring("parallel".length()));
+            }
+        }
+        if (parallel != null) {
+            for (String directive : directives) {
+                if (directive.startsWith("backfill")) {
+                    throw new MigrationException("A backfill can't be run in a parallel block, line #" + lineNumber);
+                }
+            }
+            parallel.add(lineNumber, sqlStatement);
+            parallelEnd = index;
+            return;
+        }
+        for (String directive : directives) {
+            if (directive.startsWith("backfill")) {
+                flush();
+                backfill(lineNumber, sqlStatement, directive.substring("backfill".length()));
+                checkpoint(index);
+                commitIfOnline();
+                return;
+            }
+        }
+        if (batchSize > 1 && BATCHABLE.matcher(sqlStatement).matches()) {
+            StatementTemplate template = prepare ? StatementTemplate.parse(sqlStatement) : null;
+            String shape = template == null ? null : template.getSql();
+            if (!batchStatements.isEmpty() && (shape == null ? pendingTemplate != null : !shape.equals(pendingTemplate))) {
+                flush();
+            }
+            try {
+                if (template != null) {
+                    PreparedStatement ps = prepare(shape);
+                    template.bind(ps, untypedStrings());
+                    ps.addBatch();
+                    pending = ps;
+                } else {
+                    if (batch == null) {
+                        batch = conn.createStatement();
+                    }
+                    batch.addBatch(sqlStatement);
+                    pending = batch;
+                }
+                pendingTemplate = shape;
+            } catch (SQLException e) {
+                throw new MigrationException("Failed to batch SQL line #" + lineNumber + ": " + sqlStatement, e);
+            }
+            batchLines.add(lineNumber);
+            batchStatements.add(sqlStatement);
+            batchEnd = index;
+            if (batchStatements.size() >= batchSize) {
+                flush();
+            }
+        } else {
+            flush();
+            executeStatement(lineNumber, sqlStatement);
+            checkpoint(index);
+            commitIfOnline();
+        }
+    }
+
+    private void backfill(int lineNumber, String sqlStatement, String options) throws MigrationException {
+        // Checkpointing, it is removed with the script's own checkpoint and forgotten if the script changes
+        String name = (checkpoints != null ? checkpointName : script) + ":" + lineNumber;
+        ChunkedBackfill backfill = ChunkedBackfill.parse(name, options, sqlStatement, dialect);
+        backfill.setSource(script, lineNumber);
+        backfill.setCommit(online);
+        if (checkpointTable != null) backfill.setCheckpointTable(checkpointTable);
+        backfill.run(conn);
+    }
+
+    private void commitIfOnline() throws MigrationException {
+        if (online) try {
+            conn.commit();
+        } catch (SQLException e) {
+            throw new MigrationException("Failed to commit", e);
+        }
+    }
+
+    /**
+     * Run the pending parallel block, if any, and wait for it to complete.
+     */
+    private void runParallel() throws MigrationException {
+        if (parallel == null) return;
+        ParallelBlock block = parallel;
+        parallel = null;
+        if (connections == null) {
+            Migrate.logger.info("No connections for the parallel block in " + script + ", running it serially");
+            for (int i = 0; i < block.size(); i++) {
+                executeStatement(block.getLines().get(i), block.getStatements().get(i));
+                checkpoint(parallelEnd - block.size() + i + 1);
+                commitIfOnline();
+            }
+            return;
+        }
+        try {
+            block.run(connections, script, listeners);
+        } catch (MigrationException e) {
+            // The statements at the start of the block completed, and were committed
+            if (block.getCompleted() > 0) position = parallelEnd - block.size() + block.getCompleted();
+            throw e;
+        }
+        checkpoint(parallelEnd);
+        commitIfOnline();
+    }
+
+    /**
+     * Send any pending batched statements to the database, and run any pending parallel block.
+     *
+     * @throws MigrationException if one of the batched statements failed
+     */
+    void flush() throws MigrationException {
+        try {
+            send();
+        } catch (MigrationException e) {
+            failed();
+            throw e;
+        }
+    }
+
+    private void send() throws MigrationException {
+        runParallel();
+        if (batchStatements.isEmpty()) return;
+        for (int i = 0; i < batchStatements.size(); i++) {
+            listeners.statementStarted(script, batchLines.get(i), batchStatements.get(i));
+        }
+        long start = System.nanoTime();
+        try {
+            int[] counts;
+            for (int attempt = 0; ; attempt++) {
+                Savepoint savepoint = savepoint();
+                try {
+                    counts = pending.executeBatch();
+                    release(savepoint);
+                    break;
+                } catch (SQLException e) {
+                    if (!retry(e, attempt, savepoint, "SQL batch from line #" + batchLines.get(0))) throw e;
+                    rebatch();
+                }
+            }
+            batchFinished(counts, -1, System.nanoTime() - start, null);
+            checkpoint(batchEnd);
+            commitIfOnline();
+        } catch (BatchUpdateException e) {
+            int failed = failedIndex(e.getUpdateCounts(), batchStatements.size());
+            batchFinished(e.getUpdateCounts(), failed, System.nanoTime() - start, e);
+            // The statements before the failure completed
+            if (failed > 0) position = batchEnd - batchStatements.size() + failed;
+            throw new MigrationException("Failed to execute SQL line #" + batchLines.get(failed) + ": " + batchStatements.get(failed), e);
+        } catch (SQLException e) {
+            batchFinished(null, 0, System.nanoTime() - start, e);
+            throw new MigrationException("Failed to execute SQL batch from line #" + batchLines.get(0) + ": " + batchStatements.get(0), e);
+        } finally {
+            batchLines.clear();
+            batchStatements.clear();
+            try {
+                pending.clearBatch();
+            } catch (SQLException e) {
+                // The statement is closed and recreated or prepared again when next needed
+                closeStatement(pending);
+                if (pending == batch) {
+                    batch = null;
+                } else {
+                    prepared.remove(pendingTemplate);
+                }
+            }
+            pending = null;
+            pendingTemplate = null;
+        }
+    }
+
+    /**
+     * Add the statements of the pending batch to it again, after a failed attempt to execute it.
+     */
+    private void rebatch() throws SQLException {
+        pending.clearBatch();
+        for (String sqlStatement : batchStatements) {
+            if (pendingTemplate == null) {
+                pending.addBatch(sqlStatement);
+            } else {
+                StatementTemplate.parse(sqlStatement).bind((PreparedStatement) pending, untypedStrings());
+                ((PreparedStatement) pending).addBatch();
+            }
+        }
+    }
+
+    /**
+     * @return a savepoint to roll back to if the next statement or batch fails transiently, or null if it
+     *         won't be retried or needn't be, as in auto commit mode the failure only undid itself
+     */
+    private Savepoint savepoint() throws SQLException {
+        if (retry.getRetries() == 0 || !savepoints || conn.getAutoCommit()) return null;
+        return conn.setSavepoint();
+    }
+
+    private void release(Savepoint savepoint) {
+        if (savepoint != null) try {
+            conn.releaseSavepoint(savepoint);
+        } catch (SQLException e) {
+            // Not every driver releases savepoints, they go with the transaction anyway
+        }
+    }
+
+    /**
+     * Undo a failed attempt and wait before the next one, if the failure was transient and there are
+     * retries left.
+     *
+     * @return true to try again
+     */
+    private boolean retry(SQLException e, int attempt, Savepoint savepoint, String what) throws MigrationException {
+        if (!retry.shouldRetry(e, attempt)) return false;
+        try {
+            if (savepoint != null) {
+                conn.rollback(savepoint);
+            } else if (!conn.getAutoCommit()) {
+                // Without a savepoint the transaction may be unusable, as it is on PostgreSQL
+                return false;
+            }
+        } catch (SQLException se) {
+            // The whole transaction was rolled back, there is nothing to retry in
+            return false;
+        }
+        Migrate.logger.warning("Retrying " + what + " after a transient failure, attempt " + (attempt + 2) + ": " + e);
+        retry.backoff(attempt);
+        return true;
+    }
+
+    /**
+     * Report each statement of the batch, with an even share of its time, up to and including the one that
+     * failed, if any.
+     */
+    private void batchFinished(int[] counts, int failed, long nanos, SQLException e) {
+        int size = batchStatements.size();
+        int last = failed == -1 ? size - 1 : failed;
+        for (int i = 0; i <= last; i++) {
+            int rows = counts != null && i < counts.length && counts[i] >= 0 ? counts[i] : -1;
+            listeners.statementFinished(script, batchLines.get(i), batchStatements.get(i), nanos / size, rows,
+                    i == failed ? e : null);
+        }
+    }
+
+    /**
+     * Release the batch statement and the prepared statements, if any.  Pending statements are discarded,
+     * call flush() first.
+     */
+    void close() {
+        if (batch != null) {
+            closeStatement(batch);
+            batch = null;
+        }
+        for (PreparedStatement ps : prepared.values()) {
+            closeStatement(ps);
+        }
+        prepared.clear();
+    }
+
+    private static void closeStatement(Statement st) {
+        try {
+            st.close();
+        } catch (SQLException e) {
+            Migrate.logger.log(Level.WARNING, "Failed to close statement, might be leaking them", e);
+        }
+    }
+
+    /**
+     * @param sql the SQL of a template
+     * @return its prepared statement from the cache, prepared if it isn't there
+     */
+    private PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement ps = prepared.get(sql);
+        if (ps == null) {
+            ps = conn.prepareStatement(sql);
+            prepared.put(sql, ps);
+        }
+        return ps;
+    }
+
+    /**
+     * PostgreSQL won't cast a string parameter to the type of its column as it does a literal
+     */
+    private boolean untypedStrings() {
+        return dialect != null && dialect.getName().equals("postgresql");
+    }
+
+    /**
+     * Drivers either stop at the first failure, returning the counts of the statements before it, or
+     * continue and mark the failures with EXECUTE_FAILED.
+     *
+     * @param counts the update counts from the BatchUpdateException
+     * @param size   the number of statements in the batch
+     * @return the index within the batch of the statement that failed
+     */
+    private static int failedIndex(int[] counts, int size) {
+        if (counts == null) return 0;
+        if (counts.length < size) return counts.length;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == Statement.EXECUTE_FAILED) return i;
+        }
+        return 0;
+    }
+
+    /**
+     * Execute the given sqlStatement on its own.
+     *
+     * @param lineNumber   the number of the line from which the statement was read
+     * @param sqlStatement the statement to execute
+     * @throws MigrationException if the current statement could not be executed
+     */
+    private void executeStatement(int lineNumber, String sqlStatement) throws MigrationException {
+        StatementTemplate template = prepare && BATCHABLE.matcher(sqlStatement).matches() ?
+                StatementTemplate.parse(sqlStatement) : null;
+        listeners.statementStarted(script, lineNumber, sqlStatement);
+        long start = System.nanoTime();
+        try {
+            int rows;
+            for (int attempt = 0; ; attempt++) {
+                Savepoint savepoint = savepoint();
+                try {
+                    rows = run(sqlStatement, template);
+                    release(savepoint);
+                    break;
+                } catch (SQLException e) {
+                    if (!retry(e, attempt, savepoint, "SQL line #" + lineNumber)) throw e;
+                }
+            }
+            listeners.statementFinished(script, lineNumber, sqlStatement, System.nanoTime() - start, rows, null);
+        } catch (SQLException e) {
+            listeners.statementFinished(script, lineNumber, sqlStatement, System.nanoTime() - start, -1, e);
+            throw new MigrationException("Failed to execute SQL line #" + lineNumber + ": " + sqlStatement, e);
+        }
+    }
+
+    /**
+     * @return the rows affected, or -1 if there were none or the driver didn't say
+     */
+    private int run(String sqlStatement, StatementTemplate template) throws SQLException {
+        if (template != null) {
+            // Cached, so not closed
+            PreparedStatement ps = prepare(template.getSql());
+            template.bind(ps, untypedStrings());
+            return ps.execute() ? -1 : ps.getUpdateCount();
+        }
+        Statement st = conn.createStatement();
+        try {
+            return st.execute(sqlStatement) ? -1 : st.getUpdateCount();
+        } finally {
+            try {
+                st.close();
+            } catch (SQLException e) {
+                Migrate.logger.log(Level.WARNING, "Failed to close statement, might be leaking them", e);
+            }
+        }
+    }
+}
@@ -16,7 +16,9 @@ import java.util.List;
  * with either a preceding backslash (C-style) or single-quote (SQL-style)
  * character.
  * 
- * See the tests in SqlStatementParserTest for usage examples.
+ * See the tests in SqlStatementParserTest for usage examples.  Scripts are
+ * executed with SqlStatementTokenizer, which reads them in a single pass and
+ * also understands double quotes, comments and dollar quoted bodies.
  */
 public class SqlStatementParser {
 	/** the semi-colon is understood to terminate a statement */
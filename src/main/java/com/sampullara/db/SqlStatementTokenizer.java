@@ -0,0 +1,355 @@
+package com.sampullara.db;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Splits a SQL script into statements in a single pass over a Reader.  Unlike SqlStatementParser,
+ * which rescans its whole buffer every time it is called, the tokenizer keeps its state (inside a
+ * quoted string, a comment or a dollar quoted body) between reads, so each character is looked at
+ * once no matter how long a statement is.  Statements are produced lazily, one per call to next(),
+ * without their terminating semi-colon.
+ * <p/>
+ * The tokenizer understands:
+ * <ul>
+ * <li>single quoted strings, with either '' or \' as an escaped quote</li>
+ * <li>double quoted identifiers</li>
+ * <li>line comments starting with -- anywhere, or with # at the start of a line, which are dropped</li>
+ * <li>block comments, which are kept since some databases give them meaning (MySQL /*! ... * /)</li>
+ * <li>PostgreSQL dollar quoted bodies, $$ ... $$ or $tag$ ... $tag$</li>
+ * </ul>
+ * Statements that contain nothing but whitespace and comments are skipped.  A statement at the end
+ * of the input without a terminating semi-colon is still returned.
+ * <p/>
+ * Line comments of the form -- @name options are directives for the statement that follows them, e.g.
+ * -- @backfill table=accounts key=id.  They are returned by getDirectives() after that statement.
+ * <p/>
+ * See the tests in SqlStatementTokenizerTest for usage examples.
+ */
+public class SqlStatementTokenizer implements Iterator<String> {
+    /** the semi-colon is understood to terminate a statement */
+    private static final char STATEMENT_TERMINATOR = ';';
+    /** the size of each read from the underlying reader */
+    private static final int CHUNK_SIZE = 8192;
+    /** the longest dollar quote tag that will be recognized */
+    private static final int MAX_TAG_LENGTH = 64;
+
+    private static enum State {
+        NORMAL, SINGLE_QUOTE, DOUBLE_QUOTE, LINE_COMMENT, BLOCK_COMMENT, DOLLAR_QUOTE
+    }
+
+    private final Reader reader;
+
+    // Characters read but not yet consumed
+    private char[] buffer = new char[CHUNK_SIZE];
+    private int position;
+    private int limit;
+    private boolean eof;
+
+    // State carried between statements and reads
+    private State state = State.NORMAL;
+    private String dollarTag;
+    private int line = 1;
+    private boolean lineStart = true;
+
+    // The statement being accumulated
+    private final StringBuilder statement = new StringBuilder();
+    private boolean content;
+    private final StringBuilder comment = new StringBuilder();
+    private List<String> directives = new ArrayList<String>();
+
+    // The statement that will be returned by next()
+    private String next;
+    private int nextLine;
+    private List<String> nextDirectives;
+    private int lineNumber;
+    private List<String> lastDirectives = Collections.emptyList();
+
+    /**
+     * Create a tokenizer that reads its statements from the given reader.  The reader is not closed
+     * by the tokenizer.
+     *
+     * @param reader the source of the SQL script
+     */
+    public SqlStatementTokenizer(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * @return true if there is another statement in the script
+     * @throws ReadException if the underlying reader fails
+     */
+    public boolean hasNext() {
+        if (next == null) {
+            next = advance();
+        }
+        return next != null;
+    }
+
+    /**
+     * @return the next statement in the script, without its terminating semi-colon
+     * @throws ReadException if the underlying reader fails
+     */
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String result = next;
+        lineNumber = nextLine;
+        lastDirectives = nextDirectives;
+        next = null;
+        return result;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return the line on which the statement last returned by next() ended
+     */
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * @return the directives that preceded the statement last returned by next(), without their leading @,
+     *         e.g. "backfill table=accounts key=id"
+     */
+    public List<String> getDirectives() {
+        return lastDirectives;
+    }
+
+    /**
+     * Consume characters until a complete statement has been found.
+     *
+     * @return the statement, or null at the end of the input
+     */
+    private String advance() {
+        int c;
+        while ((c = peek(0)) != -1) {
+            char ch = (char) c;
+            switch (state) {
+                case NORMAL:
+                    if (ch == STATEMENT_TERMINATOR) {
+                        take();
+                        String result = finish();
+                        if (result != null) return result;
+                    } else if ((ch == '-' && peek(1) == '-') || (ch == '#' && lineStart)) {
+                        take();
+                        comment.setLength(0);
+                        state = State.LINE_COMMENT;
+                    } else if (ch == '/' && peek(1) == '*') {
+                        // MySQL executes the body of /*! ... */, so it is a statement of its own
+                        if (peek(2) == '!') content = true;
+                        append(take());
+                        append(take());
+                        state = State.BLOCK_COMMENT;
+                    } else if (ch == '$' && startsDollarQuote()) {
+                        state = State.DOLLAR_QUOTE;
+                    } else {
+                        if (ch == '\'') {
+                            state = State.SINGLE_QUOTE;
+                        } else if (ch == '"') {
+                            state = State.DOUBLE_QUOTE;
+                        }
+                        if (!Character.isWhitespace(ch)) content = true;
+                        append(take());
+                    }
+                    break;
+                case SINGLE_QUOTE:
+                    append(take());
+                    if (ch == '\\') {
+                        if (peek(0) != -1) append(take());
+                    } else if (ch == '\'') {
+                        state = State.NORMAL;
+                    }
+                    break;
+                case DOUBLE_QUOTE:
+                    append(take());
+                    if (ch == '"') state = State.NORMAL;
+                    break;
+                case LINE_COMMENT:
+                    take();
+                    if (ch == '\n') {
+                        append(ch);
+                        directive();
+                        state = State.NORMAL;
+                    } else {
+                        comment.append(ch);
+                    }
+                    break;
+                case BLOCK_COMMENT:
+                    append(take());
+                    if (ch == '*' && peek(0) == '/') {
+                        append(take());
+                        state = State.NORMAL;
+                    }
+                    break;
+                case DOLLAR_QUOTE:
+                    if (ch == '$' && matches(dollarTag)) {
+                        for (int i = 0; i < dollarTag.length(); i++) append(take());
+                        state = State.NORMAL;
+                    } else {
+                        append(take());
+                    }
+                    break;
+            }
+        }
+        // Whatever is left at the end of the input is the final statement
+        if (state == State.LINE_COMMENT) directive();
+        state = State.NORMAL;
+        return finish();
+    }
+
+    /**
+     * Complete the statement being accumulated and start a new one.
+     *
+     * @return the statement, or null if it only contained whitespace and comments
+     */
+    private String finish() {
+        String result = content ? statement.toString().trim() : null;
+        statement.setLength(0);
+        content = false;
+        nextLine = line;
+        if (result != null) {
+            // Directives carry over statements that turned out to be empty
+            nextDirectives = directives.isEmpty() ? Collections.<String>emptyList() : directives;
+            directives = new ArrayList<String>();
+        }
+        return result;
+    }
+
+    /**
+     * Keep the line comment just read if it is a directive.  The second - of -- is part of the comment.
+     */
+    private void directive() {
+        int start = 0;
+        while (start < comment.length() && (comment.charAt(start) == '-' || Character.isWhitespace(comment.charAt(start)))) start++;
+        if (start < comment.length() && comment.charAt(start) == '@') {
+            String text = comment.substring(start + 1).trim();
+            if (text.length() > 0) directives.add(text);
+        }
+        comment.setLength(0);
+    }
+
+    /**
+     * A dollar quote starts with $tag$ where the tag is empty or an identifier.  A $ inside an
+     * identifier or following a digit (a positional parameter like $1) does not start one.
+     *
+     * @return true if a dollar quote was started and its opening tag consumed
+     */
+    private boolean startsDollarQuote() {
+        if (statement.length() > 0) {
+            char previous = statement.charAt(statement.length() - 1);
+            if (Character.isLetterOrDigit(previous) || previous == '_' || previous == '$') return false;
+        }
+        for (int i = 1; i <= MAX_TAG_LENGTH; i++) {
+            int c = peek(i);
+            if (c == '$') {
+                StringBuilder tag = new StringBuilder(i + 1);
+                for (int j = 0; j <= i; j++) {
+                    tag.append(take());
+                }
+                dollarTag = tag.toString();
+                statement.append(dollarTag);
+                content = true;
+                return true;
+            }
+            if (c == -1 || !(Character.isLetter(c) || c == '_' || (i > 1 && Character.isDigit(c)))) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private boolean matches(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (peek(i) != s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private void append(char ch) {
+        statement.append(ch);
+    }
+
+    /**
+     * Consume the next character, keeping track of line numbers.
+     */
+    private char take() {
+        char ch = buffer[position++];
+        if (ch == '\n') {
+            line++;
+            lineStart = true;
+        } else {
+            lineStart = false;
+        }
+        return ch;
+    }
+
+    /**
+     * Look ahead in the input without consuming anything, reading more of it as needed.
+     *
+     * @param offset how far past the current position to look
+     * @return the character at that offset or -1 if the input ends before it
+     */
+    private int peek(int offset) {
+        while (position + offset >= limit) {
+            if (eof || !fill()) return -1;
+        }
+        return buffer[position + offset];
+    }
+
+    /**
+     * Compact the unconsumed characters to the front of the buffer and read another chunk after them.
+     *
+     * @return false if the end of the input has been reached
+     */
+    private boolean fill() {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        if (limit == buffer.length) {
+            char[] larger = new char[buffer.length * 2];
+            System.arraycopy(buffer, 0, larger, 0, limit);
+            buffer = larger;
+        }
+        try {
+            int read = reader.read(buffer, limit, buffer.length - limit);
+            if (read == -1) {
+                eof = true;
+                return false;
+            }
+            limit += read;
+            return true;
+        } catch (IOException e) {
+            throw new ReadException(line, e);
+        }
+    }
+
+    /**
+     * Thrown from hasNext() and next() when the script can't be read.
+     */
+    public static class ReadException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final int lineNumber;
+
+        public ReadException(int lineNumber, IOException cause) {
+            super("Failed to read script at line: " + lineNumber, cause);
+            this.lineNumber = lineNumber;
+        }
+
+        public int getLineNumber() {
+            return lineNumber;
+        }
+    }
+}
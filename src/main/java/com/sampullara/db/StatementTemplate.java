@@ -0,0 +1,198 @@
+package com.sampullara.db;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A data statement with its literals taken out as parameters, so that statements that only differ in their
+ * values, like the thousands of INSERTs of a data load, share one prepared statement that the database
+ * parses once.
+ * <p/>
+ * Only literals where a parameter is sure to mean the same thing are taken out: those compared with =, &lt;&gt;,
+ * &lt;, &gt;, &lt;= or &gt;=, assigned with = and those that are items of a VALUES or IN list.  Everything else, LIMIT
+ * 10, DATE '2020-01-01', ORDER BY 1, NULL and so on, stays in the SQL.  Statements with anything the scan
+ * doesn't understand, dollar quotes, backslashes in strings or parameters of their own, aren't rewritten.
+ */
+class StatementTemplate {
+
+    private final String sql;
+    private final List<Object> parameters;
+
+    private StatementTemplate(String sql, List<Object> parameters) {
+        this.sql = sql;
+        this.parameters = parameters;
+    }
+
+    /**
+     * @param statement a data statement
+     * @return the statement with its literals as parameters, or null if it has none that can be or it can't be
+     *         rewritten safely
+     */
+    static StatementTemplate parse(String statement) {
+        StringBuilder sql = new StringBuilder(statement.length());
+        List<Object> parameters = new ArrayList<Object>();
+        // For each open parenthesis, whether its items are a VALUES or IN list
+        LinkedList<Boolean> lists = new LinkedList<Boolean>();
+        String previous = "";
+        boolean values = false;
+        int length = statement.length();
+        int i = 0;
+        while (i < length) {
+            char c = statement.charAt(i);
+            if (Character.isWhitespace(c)) {
+                sql.append(c);
+                i++;
+                continue;
+            }
+            int start = i;
+            String token;
+            Object literal = null;
+            if (c == '\'') {
+                StringBuilder value = new StringBuilder();
+                i++;
+                while (true) {
+                    if (i >= length) return null;
+                    char d = statement.charAt(i++);
+                    if (d == '\\') return null;
+                    if (d == '\'') {
+                        if (i < length && statement.charAt(i) == '\'') {
+                            value.append('\'');
+                            i++;
+                        } else {
+                            break;
+                        }
+                    } else {
+                        value.append(d);
+                    }
+                }
+                literal = value.toString();
+                token = "'";
+            } else if (Character.isDigit(c) || (c == '-' && i + 1 < length && Character.isDigit(statement.charAt(i + 1)) &&
+                    parameterizable(previous, lists))) {
+                i++;
+                while (i < length && Character.isDigit(statement.charAt(i))) i++;
+                boolean decimal = false;
+                if (i + 1 < length && statement.charAt(i) == '.' && Character.isDigit(statement.charAt(i + 1))) {
+                    decimal = true;
+                    i++;
+                    while (i < length && Character.isDigit(statement.charAt(i))) i++;
+                }
+                if (i < length && Character.toLowerCase(statement.charAt(i)) == 'e') return null;
+                if (i < length && isIdentifier(statement.charAt(i))) return null;
+                String number = statement.substring(start, i);
+                if (decimal) {
+                    literal = new BigDecimal(number);
+                } else {
+                    try {
+                        literal = Long.valueOf(number);
+                    } catch (NumberFormatException e) {
+                        literal = new BigDecimal(number);
+                    }
+                }
+                token = "0";
+            } else if (c == '"' || c == '`') {
+                int end = statement.indexOf(c, i + 1);
+                if (end == -1) return null;
+                i = end + 1;
+                token = "\"";
+            } else if (c == '/' && i + 1 < length && statement.charAt(i + 1) == '*') {
+                int end = statement.indexOf("*/", i + 2);
+                if (end == -1) return null;
+                sql.append(statement, start, end + 2);
+                i = end + 2;
+                continue;
+            } else if (c == '-' && i + 1 < length && statement.charAt(i + 1) == '-') {
+                int end = statement.indexOf('\n', i);
+                i = end == -1 ? length : end;
+                sql.append(statement, start, i);
+                continue;
+            } else if (c == '$' || c == '?' || c == '\\') {
+                return null;
+            } else if (isIdentifier(c)) {
+                while (i < length && isIdentifier(statement.charAt(i))) i++;
+                token = statement.substring(start, i).toUpperCase();
+            } else if ((c == '<' || c == '>' || c == '!') && i + 1 < length && (statement.charAt(i + 1) == '=' ||
+                    (c == '<' && statement.charAt(i + 1) == '>'))) {
+                i += 2;
+                token = statement.substring(start, i);
+            } else {
+                i++;
+                token = String.valueOf(c);
+            }
+            if (literal != null && parameterizable(previous, lists)) {
+                sql.append('?');
+                parameters.add(literal);
+            } else {
+                sql.append(statement, start, i);
+            }
+            if (token.equals("(")) {
+                lists.addLast(previous.equals("IN") || previous.equals("VALUES") ||
+                        (values && lists.isEmpty() && previous.equals(",")));
+            } else if (token.equals(")")) {
+                if (!lists.isEmpty()) lists.removeLast();
+            } else if (token.equals("VALUES") && lists.isEmpty()) {
+                values = true;
+            } else if (lists.isEmpty() && !token.equals(",") && !previous.equals(")")) {
+                // Anything but the next tuple ends the VALUES list
+                values = values && token.equals(",");
+            }
+            previous = token;
+        }
+        if (parameters.isEmpty()) return null;
+        return new StatementTemplate(sql.toString(), parameters);
+    }
+
+    /**
+     * Can a literal after the previous token be a parameter?
+     */
+    private static boolean parameterizable(String previous, LinkedList<Boolean> lists) {
+        if (previous.equals("=") || previous.equals("<>") || previous.equals("!=") || previous.equals("<") ||
+                previous.equals(">") || previous.equals("<=") || previous.equals(">=")) {
+            return true;
+        }
+        return (previous.equals("(") || previous.equals(",")) && !lists.isEmpty() && lists.getLast();
+    }
+
+    private static boolean isIdentifier(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '#' || c == '@';
+    }
+
+    /**
+     * @return the statement with a ? for each parameter
+     */
+    String getSql() {
+        return sql;
+    }
+
+    List<Object> getParameters() {
+        return parameters;
+    }
+
+    /**
+     * Set the parameters of a statement prepared from getSql().
+     *
+     * @param ps             the prepared statement
+     * @param untypedStrings true to send strings without a type so that the database treats them as it would
+     *                       the literal, e.g. a date on PostgreSQL, which won't cast a varchar to other types
+     * @throws SQLException if a parameter can't be set
+     */
+    void bind(PreparedStatement ps, boolean untypedStrings) throws SQLException {
+        for (int i = 0; i < parameters.size(); i++) {
+            Object parameter = parameters.get(i);
+            if (parameter instanceof String && untypedStrings) {
+                ps.setObject(i + 1, parameter, Types.OTHER);
+            } else if (parameter instanceof String) {
+                ps.setString(i + 1, (String) parameter);
+            } else if (parameter instanceof Long) {
+                ps.setLong(i + 1, (Long) parameter);
+            } else {
+                ps.setBigDecimal(i + 1, (BigDecimal) parameter);
+            }
+        }
+    }
+}
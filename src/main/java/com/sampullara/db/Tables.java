@@ -0,0 +1,71 @@
+package com.sampullara.db;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+
+/**
+ * Looks for the tables kept next to the version table, in the schema the connection works in.  The JDBC
+ * metadata would find a table of the same name in any schema, e.g. another tenant's where each tenant has
+ * a schema of its own in one database, so the table is queried instead, as the migration will query it.
+ */
+class Tables {
+
+    private Tables() {
+    }
+
+    /**
+     * @param conn  a connection to the database
+     * @param table the unqualified name of the table
+     * @return true if the table can be queried on the connection
+     * @throws SQLException if the connection can't be used, or the table can't be queried for another reason
+     *                      than that it is missing
+     */
+    static boolean exists(Connection conn, String table) throws SQLException {
+        Savepoint savepoint = null;
+        if (!conn.getAutoCommit()) {
+            // A failed statement aborts the transaction on some databases
+            try {
+                savepoint = conn.setSavepoint();
+            } catch (SQLException e) {
+                return inCatalog(conn, table);
+            }
+        }
+        Statement st = conn.createStatement();
+        try {
+            st.executeQuery("SELECT * FROM " + table + " WHERE 1 = 0").close();
+            return true;
+        } catch (SQLException e) {
+            if (savepoint != null) conn.rollback(savepoint);
+            // Anything else, e.g. a lost connection, isn't a reason to create the table
+            if (Migrate.isMissingTable(e)) return false;
+            throw e;
+        } finally {
+            st.close();
+            if (savepoint != null) try {
+                conn.releaseSavepoint(savepoint);
+            } catch (SQLException e) {
+                // Not every driver releases savepoints, they go with the transaction anyway
+            }
+        }
+    }
+
+    /**
+     * Where there are no savepoints, the best the metadata can do is the connection's catalog.
+     */
+    private static boolean inCatalog(Connection conn, String table) throws SQLException {
+        DatabaseMetaData metaData = conn.getMetaData();
+        for (String candidate : new String[]{table, table.toUpperCase(), table.toLowerCase()}) {
+            ResultSet rs = metaData.getTables(conn.getCatalog(), null, candidate, null);
+            try {
+                if (rs.next()) return true;
+            } finally {
+                rs.close();
+            }
+        }
+        return false;
+    }
+}
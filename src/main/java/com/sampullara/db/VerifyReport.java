@@ -0,0 +1,135 @@
+package com.sampullara.db;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Whether the migrations applied to a database are the ones on the classpath now, from Migrate.verify():
+ * the scripts and CSV files whose checksum differs from the one in the history table, because they were
+ * edited after they were applied, and those that can no longer be found.
+ * <p/>
+ * Classes have no checksum and aren't verified, nor are migrations applied before there was a history.
+ */
+public class VerifyReport {
+
+    private final int verified;
+    private final List<String> changed;
+    private final List<String> missing;
+
+    VerifyReport(int verified, List<String> changed, List<String> missing) {
+        this.verified = verified;
+        this.changed = Collections.unmodifiableList(changed);
+        this.missing = Collections.unmodifiableList(missing);
+    }
+
+    /**
+     * Hash the sources in the history, a few at a time, and compare them with their recorded checksums.
+     *
+     * @param recorded the checksum of each source, see MigrationHistory
+     * @return what differs
+     * @throws MigrationException if a source can't be read
+     */
+    static VerifyReport verify(Map<String, String> recorded) throws MigrationException {
+        List<String> sources = new ArrayList<String>(recorded.keySet());
+        List<String> changed = new ArrayList<String>();
+        List<String> missing = new ArrayList<String>();
+        if (sources.isEmpty()) return new VerifyReport(0, changed, missing);
+        int threads = Math.min(sources.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<String>> checksums = new ArrayList<Future<String>>();
+            for (final String source : sources) {
+                checksums.add(executor.submit(new Callable<String>() {
+                    public String call() throws IOException {
+                        return checksum(source);
+                    }
+                }));
+            }
+            for (int i = 0; i < sources.size(); i++) {
+                String source = sources.get(i);
+                String checksum;
+                try {
+                    checksum = checksums.get(i).get();
+                } catch (ExecutionException e) {
+                    throw new MigrationException("Found migration but it is unreadable: " + source, e.getCause());
+                }
+                if (checksum == null) {
+                    missing.add(source);
+                } else if (!checksum.equals(recorded.get(source))) {
+                    changed.add(source);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MigrationException("Interrupted while verifying migrations");
+        } finally {
+            executor.shutdownNow();
+        }
+        return new VerifyReport(sources.size(), changed, missing);
+    }
+
+    /**
+     * @return the SHA-1 of the source, found either in the classpath or as a file, or null if it is neither
+     */
+    private static String checksum(String source) throws IOException {
+        InputStream is = Migrate.getResourceAsStream(source);
+        if (is == null) {
+            File file = new File(source);
+            if (!file.exists()) return null;
+            is = new FileInputStream(file);
+        }
+        return Checksums.sha1(is);
+    }
+
+    /**
+     * @return true if every migration in the history is unchanged
+     */
+    public boolean isClean() {
+        return changed.isEmpty() && missing.isEmpty();
+    }
+
+    /**
+     * @return the number of migrations in the history that were compared
+     */
+    public int getVerified() {
+        return verified;
+    }
+
+    /**
+     * @return the migrations that were edited after they were applied
+     */
+    public List<String> getChanged() {
+        return changed;
+    }
+
+    /**
+     * @return the migrations that are no longer on the classpath or in the file system
+     */
+    public List<String> getMissing() {
+        return missing;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (String source : changed) {
+            sb.append("  changed since applied: ").append(source).append("\n");
+        }
+        for (String source : missing) {
+            sb.append("  missing: ").append(source).append("\n");
+        }
+        sb.append(verified).append(" migrations verified, ").append(changed.size()).append(" changed, ")
+                .append(missing.size()).append(" missing");
+        return sb.toString();
+    }
+}
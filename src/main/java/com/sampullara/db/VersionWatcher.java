@@ -0,0 +1,191 @@
+package com.sampullara.db;
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+
+/**
+ * A cheap, read-only view of the database version for callers that ask often, like readiness probes.  The
+ * version is read with a plain SELECT on a dedicated read-only connection, never inserted, and cached for a
+ * time to live so that most calls don't touch the database at all.
+ * <p/>
+ * Optionally the watcher can poll in the background and tell listeners when the version changes.  On
+ * PostgreSQL it LISTENs on the version table's channel, which migrate() NOTIFYs when it is done, and only
+ * re-reads the version when a notification arrives.
+ */
+public class VersionWatcher {
+
+    /**
+     * Told when a watcher sees the database version change
+     */
+    public static interface Listener {
+        void versionChanged(int oldVersion, int newVersion);
+    }
+
+    private final Migrate migrate;
+    private final long ttl;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    private Connection connection;
+    private Method getNotifications;
+    private int version = -1;
+    private long readAt;
+    private Timer timer;
+
+    /**
+     * @param migrate the migration whose database and client version are watched
+     * @param ttl     how long in milliseconds a version that has been read is trusted
+     */
+    public VersionWatcher(Migrate migrate, long ttl) {
+        this.migrate = migrate;
+        this.ttl = ttl;
+    }
+
+    /**
+     * @return the database version, read again only if the cached one is older than the time to live
+     * @throws MigrationException if the version can't be read
+     */
+    public synchronized int getDBVersion() throws MigrationException {
+        if (version == -1 || System.currentTimeMillis() - readAt >= ttl) {
+            refresh();
+        }
+        return version;
+    }
+
+    /**
+     * @return true if the database is behind the client version, see Migrate.needsMigrate()
+     * @throws MigrationException if the version can't be read
+     */
+    public boolean needsMigrate() throws MigrationException {
+        return migrate.needsMigrate(getDBVersion());
+    }
+
+    /**
+     * Read the version now, regardless of the time to live, and tell the listeners if it changed.
+     *
+     * @throws MigrationException if the version can't be read
+     */
+    public void refresh() throws MigrationException {
+        int oldVersion;
+        int newVersion;
+        synchronized (this) {
+            try {
+                newVersion = Migrate.readVersion(getConnection(), migrate.getTablename());
+            } catch (SQLException e) {
+                closeConnection();
+                throw new MigrationException("Could not read the version from " + migrate.getTablename(), e);
+            }
+            oldVersion = version;
+            version = newVersion;
+            readAt = System.currentTimeMillis();
+        }
+        if (oldVersion != -1 && oldVersion != newVersion) {
+            for (Listener listener : listeners) {
+                listener.versionChanged(oldVersion, newVersion);
+            }
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Start checking the version in the background.  Where the database can notify us, the version is only
+     * read when a notification has arrived; elsewhere it is read on every poll.
+     *
+     * @param interval how often to check, in milliseconds
+     */
+    public synchronized void start(long interval) {
+        if (timer != null) return;
+        timer = new Timer("VersionWatcher " + migrate.getTablename(), true);
+        timer.schedule(new TimerTask() {
+            public void run() {
+                try {
+                    if (notified()) refresh();
+                } catch (Exception e) {
+                    Migrate.logger.log(Level.WARNING, "Failed to check the database version: " + e);
+                }
+            }
+        }, interval, interval);
+    }
+
+    /**
+     * Stop checking in the background and close the watcher's connection.
+     */
+    public synchronized void stop() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+        closeConnection();
+    }
+
+    /**
+     * @return true if the version should be read, either because the database told us it changed or because
+     *         it can't tell us
+     */
+    private synchronized boolean notified() throws MigrationException {
+        Connection conn = getConnection();
+        if (getNotifications == null) return true;
+        try {
+            Object notifications = getNotifications.invoke(conn);
+            return notifications != null && ((Object[]) notifications).length > 0;
+        } catch (Exception e) {
+            closeConnection();
+            return true;
+        }
+    }
+
+    private Connection getConnection() throws MigrationException {
+        if (connection == null) {
+            connection = migrate.openConnection();
+            try {
+                connection.setAutoCommit(true);
+                connection.setReadOnly(true);
+                String listenSQL = migrate.getDialect(connection).getListenSQL();
+                if (listenSQL != null) {
+                    // The driver specific connection class has getNotifications(), e.g. PGConnection
+                    Method method = connection.getClass().getMethod("getNotifications");
+                    Statement st = connection.createStatement();
+                    try {
+                        st.execute(listenSQL);
+                    } finally {
+                        st.close();
+                    }
+                    method.setAccessible(true);
+                    getNotifications = method;
+                }
+            } catch (SQLException e) {
+                closeConnection();
+                throw new MigrationException("Could not prepare connection to watch " + migrate.getTablename(), e);
+            } catch (NoSuchMethodException e) {
+                // Wrapped by a pool, fall back to polling
+                getNotifications = null;
+            }
+        }
+        return connection;
+    }
+
+    private void closeConnection() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                // Ignore failures to close things
+            }
+            connection = null;
+            getNotifications = null;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.sampullara.db;
+
+import groovy.lang.Script;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+import junit.framework.TestCase;
+
+public class GroovyScriptCacheTest extends TestCase {
+	private static final String SCRIPT = "def twice = { x -> x * 2 }\nreturn twice(21)\n";
+
+	private File directory;
+
+	@Override
+	protected void setUp() throws Exception {
+		this.directory = File.createTempFile("groovycache", "");
+		directory.delete();
+		directory.mkdirs();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		delete(directory);
+	}
+
+	public void testShouldCompileEachScriptOnce() throws Exception {
+		// given
+		GroovyScriptCache underTest = new GroovyScriptCache(null, getClass().getClassLoader());
+
+		// when
+		Class<?> first = underTest.getScriptClass(source(SCRIPT), "first.groovy");
+		Class<?> second = underTest.getScriptClass(source(SCRIPT), "second.groovy");
+
+		// then
+		assertSame(first, second);
+		assertEquals(42, run(first));
+	}
+
+	public void testShouldReuseCompiledScriptFromDirectory() throws Exception {
+		// given
+		new GroovyScriptCache(directory, getClass().getClassLoader()).getScriptClass(source(SCRIPT), "script.groovy");
+		assertEquals(1, directory.listFiles().length);
+
+		// when
+		Class<?> cached = new GroovyScriptCache(directory, getClass().getClassLoader())
+				.getScriptClass(source(SCRIPT), "script.groovy");
+
+		// then
+		assertEquals(42, run(cached));
+		assertEquals(1, directory.listFiles().length);
+	}
+
+	public void testShouldKeepChangedScriptsApart() throws Exception {
+		// given
+		GroovyScriptCache underTest = new GroovyScriptCache(directory, getClass().getClassLoader());
+
+		// when
+		Class<?> original = underTest.getScriptClass(source(SCRIPT), "script.groovy");
+		Class<?> changed = underTest.getScriptClass(source(SCRIPT.replace("21", "4")), "script.groovy");
+
+		// then
+		assertEquals(42, run(original));
+		assertEquals(8, run(changed));
+		assertEquals(2, directory.listFiles().length);
+	}
+
+	public void testShouldKeepClassesOfScriptsApart() throws Exception {
+		// given
+		GroovyScriptCache underTest = new GroovyScriptCache(directory, getClass().getClassLoader());
+		String script = "class Row { def value() { 1 } }\nreturn new Row().value()\n";
+
+		// when
+		Class<?> first = underTest.getScriptClass(source(script), "migratefrom3.groovy");
+		Class<?> second = underTest.getScriptClass(source(script.replace("1", "2")), "migratefrom5.groovy");
+
+		// then
+		assertEquals(1, run(first));
+		assertEquals(2, run(second));
+	}
+
+	public void testShouldReadScriptsAsUtf8() throws Exception {
+		// given
+		GroovyScriptCache underTest = new GroovyScriptCache(directory, getClass().getClassLoader());
+
+		// when
+		Class<?> script = underTest.getScriptClass(source("return \"\u00e9t\u00e9\"\n"), "script.groovy");
+
+		// then
+		assertEquals("\u00e9t\u00e9", run(script));
+	}
+
+	private static ByteArrayInputStream source(String script) throws Exception {
+		return new ByteArrayInputStream(script.getBytes("UTF-8"));
+	}
+
+	private static Object run(Class<?> scriptClass) throws Exception {
+		return ((Script) scriptClass.newInstance()).run();
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) for (File child : files) {
+			delete(child);
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,88 @@
+package com.sampullara.db;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+import junit.framework.TestCase;
+
+public class MappedFileReaderTest extends TestCase {
+	private File file;
+
+	@Override
+	protected void setUp() throws Exception {
+		this.file = File.createTempFile("mapped", ".sql");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+	}
+
+	public void testShouldDecodeCharactersSplitAcrossWindows() throws IOException {
+		// given
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			sb.append("INSERT INTO t VALUES ('caf\u00e9 \u20ac \u4e2d');\n");
+		}
+		write(sb.toString());
+
+		// when
+		String read = readAll(new MappedFileReader(file, 7));
+
+		// then
+		assertEquals(sb.toString(), read);
+	}
+
+	public void testShouldHashTheBytesItDecodes() throws IOException {
+		// given
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			sb.append("INSERT INTO t VALUES ('caf\u00e9 \u20ac \u4e2d');\n");
+		}
+		write(sb.toString());
+		MappedFileReader reader = new MappedFileReader(file, 7);
+		MessageDigest digest = Checksums.sha1();
+		reader.setDigest(digest);
+
+		// when
+		readAll(reader);
+
+		// then
+		assertEquals(Checksums.sha1(new FileInputStream(file)), Checksums.hex(digest.digest()));
+	}
+
+	public void testShouldReadEmptyFile() throws IOException {
+		// given
+		write("");
+
+		// then
+		assertEquals("", readAll(new MappedFileReader(file)));
+	}
+
+	private void write(String s) throws IOException {
+		OutputStream os = new FileOutputStream(file);
+		try {
+			os.write(s.getBytes("UTF-8"));
+		} finally {
+			os.close();
+		}
+	}
+
+	private String readAll(MappedFileReader reader) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		char[] buffer = new char[1000];
+		int read;
+		try {
+			while ((read = reader.read(buffer, 0, buffer.length)) != -1) {
+				sb.append(buffer, 0, read);
+			}
+		} finally {
+			reader.close();
+		}
+		return sb.toString();
+	}
+}
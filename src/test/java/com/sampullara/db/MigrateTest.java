@@ -2,14 +2,30 @@ package com.sampullara.db;
 
 import junit.framework.TestCase;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.sql.DataSource;
 import java.lang.reflect.Method;
 import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.net.URLClassLoader;
 
 /**
  * Test single and multithreaded migration
@@ -263,6 +279,443 @@ public class MigrateTest extends TestCase {
         }
     }
 
+    public void testFastMigration() throws MigrationException, IOException {
+        Properties p = new Properties();
+        InputStream is =
+                Thread.currentThread().getContextClassLoader().getResourceAsStream("com/sampullara/db/test.properties");
+        p.load(is);
+        p.put("fast", "true");
+        // MigrateFrom2 updates the version itself
+        p.put("checkmanual", "true");
+        Migrate migrate = new Migrate(p);
+        dropTable(migrate);
+
+        // Do the migration
+        assertTrue(migrate.migrate());
+
+        // Make sure it worked
+        assertEquals(6, migrate.getDBVersion());
+
+        // Assert nothing was done the second time
+        assertFalse(migrate.migrate());
+    }
+
+    public void testFastMigrationScriptVersion() throws MigrationException, IOException, SQLException {
+        Properties p = new Properties();
+        InputStream is =
+                Thread.currentThread().getContextClassLoader().getResourceAsStream("com/sampullara/db/test.properties");
+        p.load(is);
+        p.setProperty("url", "jdbc:h2:mem:test_fast_script;DB_CLOSE_DELAY=-1");
+        p.setProperty("package", "com.sampullara.test.fast");
+        p.setProperty("tablename", "fast_version");
+        p.setProperty("version", "3");
+        p.setProperty("fast", "true");
+        Migrate migrate = new Migrate(p);
+        assertTrue(migrate.migrate());
+        assertEquals(3, migrate.getDBVersion());
+
+        // The Groovy script was bound the tracked version, and it had been written for it to read
+        Connection conn = migrate.getConnection();
+        assertEquals(2, queryInt(conn, "SELECT bound FROM fast_seen"));
+        assertEquals(2, queryInt(conn, "SELECT stored FROM fast_seen"));
+        migrate.close();
+    }
+
+    public void testFleetMigration() throws IOException, InterruptedException {
+        Properties p = new Properties();
+        InputStream is =
+                Thread.currentThread().getContextClassLoader().getResourceAsStream("com/sampullara/db/test.properties");
+        p.load(is);
+
+        MigrationFleetRunner runner = new MigrationFleetRunner(p.getProperty("package"), 6);
+        runner.setConcurrency(2);
+        runner.setGroupConcurrency(1);
+        for (int i = 0; i < 4; i++) {
+            runner.addTarget("tenant" + i, "group" + (i % 2), "jdbc:h2:mem:fleet" + i + ";DB_CLOSE_DELAY=-1",
+                    p.getProperty("driver"), p);
+        }
+        runner.addTarget("broken", null, "jdbc:unknown:fleet", p.getProperty("driver"), p);
+
+        MigrationFleetRunner.Report report = runner.run();
+        assertEquals(5, report.getResults().size());
+        assertEquals(4, report.getMigrated());
+        assertEquals(1, report.getFailed());
+        assertEquals("broken", report.getResults().get(4).getTarget().getName());
+        assertFalse(report.isSuccess());
+
+        // Everything is current the second time around
+        runner = new MigrationFleetRunner(p.getProperty("package"), 6);
+        runner.setFailurePolicy(MigrationFleetRunner.FailurePolicy.FAIL_FAST);
+        for (int i = 0; i < 4; i++) {
+            runner.addTarget("tenant" + i, null, "jdbc:h2:mem:fleet" + i + ";DB_CLOSE_DELAY=-1",
+                    p.getProperty("driver"), p);
+        }
+        report = runner.run();
+        assertTrue(report.toString(), report.isSuccess());
+        assertEquals(0, report.getMigrated());
+    }
+
+    public void testFleetMigrationSchemas() throws IOException, InterruptedException, MigrationException, SQLException {
+        Properties p = new Properties();
+        InputStream is =
+                Thread.currentThread().getContextClassLoader().getResourceAsStream("com/sampullara/db/test.properties");
+        p.load(is);
+
+        // One database with a schema per tenant, each with tables of the same names
+        Migrate setup = new Migrate(p);
+        setup.setUrl("jdbc:h2:mem:fleet_schemas;DB_CLOSE_DELAY=-1");
+        Statement st = setup.getConnection().createStatement();
+        for (int i = 0; i < 3; i++) {
+            st.execute("CREATE SCHEMA tenant" + i);
+        }
+        st.close();
+
+        MigrationFleetRunner runner = new MigrationFleetRunner(p.getProperty("package"), 6);
+        runner.setConcurrency(1);
+        for (int i = 0; i < 3; i++) {
+            runner.addTarget("tenant" + i, null, "jdbc:h2:mem:fleet_schemas;SCHEMA=TENANT" + i, p.getProperty("driver"), p);
+        }
+        MigrationFleetRunner.Report report = runner.run();
+        assertTrue(report.toString(), report.isSuccess());
+        assertEquals(3, report.getMigrated());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(6, queryInt(setup.getConnection(), "SELECT version FROM tenant" + i + ".db_version"));
+        }
+        setup.close();
+    }
+
+    public void testLockKeyPerSchema() throws MigrationException, IOException, SQLException {
+        Properties p = new Properties();
+        InputStream is =
+                Thread.currentThread().getContextClassLoader().getResourceAsStream("com/sampullara/db/test.properties");
+        p.load(is);
+        Migrate migrate = new Migrate(p);
+        migrate.setUrl("jdbc:h2:mem:lock_schemas;DB_CLOSE_DELAY=-1");
+        Connection conn = migrate.getConnection();
+        Statement st = conn.createStatement();
+        st.execute("CREATE SCHEMA tenant1");
+
+        // Advisory locks as PostgreSQL and MySQL have them, which are shared by every schema
+        Properties db = new Properties();
+        db.setProperty("trylock_h2", "SELECT pg_try_advisory_lock(:key)");
+        db.setProperty("schema_h2", "CALL SCHEMA()");
+        String publicLock = Dialect.resolve(conn, db, "db_version").getTryLockSQL();
+        st.execute("SET SCHEMA tenant1");
+        String tenantLock = Dialect.resolve(conn, db, "db_version").getTryLockSQL();
+        assertFalse(publicLock.equals(tenantLock));
+        assertEquals("SELECT pg_try_advisory_lock(" + "TENANT1.db_version".hashCode() + ")", tenantLock);
+        st.close();
+        migrate.close();
+    }
+
+    public void testNotifyChannel() throws MigrationException, IOException, SQLException {
+        Properties p = new Properties();
+        InputStream is =
+                Thread.currentThread().getContextClassLoader().getResourceAsStream("com/sampullara/db/test.properties");
+        p.load(is);
+        Migrate migrate = new Migrate(p);
+        Connection conn = migrate.getConnection();
+
+        // A version table qualified by its schema still gets a plain identifier as its channel
+        Properties db = new Properties();
+        db.setProperty("notify_h2", "NOTIFY :channel");
+        db.setProperty("schema_h2", "CALL SCHEMA()");
+        String notify = Dialect.resolve(conn, db, "app.db_version").getNotifySQL();
+        assertEquals("NOTIFY dbmigrate_" + Integer.toHexString("PUBLIC.app.db_version".hashCode()), notify);
+        assertTrue(notify, notify.matches("NOTIFY [a-z0-9_]+"));
+        migrate.close();
+    }
+
+    public void testPooledConnections() throws MigrationException, IOException, SQLException {
+        Properties p = new Properties();
+        InputStream is =
+                Thread.currentThread().getContextClassLoader().getResourceAsStream("com/sampullara/db/test.properties");
+        p.load(is);
+        p.put("pool", "true");
+        Migrate migrate = new Migrate(p);
+        dropTable(migrate);
+        migrate.migrate();
+        ConnectionPool pool = ConnectionPool.get(migrate.getDriver(), migrate.getUrl(), p);
+        int idle = pool.getIdleCount();
+        assertTrue(idle > 0);
+
+        // Each check borrows the same idle connection and gives it back
+        for (int i = 0; i < 3; i++) {
+            migrate = new Migrate(p);
+            assertFalse(migrate.needsMigrate());
+            assertEquals(idle - 1, pool.getIdleCount());
+            migrate.close();
+            assertEquals(idle, pool.getIdleCount());
+        }
+
+        // The session is reset before a connection is reused
+        Connection conn = pool.getConnection();
+        int isolation = conn.getTransactionIsolation();
+        int other = isolation == Connection.TRANSACTION_SERIALIZABLE ?
+                Connection.TRANSACTION_READ_COMMITTED : Connection.TRANSACTION_SERIALIZABLE;
+        conn.setTransactionIsolation(other);
+        assertEquals(other, conn.getTransactionIsolation());
+        conn.close();
+        assertEquals(idle, pool.getIdleCount());
+        conn = pool.getConnection();
+        assertEquals(isolation, conn.getTransactionIsolation());
+
+        // Closing the pool closes its idle connections, and those in use as they are returned
+        Migrate.closePool();
+        assertEquals(0, pool.getIdleCount());
+        conn.close();
+        assertEquals(0, pool.getIdleCount());
+        assertNotSame(pool, ConnectionPool.get(migrate.getDriver(), migrate.getUrl(), p));
+    }
+
+    public void testPlan() throws MigrationException, IOException {
+        Properties p = new Properties();
+        InputStream is =
+                Thread.currentThread().getContextClassLoader().getResourceAsStream("com/sampullara/db/test.properties");
+        p.load(is);
+        p.remove("version");
+        p.put("auto", "true");
+        Migrate migrate = new Migrate(p);
+        dropTable(migrate);
+
+        // MigrateFrom2 jumps to version 4 itself, so the plan can only see as far as version 3
+        List<MigrationStep> plan = migrate.plan();
+        assertEquals(3, plan.size());
+        assertEquals(MigrationStep.Type.SQL, plan.get(0).getType());
+        assertTrue(plan.get(0).isDatabaseSpecific());
+        assertEquals(MigrationStep.Type.GROOVY, plan.get(1).getType());
+        assertEquals("com/sampullara/test/migration/migratefrom1.groovy", plan.get(1).getName());
+        assertEquals(MigrationStep.Type.CLASS, plan.get(2).getType());
+        assertEquals("com.sampullara.test.migration.MigrateFrom2", plan.get(2).getName());
+
+        // Planning doesn't migrate anything
+        assertEquals(0, migrate.getDBVersion());
+
+        p.remove("auto");
+        p.put("version", "4");
+        migrate = new Migrate(p);
+        migrate.migrate();
+        assertEquals(4, migrate.getDBVersion());
+
+        p.put("version", "6");
+        migrate = new Migrate(p);
+        plan = migrate.plan();
+        assertEquals(2, plan.size());
+        assertEquals(4, plan.get(0).getFromVersion());
+        assertTrue(plan.get(0).isDatabaseSpecific());
+        assertEquals("com/sampullara/test/migration/migrateto6.sql", plan.get(1).getName());
+        assertTrue(plan.get(1).isTo());
+    }
+
+    public void testVersionWatcher() throws MigrationException, IOException, SQLException {
+        Properties p = new Properties();
+        InputStream is =
+                Thread.currentThread().getContextClassLoader().getResourceAsStream("com/sampullara/db/test.properties");
+        p.load(is);
+        Migrate migrate = new Migrate(p);
+        dropTable(migrate);
+
+        // Reading the version of a missing table doesn't create anything
+        assertEquals(0, migrate.readDBVersion());
+        VersionWatcher watcher = new VersionWatcher(migrate, 60000);
+        assertEquals(0, watcher.getDBVersion());
+        assertTrue(watcher.needsMigrate());
+
+        migrate.migrate();
+        final int[] changed = new int[2];
+        watcher.addListener(new VersionWatcher.Listener() {
+            public void versionChanged(int oldVersion, int newVersion) {
+                changed[0] = oldVersion;
+                changed[1] = newVersion;
+            }
+        });
+
+        // The cached version is trusted until it expires or is refreshed
+        assertEquals(0, watcher.getDBVersion());
+        watcher.refresh();
+        assertEquals(6, watcher.getDBVersion());
+        assertFalse(watcher.needsMigrate());
+        assertEquals(0, changed[0]);
+        assertEquals(6, changed[1]);
+
+        Connection conn = migrate.getConnection();
+        Statement st = conn.createStatement();
+        st.executeUpdate("UPDATE db_version SET version = 5");
+        st.close();
+        conn.commit();
+        assertEquals(6, watcher.getDBVersion());
+        watcher.refresh();
+        assertEquals(5, watcher.getDBVersion());
+        assertEquals(6, changed[0]);
+        assertEquals(5, changed[1]);
+        watcher.stop();
+    }
+
+    public void testListeners() throws MigrationException, IOException {
+        Properties p = new Properties();
+        InputStream is =
+                Thread.currentThread().getContextClassLoader().getResourceAsStream("com/sampullara/db/test.properties");
+        p.load(is);
+        Migrate migrate = new Migrate(p);
+        dropTable(migrate);
+        MetricsListener metrics = new MetricsListener();
+        StringWriter trace = new StringWriter();
+        migrate.addListener(metrics);
+        migrate.addListener(new JsonTraceWriter(trace));
+        migrate.addListener(new MetricsListener() {
+            public void stepStarted(MigrationStep step) {
+                throw new IllegalStateException("Listeners can't break migrations");
+            }
+        });
+
+        assertTrue(migrate.migrate());
+
+        assertEquals(1, metrics.getRuns().getCount());
+        assertEquals(0, metrics.getFailures());
+        assertTrue(metrics.getSteps().getCount() >= 4);
+        assertTrue(metrics.getStatements().getCount() > 0);
+        assertFalse(metrics.getSlowest().isEmpty());
+        assertTrue(metrics.getStatements().getPercentile(50) <= metrics.getStatements().getMax());
+
+        String json = trace.toString();
+        assertTrue(json.startsWith("{\"ts\":"));
+        assertTrue(json.contains("\"event\":\"run_start\",\"database\":\"h2\",\"version\":0}"));
+        assertTrue(json.contains("\"event\":\"step_end\",\"from\":2,\"type\":\"CLASS\""));
+        // Scripts run by Migrator classes are traced too
+        assertTrue(json.contains("\"script\":\"com/sampullara/test/migration/migratefrom2.sql\",\"line\":1"));
+        assertTrue(json.contains("\"event\":\"run_end\",\"version\":6,\"migrated\":true"));
+    }
+
+    public void testLockTimeout() throws MigrationException, IOException, SQLException {
+        Properties p = new Properties();
+        InputStream is =
+                Thread.currentThread().getContextClassLoader().getResourceAsStream("com/sampullara/db/test.properties");
+        p.load(is);
+        p.put("locktimeout", "1");
+        Migrate migrate = new Migrate(p);
+        dropTable(migrate);
+        MetricsListener metrics = new MetricsListener();
+        migrate.addListener(metrics);
+
+        // Another process is bootstrapping the database
+        Connection conn = migrate.getConnection();
+        Statement st = conn.createStatement();
+        st.execute("DROP TABLE IF EXISTS db_version_lock");
+        st.execute("CREATE TABLE db_version_lock (id integer not null primary key, owner varchar(64), locked_at bigint)");
+        st.executeUpdate("INSERT INTO db_version_lock VALUES (1, 'other', " + System.currentTimeMillis() + ")");
+        conn.commit();
+        long start = System.currentTimeMillis();
+        try {
+            migrate.migrate();
+            fail("Should have timed out");
+        } catch (MigrationException e) {
+            assertTrue(e.getMessage().startsWith("Timed out"));
+        }
+        assertTrue(System.currentTimeMillis() - start >= 1000);
+        assertEquals(0, migrate.readDBVersion());
+
+        // The other process died a long time ago
+        conn = migrate.getConnection();
+        st = conn.createStatement();
+        st.executeUpdate("UPDATE db_version_lock SET locked_at = 0");
+        conn.commit();
+        assertTrue(migrate.migrate());
+        assertEquals(6, migrate.getDBVersion());
+        assertEquals(0, queryInt(migrate.getConnection(), "SELECT COUNT(*) FROM db_version_lock"));
+        // The lock row for the bootstrap, then the version table it created
+        assertEquals(2, metrics.getLockWaits().getCount());
+    }
+
+    public void testCoordinatedMigration() throws MigrationException, IOException, InterruptedException, SQLException {
+        final Properties p = new Properties();
+        InputStream is =
+                Thread.currentThread().getContextClassLoader().getResourceAsStream("com/sampullara/db/test.properties");
+        p.load(is);
+        p.put("coordinated", "true");
+        Migrate migrate = new Migrate(p);
+        dropTable(migrate);
+
+        final CyclicBarrier barrier = new CyclicBarrier(3);
+        final AtomicInteger migrated = new AtomicInteger();
+        final AtomicInteger current = new AtomicInteger();
+        Runnable run = new Runnable() {
+            public void run() {
+                try {
+                    Migrate migrate = new Migrate(p);
+                    barrier.await();
+
+                    // One leader migrates, the followers wait for the version
+                    if (migrate.migrate()) migrated.incrementAndGet();
+                    if (!migrate.needsMigrate()) current.incrementAndGet();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        Thread[] threads = new Thread[3];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(run);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, migrated.get());
+        assertEquals(3, current.get());
+        assertEquals(6, migrate.getDBVersion());
+        assertEquals(0, queryInt(migrate.getConnection(), "SELECT COUNT(*) FROM db_version_lock"));
+    }
+
+    public void testCoordinatedFollowerOutlastsLockTimeout() throws Exception {
+        final Properties p = new Properties();
+        InputStream is =
+                Thread.currentThread().getContextClassLoader().getResourceAsStream("com/sampullara/db/test.properties");
+        p.load(is);
+        p.put("version", "5");
+        Migrate migrate = new Migrate(p);
+        dropTable(migrate);
+        migrate.migrate();
+
+        // A leader holds a fresh lease for longer than the follower's lock timeout
+        Connection conn = migrate.getConnection();
+        Statement st = conn.createStatement();
+        st.execute("DROP TABLE IF EXISTS db_version_lock");
+        st.execute("CREATE TABLE db_version_lock (id integer not null primary key, owner varchar(64), locked_at bigint)");
+        st.executeUpdate("INSERT INTO db_version_lock VALUES (1, 'leader', " + System.currentTimeMillis() + ")");
+        conn.commit();
+
+        p.put("version", "6");
+        p.put("coordinated", "true");
+        p.put("locktimeout", "1");
+        final List<Object> outcome = new ArrayList<Object>();
+        Thread follower = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    outcome.add(new Migrate(p).migrate());
+                } catch (Exception e) {
+                    outcome.add(e);
+                }
+            }
+        });
+        follower.start();
+        for (int i = 0; i < 5; i++) {
+            Thread.sleep(500);
+            st.executeUpdate("UPDATE db_version_lock SET locked_at = " + System.currentTimeMillis());
+            conn.commit();
+        }
+
+        // The leader finishes
+        p.remove("coordinated");
+        assertTrue(new Migrate(p).migrate());
+        st.executeUpdate("DELETE FROM db_version_lock");
+        conn.commit();
+        st.close();
+        follower.join();
+        assertEquals(1, outcome.size());
+        assertEquals(Boolean.FALSE, outcome.get(0));
+        assertEquals(6, migrate.getDBVersion());
+    }
+
     private int migrations = 0;
 
     public void testMultithreaded() throws MigrationException, IOException, InterruptedException {
@@ -322,4 +775,517 @@ public class MigrateTest extends TestCase {
         // Make sure it worked
         assertEquals(6, migrate.getDBVersion());
     }
+
+    public void testBatchedScript() throws MigrationException, IOException, SQLException {
+        Properties p = new Properties();
+        InputStream is =
+                Thread.currentThread().getContextClassLoader().getResourceAsStream("com/sampullara/db/test.properties");
+        p.load(is);
+        Migrate migrate = new Migrate(p);
+
+        assertTrue(Migrate.sqlScriptMigrator(migrate.getConnection(), "com/sampullara/test/scripts/batch.sql", 10));
+
+        assertEquals(24, queryInt(migrate.getConnection(), "SELECT COUNT(*) FROM batch_test"));
+        assertEquals(5, queryInt(migrate.getConnection(), "SELECT COUNT(*) FROM batch_test WHERE name = 'updated'"));
+    }
+
+    public void testBatchedScriptFailure() throws MigrationException, IOException {
+        Properties p = new Properties();
+        InputStream is =
+                Thread.currentThread().getContextClassLoader().getResourceAsStream("com/sampullara/db/test.properties");
+        p.load(is);
+        Migrate migrate = new Migrate(p);
+
+        try {
+            Migrate.sqlScriptMigrator(migrate.getConnection(), "com/sampullara/test/scripts/batchfailure.sql", 10);
+            fail("Migration succeeded and should have failed");
+        } catch (MigrationException e) {
+            // The failing statement is reported even though it was batched
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Failed to execute SQL line #5: "));
+            assertTrue(e.getMessage(), e.getMessage().indexOf("'three'") != -1);
+        }
+    }
+
+    public void testPreparedScript() throws MigrationException, IOException, SQLException {
+        Properties p = new Properties();
+        InputStream is =
+                Thread.currentThread().getContextClassLoader().getResourceAsStream("com/sampullara/db/test.properties");
+        p.load(is);
+        Migrate migrate = new Migrate(p);
+        Connection conn = migrate.getConnection();
+
+        // Batched, and one statement at a time
+        for (int batch : new int[]{10, 0}) {
+            ScriptExecutor executor = new ScriptExecutor(conn, batch);
+            executor.setPrepare(true);
+            assertTrue(Migrate.sqlScriptMigrator(conn, "com/sampullara/test/scripts/batch.sql", executor));
+            assertEquals(24, queryInt(conn, "SELECT COUNT(*) FROM batch_test"));
+            assertEquals(5, queryInt(conn, "SELECT COUNT(*) FROM batch_test WHERE name = 'updated'"));
+            assertEquals(1, queryInt(conn, "SELECT COUNT(*) FROM batch_test WHERE id = 25 AND name = 'updated'"));
+            assertEquals(1, queryInt(conn, "SELECT COUNT(*) FROM batch_test WHERE id = 12 AND name = 'row 12'"));
+        }
+
+        // Failures are still reported with their line
+        ScriptExecutor executor = new ScriptExecutor(conn, 10);
+        executor.setPrepare(true);
+        try {
+            Migrate.sqlScriptMigrator(conn, "com/sampullara/test/scripts/batchfailure.sql", executor);
+            fail("Migration succeeded and should have failed");
+        } catch (MigrationException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Failed to execute SQL line #5: "));
+        }
+    }
+
+    public void testOnlineBackfill() throws MigrationException, IOException, SQLException {
+        Properties p = new Properties();
+        InputStream is =
+                Thread.currentThread().getContextClassLoader().getResourceAsStream("com/sampullara/db/test.properties");
+        p.load(is);
+        Migrate migrate = new Migrate(p);
+        Connection conn = migrate.getConnection();
+        conn.setAutoCommit(false);
+        Statement st = conn.createStatement();
+        st.execute("DROP TABLE IF EXISTS backfill_test");
+        st.execute("DROP TABLE IF EXISTS db_version_checkpoint");
+        st.execute("CREATE TABLE backfill_test (id integer not null primary key, status varchar(16))");
+        for (int i = 1; i <= 100; i++) {
+            st.executeUpdate("INSERT INTO backfill_test VALUES (" + i + ", NULL)");
+        }
+        // An earlier run got as far as 51
+        st.execute("CREATE TABLE db_version_checkpoint (name varchar(255) not null primary key, position bigint not null)");
+        st.executeUpdate("INSERT INTO db_version_checkpoint VALUES ('com/sampullara/test/scripts/backfill.sql:3', 51)");
+        conn.commit();
+
+        ScriptExecutor executor = new ScriptExecutor(conn, 0, migrate.getDialect(conn));
+        executor.setOnline(true);
+        executor.setCheckpointTable("db_version_checkpoint");
+        assertTrue(Migrate.sqlScriptMigrator(conn, "com/sampullara/test/scripts/backfill.sql", executor));
+
+        // Each chunk was committed as it went
+        conn.rollback();
+        assertEquals(50, queryInt(conn, "SELECT COUNT(*) FROM backfill_test WHERE status = 'done'"));
+        assertEquals(0, queryInt(conn, "SELECT COUNT(*) FROM backfill_test WHERE status = 'done' AND id < 51"));
+        assertEquals(101, queryInt(conn, "SELECT position FROM db_version_checkpoint"));
+
+        // Checkpointing, the backfill is checkpointed with the script and removed when it completes, so the
+        // checkpoint left by the run without doesn't apply
+        st.executeUpdate("UPDATE backfill_test SET status = NULL");
+        conn.commit();
+        executor = new ScriptExecutor(conn, 0, migrate.getDialect(conn));
+        executor.setOnline(true);
+        executor.setCheckpointTable("db_version_checkpoint");
+        executor.setCheckpointing(true);
+        assertTrue(Migrate.sqlScriptMigrator(conn, "com/sampullara/test/scripts/backfill.sql", executor));
+        assertEquals(100, queryInt(conn, "SELECT COUNT(*) FROM backfill_test WHERE status = 'done'"));
+        assertEquals(1, queryInt(conn, "SELECT COUNT(*) FROM db_version_checkpoint"));
+        assertEquals(0, queryInt(conn, "SELECT COUNT(*) FROM db_version_checkpoint WHERE name LIKE 'script:%'"));
+        st.close();
+        conn.commit();
+        migrate.close();
+    }
+
+    public void testResumeScript() throws MigrationException, IOException, SQLException {
+        Properties p = new Properties();
+        InputStream is =
+                Thread.currentThread().getContextClassLoader().getResourceAsStream("com/sampullara/db/test.properties");
+        p.load(is);
+        Migrate migrate = new Migrate(p);
+        Connection conn = migrate.getConnection();
+        conn.setAutoCommit(false);
+        Statement st = conn.createStatement();
+        st.execute("DROP TABLE IF EXISTS resume_test");
+        st.execute("DROP TABLE IF EXISTS resume_other");
+        conn.commit();
+
+        ScriptExecutor executor = new ScriptExecutor(conn, 2, migrate.getDialect(conn));
+        executor.setCheckpointTable("db_version_checkpoint");
+        executor.setCheckpointing(true);
+        try {
+            Migrate.sqlScriptMigrator(conn, "com/sampullara/test/scripts/resume.sql", executor);
+            fail("Should have failed at line 6");
+        } catch (MigrationException e) {
+            assertTrue(e.getMessage().startsWith("Failed to execute SQL line #6"));
+        }
+        // migrate() commits what was done before the failure, and how far it got
+        conn.commit();
+        assertEquals(4, queryInt(conn, "SELECT position FROM db_version_checkpoint WHERE name LIKE 'script:%'"));
+
+        // The retry doesn't create resume_test again
+        st.execute("CREATE TABLE resume_other (id integer)");
+        executor = new ScriptExecutor(conn, 2, migrate.getDialect(conn));
+        executor.setCheckpointTable("db_version_checkpoint");
+        executor.setCheckpointing(true);
+        assertTrue(Migrate.sqlScriptMigrator(conn, "com/sampullara/test/scripts/resume.sql", executor));
+        assertEquals(4, queryInt(conn, "SELECT COUNT(*) FROM resume_test"));
+        assertEquals(0, queryInt(conn, "SELECT COUNT(*) FROM db_version_checkpoint WHERE name LIKE 'script:%'"));
+        st.close();
+        conn.commit();
+        migrate.close();
+    }
+
+    public void testCsvMigration() throws MigrationException, IOException, SQLException {
+        Properties p = new Properties();
+        InputStream is =
+                Thread.currentThread().getContextClassLoader().getResourceAsStream("com/sampullara/db/test.properties");
+        p.load(is);
+        p.setProperty("url", "jdbc:h2:mem:test_csv;DB_CLOSE_DELAY=-1");
+        p.setProperty("package", "com.sampullara.test.load");
+        p.setProperty("tablename", "load_version");
+        p.setProperty("version", "3");
+        Migrate migrate = new Migrate(p);
+        assertTrue(migrate.migrate());
+        assertEquals(3, migrate.getDBVersion());
+
+        // Loaded with CSVREAD
+        Connection conn = migrate.getConnection();
+        assertEquals(7, queryInt(conn, "SELECT COUNT(*) FROM countries"));
+        assertEquals(1, queryInt(conn, "SELECT COUNT(*) FROM countries WHERE code = 'FR' AND population IS NULL"));
+        assertEquals(1, queryInt(conn, "SELECT COUNT(*) FROM countries WHERE code = 'XX' AND name = ''"));
+        assertEquals(1, queryInt(conn, "SELECT COUNT(*) FROM countries WHERE name = 'Cote d''Ivoire, Republic of'"));
+        assertEquals(83000000, queryInt(conn, "SELECT population FROM countries WHERE code = 'DE'"));
+
+        // The same files through the generic INSERTs
+        Statement st = conn.createStatement();
+        st.execute("DELETE FROM countries");
+        assertTrue(Migrate.csvMigrator(conn, "com/sampullara/test/load/migratefrom1.csv", null));
+        assertTrue(Migrate.csvMigrator(conn, "com/sampullara/test/load/migrateto3.csv", null));
+        assertFalse(Migrate.csvMigrator(conn, "com/sampullara/test/load/missing.csv", null));
+        assertEquals(7, queryInt(conn, "SELECT COUNT(*) FROM countries"));
+        assertEquals(1, queryInt(conn, "SELECT COUNT(*) FROM countries WHERE code = 'FR' AND population IS NULL"));
+        assertEquals(1, queryInt(conn, "SELECT COUNT(*) FROM countries WHERE code = 'XX' AND name = ''"));
+        assertEquals(1, queryInt(conn, "SELECT COUNT(*) FROM countries WHERE name = 'Say \"hi\"\nthere'"));
+        st.close();
+        conn.commit();
+        migrate.close();
+    }
+
+    public void testCsvForLoadData() throws MigrationException, IOException {
+        // NULLs and empty strings stay apart, and \r\n is no part of the last field
+        CsvLoader.CsvReader csv = new CsvLoader.CsvReader(new StringReader("a,,\"\"\r\nb\\c,\"x\"\"y\",1\r\n"), ',');
+        StringWriter writer = new StringWriter();
+        CsvLoader.writeForLoadData(csv, 3, "test.csv", writer);
+        assertEquals("\"a\",\\N,\"\"\n\"b\\\\c\",\"x\"\"y\",\"1\"\n", writer.toString());
+    }
+
+    public void testParallelBlock() throws MigrationException, IOException, SQLException {
+        Properties p = new Properties();
+        InputStream is =
+                Thread.currentThread().getContextClassLoader().getResourceAsStream("com/sampullara/db/test.properties");
+        p.load(is);
+        p.setProperty("url", "jdbc:h2:mem:test_parallel;DB_CLOSE_DELAY=-1");
+        Migrate migrate = new Migrate(p);
+        Connection conn = migrate.getConnection();
+        conn.setAutoCommit(false);
+
+        // Without online mode the other connections can't rely on anything the migration has done
+        ScriptExecutor executor = new ScriptExecutor(conn, 0, migrate.getDialect(conn));
+        executor.setConnections(migrate);
+        try {
+            executor.execute(3, "CREATE INDEX parallel_x ON parallel_x (id)", Arrays.asList("parallel threads=2"));
+            fail("Should have refused the parallel block");
+        } catch (MigrationException e) {
+            assertEquals("A parallel block needs online mode, line #3", e.getMessage());
+        }
+
+        executor = new ScriptExecutor(conn, 0, migrate.getDialect(conn));
+        executor.setConnections(migrate);
+        executor.setOnline(true);
+        try {
+            Migrate.sqlScriptMigrator(conn, "com/sampullara/test/scripts/parallel.sql", executor);
+            fail("Should have failed at line 13");
+        } catch (MigrationException e) {
+            // The block at the end of the script is run before the script completes
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Failed to execute SQL line #13"));
+        }
+
+        // Built on the other connections, and run after the statements before the block
+        assertEquals(4, queryInt(conn, "SELECT COUNT(*) FROM INFORMATION_SCHEMA.INDEXES WHERE INDEX_NAME LIKE 'PARALLEL_%'"));
+        assertEquals(1, queryInt(conn, "SELECT COUNT(*) FROM parallel_b"));
+        conn.commit();
+        migrate.close();
+    }
+
+    public void testDryRun() throws MigrationException, IOException, SQLException {
+        Properties p = new Properties();
+        InputStream is =
+                Thread.currentThread().getContextClassLoader().getResourceAsStream("com/sampullara/db/test.properties");
+        p.load(is);
+        p.setProperty("url", "jdbc:h2:mem:test_dryrun;DB_CLOSE_DELAY=-1");
+        p.setProperty("package", "com.sampullara.test.dryrun");
+        p.setProperty("tablename", "dry_version");
+        p.setProperty("version", "1");
+        Migrate migrate = new Migrate(p);
+        migrate.migrate();
+
+        p.setProperty("version", "3");
+        migrate = new Migrate(p);
+        DryRunReport report = migrate.dryRun();
+        assertEquals(1, report.getDBVersion());
+        assertEquals(2, report.getSteps().size());
+        DryRunReport.Step step = report.getSteps().get(0);
+        assertTrue(step.isAnalyzed());
+        assertEquals(3, step.getStatements());
+        assertEquals(1, step.getDataStatements());
+        // H2 plans have no row estimates
+        assertEquals(1, step.getUnestimated());
+        assertEquals(1, step.getRewrites().size());
+        assertTrue(step.getRewrites().get(0).indexOf("ADD COLUMN status") != -1);
+        assertFalse(report.getSteps().get(1).isAnalyzed());
+        assertEquals(MigrationStep.Type.CSV, report.getSteps().get(1).getStep().getType());
+
+        // Nothing changed
+        Connection conn = migrate.getConnection();
+        assertEquals(1, queryInt(conn, "SELECT version FROM dry_version"));
+        assertEquals(1, queryInt(conn, "SELECT COUNT(*) FROM dry_test WHERE name = 'a'"));
+
+        // Plans from PostgreSQL and MySQL
+        Statement st = conn.createStatement();
+        assertEquals(42, DryRunReport.estimate(st.executeQuery(
+                "SELECT 'Update on dry_test  (cost=0.00..1.00 rows=0 width=6)' UNION ALL " +
+                "SELECT '  ->  Seq Scan on dry_test  (cost=0.00..1.00 rows=42 width=6)'")));
+        assertEquals(12, DryRunReport.estimate(st.executeQuery("SELECT 7 AS \"rows\" UNION ALL SELECT 5")));
+        assertEquals(-1, DryRunReport.estimate(st.executeQuery("EXPLAIN SELECT * FROM dry_test")));
+        st.close();
+        migrate.close();
+    }
+
+    public void testBaseline() throws MigrationException, IOException, SQLException {
+        Properties p = new Properties();
+        InputStream is =
+                Thread.currentThread().getContextClassLoader().getResourceAsStream("com/sampullara/db/test.properties");
+        p.load(is);
+        p.setProperty("url", "jdbc:h2:mem:test_snapshot;DB_CLOSE_DELAY=-1");
+        p.setProperty("package", "com.sampullara.test.dryrun");
+        p.setProperty("tablename", "dry_version");
+        p.setProperty("version", "2");
+        Migrate migrate = new Migrate(p);
+        migrate.migrate();
+
+        File directory = File.createTempFile("baseline", "");
+        directory.delete();
+        File baseline = migrate.snapshot(directory);
+        assertEquals(new File(directory, "com/sampullara/test/dryrun/h2/baseline2.sql"), baseline);
+        migrate.close();
+
+        // A new database starts from the baseline, found in the classpath, and then loads the CSV of version 2
+        ClassLoader context = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(new URLClassLoader(new URL[]{directory.toURI().toURL()}, context));
+        try {
+            p.setProperty("url", "jdbc:h2:mem:test_baseline;DB_CLOSE_DELAY=-1");
+            p.setProperty("version", "3");
+            migrate = new Migrate(p);
+            assertEquals(2, migrate.plan().get(0).getFromVersion());
+            assertTrue(migrate.migrate());
+            assertEquals(3, migrate.getDBVersion());
+            Connection conn = migrate.getConnection();
+            // The row inserted by migratefrom0.sql isn't in the schema only baseline
+            assertEquals(1, queryInt(conn, "SELECT COUNT(*) FROM dry_test"));
+            assertEquals(1, queryInt(conn, "SELECT COUNT(*) FROM dry_test WHERE id = 2 AND status = 'new'"));
+            assertEquals(1, queryInt(conn, "SELECT COUNT(*) FROM INFORMATION_SCHEMA.INDEXES WHERE INDEX_NAME = 'DRY_TEST_NAME'"));
+            migrate.close();
+        } finally {
+            Thread.currentThread().setContextClassLoader(context);
+            baseline.delete();
+        }
+    }
+
+    public void testVerify() throws MigrationException, IOException, SQLException {
+        Properties p = new Properties();
+        InputStream is =
+                Thread.currentThread().getContextClassLoader().getResourceAsStream("com/sampullara/db/test.properties");
+        p.load(is);
+        p.setProperty("url", "jdbc:h2:mem:test_verify;DB_CLOSE_DELAY=-1");
+        p.setProperty("package", "com.sampullara.test.dryrun");
+        p.setProperty("tablename", "dry_version");
+        p.setProperty("version", "3");
+        Migrate migrate = new Migrate(p);
+        migrate.migrate();
+
+        // Each migration is in the history
+        Connection conn = migrate.getConnection();
+        assertEquals(3, queryInt(conn, "SELECT COUNT(*) FROM dry_version_history"));
+        assertEquals(1, queryInt(conn, "SELECT COUNT(*) FROM dry_version_history WHERE version = 3 AND type = 'CSV' " +
+                "AND source = 'com/sampullara/test/dryrun/migratefrom2.csv' AND duration >= 0 AND applied_at IS NOT NULL"));
+        VerifyReport report = migrate.verify();
+        assertTrue(report.toString(), report.isClean());
+        assertEquals(3, report.getVerified());
+
+        // A script edited after it was applied and one that was removed
+        Statement st = conn.createStatement();
+        st.executeUpdate("UPDATE dry_version_history SET checksum = 'edited' WHERE version = 2");
+        st.executeUpdate("INSERT INTO dry_version_history (version, source, type, checksum, duration, applied_at) " +
+                "VALUES (4, 'com/sampullara/test/dryrun/migratefrom3.sql', 'SQL', 'gone', 0, CURRENT_TIMESTAMP)");
+        st.close();
+        conn.commit();
+        report = migrate.verify();
+        assertFalse(report.isClean());
+        assertEquals(4, report.getVerified());
+        assertEquals("com/sampullara/test/dryrun/migratefrom1.sql", report.getChanged().get(0));
+        assertEquals("com/sampullara/test/dryrun/migratefrom3.sql", report.getMissing().get(0));
+        migrate.close();
+    }
+
+    public void testMigrateAsync() throws MigrationException, IOException, SQLException, InterruptedException,
+            ExecutionException {
+        Properties p = new Properties();
+        InputStream is =
+                Thread.currentThread().getContextClassLoader().getResourceAsStream("com/sampullara/db/test.properties");
+        p.load(is);
+        p.setProperty("url", "jdbc:h2:mem:test_async;DB_CLOSE_DELAY=-1");
+        p.setProperty("package", "com.sampullara.test.dryrun");
+        p.setProperty("tablename", "dry_version");
+        p.setProperty("version", "3");
+        Migrate migrate = new Migrate(p);
+        final List<String> scripts = new ArrayList<String>();
+        MigrationProgress progress = new MigrationProgress() {
+            public synchronized void scriptProgress(String script, int statements, int totalStatements, long bytes, long totalBytes) {
+                super.scriptProgress(script, statements, totalStatements, bytes, totalBytes);
+                if (statements == totalStatements && bytes == totalBytes) scripts.add(script);
+            }
+        };
+        migrate.addListener(progress);
+        assertEquals("not started", progress.toString());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            MigrationResult result = migrate.migrateAsync(executor).get();
+            assertTrue(result.isMigrated());
+            assertEquals(0, result.getFromVersion());
+            assertEquals(3, result.getToVersion());
+        } finally {
+            executor.shutdown();
+        }
+
+        assertTrue(progress.isFinished());
+        assertNull(progress.getFailure());
+        assertEquals(3, progress.getSteps());
+        assertEquals(3, progress.getDBVersion());
+        // Both SQL scripts were read to the end, the CSV load isn't a script
+        assertEquals(2, scripts.size());
+        assertEquals("com/sampullara/test/dryrun/migratefrom0.sql", scripts.get(0));
+
+        // A failure comes out of the future
+        p.setProperty("version", "5");
+        migrate = new Migrate(p);
+        executor = Executors.newSingleThreadExecutor();
+        try {
+            migrate.migrateAsync(executor).get();
+            fail("Migration succeeded and should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof MigrationException);
+        } finally {
+            executor.shutdown();
+        }
+
+        // Cancelling interrupts the migration, which stops at the next statement
+        Connection conn = migrate.getConnection();
+        ScriptExecutor scriptExecutor = new ScriptExecutor(conn, 0, migrate.getDialect(conn));
+        Thread.currentThread().interrupt();
+        try {
+            scriptExecutor.execute(7, "SELECT 1");
+            fail("Should have been interrupted");
+        } catch (MigrationException e) {
+            assertEquals("Interrupted before SQL line #7", e.getMessage());
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+        migrate.close();
+    }
+
+    public void testRetryTransientFailure() throws MigrationException, IOException, SQLException, InterruptedException {
+        Properties p = new Properties();
+        InputStream is =
+                Thread.currentThread().getContextClassLoader().getResourceAsStream("com/sampullara/db/test.properties");
+        p.load(is);
+        p.setProperty("url", "jdbc:h2:mem:test_retry;DB_CLOSE_DELAY=-1");
+        Migrate migrate = new Migrate(p);
+        Connection conn = migrate.getConnection();
+        conn.setAutoCommit(false);
+        Statement st = conn.createStatement();
+        st.execute("CREATE TABLE retry_test (id integer not null)");
+        st.execute("INSERT INTO retry_test (id) VALUES (1)");
+        conn.commit();
+        st.execute("SET LOCK_TIMEOUT 100");
+        st.close();
+
+        // Another transaction holds the table lock
+        final Connection other = migrate.openConnection();
+        other.setAutoCommit(false);
+        Statement otherSt = other.createStatement();
+        otherSt.execute("INSERT INTO retry_test (id) VALUES (2)");
+        otherSt.close();
+
+        ScriptExecutor executor = new ScriptExecutor(conn, 0);
+        try {
+            executor.execute(1, "UPDATE retry_test SET id = id + 10 WHERE id = 1");
+            fail("Statement succeeded and should have timed out");
+        } catch (MigrationException e) {
+            assertTrue(RetryPolicy.isTransient((SQLException) e.getCause()));
+        }
+
+        // Until it commits, while we retry
+        Thread committer = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(300);
+                    other.commit();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        committer.start();
+        executor = new ScriptExecutor(conn, 0);
+        executor.setRetries(20);
+        executor.execute(1, "UPDATE retry_test SET id = id + 10 WHERE id = 1");
+        executor.flush();
+        committer.join();
+        conn.commit();
+        assertEquals(1, queryInt(conn, "SELECT COUNT(*) FROM retry_test WHERE id = 11"));
+        assertEquals(1, queryInt(conn, "SELECT COUNT(*) FROM retry_test WHERE id = 2"));
+        other.close();
+
+        // Only transient failures
+        assertTrue(RetryPolicy.isTransient(new SQLException("deadlock detected", "40P01")));
+        assertTrue(RetryPolicy.isTransient(new SQLException("Lock wait timeout exceeded", "41000", 1205)));
+        SQLException chained = new SQLException("Batch entry 0 was aborted", "08000");
+        chained.setNextException(new SQLException("could not serialize access", "40001"));
+        assertTrue(RetryPolicy.isTransient(chained));
+        assertFalse(RetryPolicy.isTransient(new SQLException("Table not found", "42S02")));
+        migrate.close();
+    }
+
+    public void testReadVersionMissingTable() throws MigrationException, IOException, SQLException {
+        Properties p = new Properties();
+        InputStream is =
+                Thread.currentThread().getContextClassLoader().getResourceAsStream("com/sampullara/db/test.properties");
+        p.load(is);
+        p.setProperty("url", "jdbc:h2:mem:test_read_version;DB_CLOSE_DELAY=-1");
+        Migrate migrate = new Migrate(p);
+        Connection conn = migrate.getConnection();
+        assertEquals(0, Migrate.readVersion(conn, "missing_version"));
+
+        // Any other error is reported, even one in the same SQLSTATE class
+        Statement st = conn.createStatement();
+        st.execute("CREATE TABLE unversioned (id integer)");
+        st.close();
+        try {
+            Migrate.readVersion(conn, "unversioned");
+            fail("Should have failed on the missing column");
+        } catch (SQLException e) {
+            assertTrue(e.getSQLState(), e.getSQLState().startsWith("42"));
+        }
+        migrate.close();
+    }
+
+    private int queryInt(Connection conn, String sql) throws SQLException {
+        Statement st = conn.createStatement();
+        try {
+            ResultSet rs = st.executeQuery(sql);
+            assertTrue(rs.next());
+            return rs.getInt(1);
+        } finally {
+            st.close();
+        }
+    }
 }
@@ -0,0 +1,89 @@
+package com.sampullara.db;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+public class PipelinedTokenizerTest extends TestCase {
+
+	public void testShouldKeepStatementsInOrder() throws MigrationException {
+		// given more statements than fit in the queue
+		StringBuilder script = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			if (i % 100 == 0) script.append("-- @mark ").append(i).append("\n");
+			script.append("INSERT INTO t VALUES (").append(i).append(");\n");
+		}
+
+		// when
+		PipelinedTokenizer tokenizer = pipeline(new StringReader(script.toString()));
+
+		// then
+		int line = 0;
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(tokenizer.hasNext());
+			assertEquals("INSERT INTO t VALUES (" + i + ")", tokenizer.next());
+			assertTrue(tokenizer.getLineNumber() > line);
+			line = tokenizer.getLineNumber();
+			if (i % 100 == 0) {
+				assertEquals("mark " + i, tokenizer.getDirectives().get(0));
+			} else {
+				assertTrue(tokenizer.getDirectives().isEmpty());
+			}
+		}
+		assertFalse(tokenizer.hasNext());
+		tokenizer.close();
+	}
+
+	public void testShouldFailAfterTheStatementsBeforeTheFailure() throws MigrationException {
+		// given a script that can't be read past its second statement
+		Reader reader = new StringReader("SELECT 1;\nSELECT 2;\n") {
+			boolean failed;
+
+			public int read(char[] buffer, int offset, int length) throws IOException {
+				int read = super.read(buffer, offset, length);
+				if (read == -1 && !failed) {
+					failed = true;
+					throw new IOException("disk error");
+				}
+				return read;
+			}
+		};
+
+		// when
+		PipelinedTokenizer tokenizer = pipeline(reader);
+
+		// then
+		assertEquals("SELECT 1", tokenizer.next());
+		assertEquals("SELECT 2", tokenizer.next());
+		try {
+			tokenizer.hasNext();
+			fail("Should have failed to read");
+		} catch (SqlStatementTokenizer.ReadException e) {
+			assertEquals("disk error", e.getCause().getMessage());
+		}
+		tokenizer.close();
+	}
+
+	public void testShouldStopReadingWhenClosed() throws MigrationException {
+		// given a script far longer than the queue
+		StringBuilder script = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			script.append("SELECT ").append(i).append(";\n");
+		}
+		PipelinedTokenizer tokenizer = pipeline(new StringReader(script.toString()));
+		assertEquals("SELECT 0", tokenizer.next());
+
+		// when
+		long start = System.currentTimeMillis();
+		tokenizer.close();
+
+		// then the reader doesn't wait for room in the queue
+		assertTrue(System.currentTimeMillis() - start < 1000);
+	}
+
+	private PipelinedTokenizer pipeline(Reader reader) {
+		return new PipelinedTokenizer(new SqlStatementTokenizer(reader), "test");
+	}
+}
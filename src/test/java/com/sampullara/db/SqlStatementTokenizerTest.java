@@ -0,0 +1,174 @@
+package com.sampullara.db;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class SqlStatementTokenizerTest extends TestCase {
+
+	public void testShouldParseMultipleStatements() {
+		// when
+		List<String> statements = tokenize("SELECT blah FROM whatever;\nSELECT foo FROM bar;SELECT baz FROM quux;");
+
+		// then
+		assertEquals(3, statements.size());
+		assertEquals("SELECT blah FROM whatever", statements.get(0));
+		assertEquals("SELECT foo FROM bar", statements.get(1));
+		assertEquals("SELECT baz FROM quux", statements.get(2));
+	}
+
+	public void testShouldReturnUnterminatedFinalStatement() {
+		// when
+		List<String> statements = tokenize("SELECT blah FROM whatever;\nSELECT foo FROM bar\n");
+
+		// then
+		assertEquals(2, statements.size());
+		assertEquals("SELECT foo FROM bar", statements.get(1));
+	}
+
+	public void testShouldSkipEmptyStatements() {
+		// when
+		List<String> statements = tokenize(" ;\n-- only a comment\n;SELECT 1;;  \n");
+
+		// then
+		assertEquals(1, statements.size());
+		assertEquals("SELECT 1", statements.get(0));
+	}
+
+	public void testShouldIgnoreSemiColonInQuotes() {
+		// when
+		List<String> statements = tokenize(
+				"INSERT INTO t VALUES ('a;b', 'it''s;', 'c\\';');\nSELECT \"odd;name\" FROM t;");
+
+		// then
+		assertEquals(2, statements.size());
+		assertEquals("INSERT INTO t VALUES ('a;b', 'it''s;', 'c\\';')", statements.get(0));
+		assertEquals("SELECT \"odd;name\" FROM t", statements.get(1));
+	}
+
+	public void testShouldDropLineComments() {
+		// when
+		List<String> statements = tokenize(
+				"# hash comment; at the start of a line\nSELECT a, -- trailing; comment\n b FROM t;");
+
+		// then
+		assertEquals(1, statements.size());
+		assertEquals("SELECT a, \n b FROM t", statements.get(0));
+	}
+
+	public void testShouldIgnoreSemiColonInBlockComments() {
+		// when
+		List<String> statements = tokenize("/* header; comment */\nSELECT 1 /* inline; */ FROM t;");
+
+		// then
+		assertEquals(1, statements.size());
+		assertEquals("/* header; comment */\nSELECT 1 /* inline; */ FROM t", statements.get(0));
+	}
+
+	public void testShouldKeepMySqlExecutableComments() {
+		// when
+		List<String> statements = tokenize("/*!40101 SET NAMES utf8 */;\n/* just a comment */;\n/*!40014 SET FOREIGN_KEY_CHECKS=0 */;\n");
+
+		// then
+		assertEquals(2, statements.size());
+		assertEquals("/*!40101 SET NAMES utf8 */", statements.get(0));
+		assertEquals("/*!40014 SET FOREIGN_KEY_CHECKS=0 */", statements.get(1));
+	}
+
+	public void testShouldIgnoreSemiColonInDollarQuotes() {
+		// when
+		List<String> statements = tokenize(
+				"CREATE FUNCTION f() RETURNS int AS $$ BEGIN RETURN 1; END; $$ LANGUAGE plpgsql;\n" +
+				"CREATE FUNCTION g() RETURNS int AS $body$ SELECT '$$'; $body$ LANGUAGE sql;\n" +
+				"SELECT $1;");
+
+		// then
+		assertEquals(3, statements.size());
+		assertEquals("CREATE FUNCTION f() RETURNS int AS $$ BEGIN RETURN 1; END; $$ LANGUAGE plpgsql",
+					 statements.get(0));
+		assertEquals("CREATE FUNCTION g() RETURNS int AS $body$ SELECT '$$'; $body$ LANGUAGE sql",
+					 statements.get(1));
+		assertEquals("SELECT $1", statements.get(2));
+	}
+
+	public void testShouldTrackLineNumbers() {
+		// given
+		SqlStatementTokenizer underTest = new SqlStatementTokenizer(
+				new StringReader("SELECT 1;\n\nSELECT\n2;\nSELECT 3"));
+
+		// then
+		assertEquals("SELECT 1", underTest.next());
+		assertEquals(1, underTest.getLineNumber());
+		assertEquals("SELECT\n2", underTest.next());
+		assertEquals(4, underTest.getLineNumber());
+		assertEquals("SELECT 3", underTest.next());
+		assertEquals(5, underTest.getLineNumber());
+		assertFalse(underTest.hasNext());
+	}
+
+	public void testShouldHandleStatementsSpanningReads() {
+		// given
+		StringBuilder sb = new StringBuilder("INSERT INTO t VALUES ");
+		for (int i = 0; i < 10000; i++) {
+			sb.append(i == 0 ? "" : ", ").append("(").append(i).append(", 'x;y')");
+		}
+		sb.append(";SELECT 1;");
+
+		// when
+		List<String> statements = tokenize(new OneCharAtATimeReader(sb.toString()));
+
+		// then
+		assertEquals(2, statements.size());
+		assertEquals(sb.length() - ";SELECT 1;".length(), statements.get(0).length());
+		assertEquals("SELECT 1", statements.get(1));
+	}
+
+	public void testShouldReturnDirectives() {
+		// given
+		SqlStatementTokenizer tokenizer = new SqlStatementTokenizer(new StringReader(
+				"-- @backfill table=t key=id\n--@chunk 10\n-- not a directive\nUPDATE t SET a = 1 WHERE id >= ? AND id < ?;\n" +
+				"SELECT 1;\n;\n-- @last\n"));
+
+		// when
+		tokenizer.next();
+		List<String> first = tokenizer.getDirectives();
+		tokenizer.next();
+		List<String> second = tokenizer.getDirectives();
+
+		// then
+		assertEquals(2, first.size());
+		assertEquals("backfill table=t key=id", first.get(0));
+		assertEquals("chunk 10", first.get(1));
+		assertTrue(second.isEmpty());
+		assertFalse(tokenizer.hasNext());
+	}
+
+	private List<String> tokenize(String sql) {
+		return tokenize(new StringReader(sql));
+	}
+
+	private List<String> tokenize(Reader reader) {
+		List<String> statements = new ArrayList<String>();
+		SqlStatementTokenizer tokenizer = new SqlStatementTokenizer(reader);
+		while (tokenizer.hasNext()) {
+			statements.add(tokenizer.next());
+		}
+		return statements;
+	}
+
+	/**
+	 * Forces every quote, comment and dollar quote to span reads
+	 */
+	private static class OneCharAtATimeReader extends StringReader {
+		public OneCharAtATimeReader(String s) {
+			super(s);
+		}
+
+		public int read(char[] cbuf, int off, int len) throws java.io.IOException {
+			return super.read(cbuf, off, Math.min(len, 1));
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package com.sampullara.db;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class StatementTemplateTest extends TestCase {
+
+	public void testShouldParameterizeValues() {
+		// when
+		StatementTemplate template = StatementTemplate.parse("INSERT INTO t (id, name, price) VALUES (1, 'it''s', -2.50), (2, 'b', 3)");
+
+		// then
+		assertEquals("INSERT INTO t (id, name, price) VALUES (?, ?, ?), (?, ?, ?)", template.getSql());
+		assertEquals(Arrays.<Object>asList(1L, "it's", new BigDecimal("-2.50"), 2L, "b", 3L), template.getParameters());
+	}
+
+	public void testShouldShareTheShapeOfStatementsThatDifferInTheirValues() {
+		// when
+		StatementTemplate first = StatementTemplate.parse("UPDATE t SET name = 'a' WHERE id = 1");
+		StatementTemplate second = StatementTemplate.parse("UPDATE t SET name = 'bc' WHERE id = 22");
+
+		// then
+		assertEquals("UPDATE t SET name = ? WHERE id = ?", first.getSql());
+		assertEquals(first.getSql(), second.getSql());
+	}
+
+	public void testShouldParameterizeComparisonsAndInLists() {
+		// when
+		StatementTemplate template = StatementTemplate.parse("DELETE FROM t WHERE id >= 10 AND code IN ('x', 'y') AND n <> 3");
+
+		// then
+		assertEquals("DELETE FROM t WHERE id >= ? AND code IN (?, ?) AND n <> ?", template.getSql());
+	}
+
+	public void testShouldKeepLiteralsWhereParametersAreNotAllowed() {
+		// when
+		StatementTemplate template = StatementTemplate.parse(
+				"INSERT INTO t2 SELECT id, CAST(name AS varchar(16)), DATE '2020-01-01', NULL FROM t WHERE id = 5 ORDER BY 1 LIMIT 10");
+
+		// then
+		assertEquals("INSERT INTO t2 SELECT id, CAST(name AS varchar(16)), DATE '2020-01-01', NULL FROM t WHERE id = ? ORDER BY 1 LIMIT 10",
+				template.getSql());
+		assertEquals(Arrays.<Object>asList(5L), template.getParameters());
+	}
+
+	public void testShouldKeepIdentifiersAndFunctionArguments() {
+		// when
+		StatementTemplate template = StatementTemplate.parse("INSERT INTO t1 (\"col 1\", c2) VALUES (round(1.5, 0), 'a')");
+
+		// then
+		assertEquals("INSERT INTO t1 (\"col 1\", c2) VALUES (round(1.5, 0), ?)", template.getSql());
+	}
+
+	public void testShouldNotRewriteWhatItCannotScan() {
+		assertNull(StatementTemplate.parse("INSERT INTO t VALUES (1, 'back\\\\slash')"));
+		assertNull(StatementTemplate.parse("INSERT INTO t VALUES (?, 2)"));
+		assertNull(StatementTemplate.parse("INSERT INTO t VALUES ($$a$$)"));
+		assertNull(StatementTemplate.parse("INSERT INTO t VALUES (1e5)"));
+		assertNull(StatementTemplate.parse("INSERT INTO t VALUES ('unterminated)"));
+	}
+
+	public void testShouldReturnNullWithoutLiterals() {
+		assertNull(StatementTemplate.parse("DELETE FROM t"));
+		assertNull(StatementTemplate.parse("UPDATE t SET a = b WHERE c IS NULL"));
+	}
+}
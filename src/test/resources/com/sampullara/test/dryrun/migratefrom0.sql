@@ -0,0 +1,4 @@
+CREATE TABLE dry_version (version integer not null);
+INSERT INTO dry_version VALUES (1);
+CREATE TABLE dry_test (id integer not null primary key, name varchar(16));
+INSERT INTO dry_test VALUES (1, 'a');
@@ -0,0 +1,3 @@
+UPDATE dry_test SET name = 'b';
+ALTER TABLE dry_test ADD COLUMN status varchar(8) DEFAULT 'new';
+CREATE INDEX dry_test_name ON dry_test (name);
@@ -0,0 +1,3 @@
+CREATE TABLE fast_version (version integer not null);
+INSERT INTO fast_version VALUES (1);
+CREATE TABLE fast_seen (bound integer, stored integer);
@@ -0,0 +1 @@
+CREATE TABLE fast_test (id integer not null primary key);
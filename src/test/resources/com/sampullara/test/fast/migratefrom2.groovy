@@ -0,0 +1,8 @@
+/**
+ * Records the version it is bound to next to the one in the version table
+ */
+def st = connection.createStatement()
+def rs = st.executeQuery("SELECT version FROM " + tablename)
+rs.next()
+st.executeUpdate("INSERT INTO fast_seen VALUES (" + version + ", " + rs.getInt(1) + ")")
+st.close()
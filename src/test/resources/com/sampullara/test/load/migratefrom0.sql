@@ -0,0 +1,3 @@
+CREATE TABLE load_version (version integer not null);
+INSERT INTO load_version VALUES (1);
+CREATE TABLE countries (code varchar(2) not null primary key, name varchar(64), population integer);
@@ -0,0 +1,3 @@
+-- Mark every row, ten keys at a time
+-- @backfill table=backfill_test key=id chunk=10
+UPDATE backfill_test SET status = 'done' WHERE id >= ? AND id < ?;
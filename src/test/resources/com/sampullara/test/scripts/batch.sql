@@ -0,0 +1,30 @@
+-- Seed data used to test batched execution
+DROP TABLE IF EXISTS batch_test;
+CREATE TABLE batch_test (id integer not null, name varchar(32));
+INSERT INTO batch_test (id, name) VALUES (1, 'row 1');
+INSERT INTO batch_test (id, name) VALUES (2, 'row 2');
+INSERT INTO batch_test (id, name) VALUES (3, 'row 3');
+INSERT INTO batch_test (id, name) VALUES (4, 'row 4');
+INSERT INTO batch_test (id, name) VALUES (5, 'row 5');
+INSERT INTO batch_test (id, name) VALUES (6, 'row 6');
+INSERT INTO batch_test (id, name) VALUES (7, 'row 7');
+INSERT INTO batch_test (id, name) VALUES (8, 'row 8');
+INSERT INTO batch_test (id, name) VALUES (9, 'row 9');
+INSERT INTO batch_test (id, name) VALUES (10, 'row 10');
+INSERT INTO batch_test (id, name) VALUES (11, 'row 11');
+INSERT INTO batch_test (id, name) VALUES (12, 'row 12');
+INSERT INTO batch_test (id, name) VALUES (13, 'row 13');
+INSERT INTO batch_test (id, name) VALUES (14, 'row 14');
+INSERT INTO batch_test (id, name) VALUES (15, 'row 15');
+INSERT INTO batch_test (id, name) VALUES (16, 'row 16');
+INSERT INTO batch_test (id, name) VALUES (17, 'row 17');
+INSERT INTO batch_test (id, name) VALUES (18, 'row 18');
+INSERT INTO batch_test (id, name) VALUES (19, 'row 19');
+INSERT INTO batch_test (id, name) VALUES (20, 'row 20');
+INSERT INTO batch_test (id, name) VALUES (21, 'row 21');
+INSERT INTO batch_test (id, name) VALUES (22, 'row 22');
+INSERT INTO batch_test (id, name) VALUES (23, 'row 23');
+INSERT INTO batch_test (id, name) VALUES (24, 'row 24');
+INSERT INTO batch_test (id, name) VALUES (25, 'row 25');
+UPDATE batch_test SET name = 'updated' WHERE id > 20;
+DELETE FROM batch_test WHERE id = 1;
@@ -0,0 +1,6 @@
+DROP TABLE IF EXISTS batch_test;
+CREATE TABLE batch_test (id integer not null, name varchar(32));
+INSERT INTO batch_test (id, name) VALUES (1, 'one');
+INSERT INTO batch_test (id, name) VALUES (2, 'two');
+INSERT INTO batch_test (id, name) VALUES (NULL, 'three');
+INSERT INTO batch_test (id, name) VALUES (4, 'four');
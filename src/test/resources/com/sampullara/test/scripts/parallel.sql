@@ -0,0 +1,13 @@
+CREATE TABLE parallel_a (id integer, name varchar(16));
+CREATE TABLE parallel_b (id integer, name varchar(16));
+CREATE TABLE parallel_c (id integer, name varchar(16));
+-- Independent indexes, built at the same time
+-- @parallel threads=2 timeout=60
+CREATE INDEX parallel_a_name ON parallel_a (name);
+CREATE INDEX parallel_b_name ON parallel_b (name);
+CREATE INDEX parallel_c_name ON parallel_c (name);
+-- @end
+INSERT INTO parallel_b VALUES (1, 'one');
+-- @parallel
+CREATE INDEX parallel_a_id ON parallel_a (id);
+CREATE INDEX parallel_missing_id ON parallel_missing (id);
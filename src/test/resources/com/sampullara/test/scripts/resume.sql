@@ -0,0 +1,7 @@
+-- Fails at line 6 until resume_other exists
+CREATE TABLE resume_test (id integer not null, name varchar(32));
+INSERT INTO resume_test VALUES (1, 'one');
+INSERT INTO resume_test VALUES (2, 'two');
+INSERT INTO resume_test VALUES (3, 'three');
+INSERT INTO resume_other VALUES (1);
+INSERT INTO resume_test VALUES (4, 'four');